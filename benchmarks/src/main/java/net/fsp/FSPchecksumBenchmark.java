@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FSP checksum benchmarks over array, heap and direct buffers.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FSPchecksumBenchmark
+{
+	/** packet length */
+	@Param({"12", "1036", "8204", "16396"})
+	public int length;
+
+	private byte array[];
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup()
+	{
+		array=new byte[length];
+		for(int i=0;i<length;i++)
+			array[i]=(byte)(i*31);
+		heap=ByteBuffer.wrap(array);
+		direct=ByteBuffer.allocateDirect(length);
+		direct.put(array);
+		direct.flip();
+	}
+
+	@Benchmark
+	public byte array()
+	{
+		return FSPcodec.checksum(array,0,length,true);
+	}
+
+	@Benchmark
+	public byte heapBuffer()
+	{
+		return FSPcodec.checksum(heap,0,length,true);
+	}
+
+	@Benchmark
+	public byte directBuffer()
+	{
+		return FSPcodec.checksum(direct,0,length,true);
+	}
+}
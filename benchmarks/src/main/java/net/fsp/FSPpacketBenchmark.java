@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packet assembly and disassembly benchmarks.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FSPpacketBenchmark
+{
+	/** payload size */
+	@Param({"0", "64", "1024", "8192", "16384"})
+	public int size;
+
+	private FSPpacket pkt;
+	private FSPpacket rcv;
+	private DatagramPacket udp;
+	private DatagramPacket received;
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+	private ByteBuffer directReceived;
+	private FSPcodec codec;
+
+	@Setup
+	public void setup()
+	{
+		pkt=new FSPpacket(Math.max(FSPpacket.SPACE,size));
+		rcv=new FSPpacket(Math.max(FSPpacket.SPACE,size));
+		byte data[]=new byte[size];
+		for(int i=0;i<size;i++)
+			data[i]=(byte)i;
+		pkt.cmd=FSPpacket.CC_GET_FILE;
+		pkt.bb_key=0x1234;
+		pkt.bb_seq=0x5678;
+		pkt.bb_pos=0x10000;
+		pkt.setData(data,0,size,null,0,0);
+
+		udp=new DatagramPacket(new byte[FSPpacket.MAXSIZE],FSPpacket.MAXSIZE);
+		received=new DatagramPacket(new byte[FSPpacket.MAXSIZE],FSPpacket.MAXSIZE);
+		pkt.assemble(received);
+		heap=ByteBuffer.allocate(FSPpacket.MAXSIZE);
+		direct=ByteBuffer.allocateDirect(FSPpacket.MAXSIZE);
+		directReceived=ByteBuffer.allocateDirect(FSPpacket.MAXSIZE);
+		pkt.assemble(directReceived);
+		/* received packets are checked with client side checksum */
+		FSPpacket server=new FSPpacket(true);
+		server.buf=pkt.buf;
+		server.cmd=pkt.cmd;
+		server.bb_key=pkt.bb_key;
+		server.bb_seq=pkt.bb_seq;
+		server.bb_pos=pkt.bb_pos;
+		server.bb_len=pkt.bb_len;
+		server.xtra_len=pkt.xtra_len;
+		server.assemble(received);
+		server.assemble(directReceived);
+		codec=new FSPcodec();
+	}
+
+	@Benchmark
+	public DatagramPacket assembleDatagram()
+	{
+		return pkt.assemble(udp);
+	}
+
+	@Benchmark
+	public boolean disassembleDatagram()
+	{
+		return rcv.disassemble(received);
+	}
+
+	@Benchmark
+	public ByteBuffer assembleHeapBuffer()
+	{
+		return pkt.assemble(heap);
+	}
+
+	@Benchmark
+	public ByteBuffer assembleDirectBuffer()
+	{
+		return pkt.assemble(direct);
+	}
+
+	@Benchmark
+	public boolean disassembleDirectBuffer()
+	{
+		return rcv.disassemble(directReceived);
+	}
+
+	@Benchmark
+	public boolean disassembleDirectBufferNoCopy()
+	{
+		return rcv.disassemble(directReceived,false);
+	}
+
+	@Benchmark
+	public boolean codecValidate()
+	{
+		return codec.wrap(directReceived).isValid();
+	}
+
+	@Benchmark
+	public void setData()
+	{
+		pkt.setData(rcv.buf,0,size,null,0,0);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of reply parsers and filename encoding.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FSPparserBenchmark
+{
+	private FSPpacket dir;
+	private FSPpacket stat;
+	private FSPpacket version;
+	private FSPpacket protection;
+	private short versionlen;
+	private ArrayList<FSPstat> entries;
+
+	private String shortname="/pub/README";
+	private String longname="/pub/mirrors/linux/distributions/releases/2009/iso/install-dvd-x86_64.iso";
+
+	@Setup
+	public void setup()
+	{
+		/* full directory block */
+		dir=new FSPpacket();
+		int i=0;
+		int n=0;
+		while(true)
+		{
+			byte name[]=("file-"+n+".txt").getBytes();
+			int len=9+name.length+1;
+			len=(len+3) & ~3;
+			if(i+len>FSPpacket.SPACE-12)
+				break;
+			dir.buf[i+3]=(byte)n;
+			dir.buf[i+7]=(byte)n;
+			dir.buf[i+8]=FSPstat.RDTYPE_FILE;
+			System.arraycopy(name,0,dir.buf,i+9,name.length);
+			i+=len;
+			n++;
+		}
+		/* end of directory */
+		dir.buf[i+8]=0;
+		dir.cmd=FSPpacket.CC_GET_DIR;
+		dir.bb_len=(short)FSPpacket.SPACE;
+		entries=new ArrayList<FSPstat>(n);
+
+		stat=new FSPpacket();
+		stat.cmd=FSPpacket.CC_STAT;
+		stat.buf[3]=1;
+		stat.buf[7]=100;
+		stat.buf[8]=FSPstat.RDTYPE_FILE;
+		stat.bb_len=9;
+
+		version=new FSPpacket();
+		version.cmd=FSPpacket.CC_VERSION;
+		byte v[]="fspd 2.8.1b29\0".getBytes();
+		System.arraycopy(v,0,version.buf,0,v.length);
+		version.bb_len=(short)v.length;
+		version.buf[v.length]=0x10 | 0x02;
+		version.buf[v.length+4]=(byte)200;
+		version.buf[v.length+5]=0x20;
+		version.buf[v.length+6]=0x00;
+		version.xtra_len=7;
+		version.bb_pos=7;
+		versionlen=version.bb_len;
+
+		protection=new FSPpacket();
+		protection.cmd=FSPpacket.CC_GET_PRO;
+		byte r[]="Welcome to FSP server\0".getBytes();
+		System.arraycopy(r,0,protection.buf,0,r.length);
+		protection.bb_len=(short)r.length;
+		protection.buf[r.length]=(byte)(FSPprotection.DIR_ADD | FSPprotection.DIR_LIST);
+		protection.xtra_len=1;
+		protection.bb_pos=1;
+	}
+
+	@Benchmark
+	public byte[] stringToASCIIZShort()
+	{
+		return FSPutil.stringToASCIIZ(shortname);
+	}
+
+	@Benchmark
+	public byte[] stringToASCIIZLong()
+	{
+		return FSPutil.stringToASCIIZ(longname);
+	}
+
+	@Benchmark
+	public int parseDirBlock()
+	{
+		entries.clear();
+		FSPutil.parseDirBlock(dir,entries);
+		return entries.size();
+	}
+
+	@Benchmark
+	public FSPstat parseStat() throws IOException
+	{
+		return FSPutil.parseStat(stat,shortname);
+	}
+
+	@Benchmark
+	public FSPversion parseVersion()
+	{
+		/* parser changes bb_len */
+		version.bb_len=versionlen;
+		return new FSPversion(version);
+	}
+
+	@Benchmark
+	public FSPprotection parseProtection()
+	{
+		return new FSPprotection(protection);
+	}
+}
@@ -0,0 +1,150 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FSPsession request/reply round trip over in-memory transport.
+ * <p>
+ * Requests and replies are fully encoded and decoded, only the network
+ * is left out.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FSPsessionBenchmark
+{
+	/** reply payload size */
+	@Param({"1024", "8192"})
+	public int size;
+
+	/**
+	 * Transport answering CC_GET_FILE requests from memory.
+	 */
+	static class MemoryTransport implements FSPtransport
+	{
+		private FSPpacket server=new FSPpacket(true);
+		private FSPcodec codec=new FSPcodec();
+		private ByteBuffer request;
+		private ByteBuffer reply;
+		private int size;
+
+		MemoryTransport(int size)
+		{
+			this.size=size;
+			server.buf=new byte[FSPpacket.MAXSPACE];
+			setPayload(size);
+		}
+
+		public void send(FSPpacket pkt) throws IOException
+		{
+			pkt.assemble(request);
+			if(!server.disassemble(request))
+				throw new IOException("Bad request");
+			server.bb_key++;
+			if(server.cmd==FSPpacket.CC_VERSION)
+			{
+				/* version string, flags and maximum payload */
+				byte v[]="memory\0".getBytes();
+				System.arraycopy(v,0,server.buf,0,v.length);
+				server.bb_len=(short)v.length;
+				server.buf[v.length]=0;
+				server.buf[v.length+1]=(byte)(size>>8);
+				server.buf[v.length+2]=(byte)size;
+				server.xtra_len=3;
+				server.bb_pos=3;
+			}
+			else
+			{
+				server.bb_len=(short)size;
+				server.xtra_len=0;
+			}
+			server.assemble(reply);
+		}
+
+		public boolean receive(FSPpacket pkt, int wait, boolean copy) throws IOException
+		{
+			return pkt.disassemble(reply,copy);
+		}
+
+		public ByteBuffer payload(FSPpacket pkt)
+		{
+			ByteBuffer view=codec.wrap(reply).data();
+			view.limit(view.position()+pkt.bb_len);
+			return view;
+		}
+
+		public void setPayload(int space)
+		{
+			request=ByteBuffer.allocateDirect(space+FSPpacket.HSIZE);
+			reply=ByteBuffer.allocateDirect(space+FSPpacket.HSIZE);
+		}
+
+		public <T> void setOption(SocketOption<T> name, T value) {}
+
+		public void close() {}
+	}
+
+	private FSPsession session;
+	private byte fname[];
+
+	@Setup
+	public void setup() throws IOException
+	{
+		session=new FSPsession(new MemoryTransport(size),InetAddress.getLoopbackAddress(),2121);
+		session.negotiatePayload(size);
+		fname=FSPutil.stringToASCIIZ("/pub/file.bin");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		session.close();
+	}
+
+	@Benchmark
+	public FSPpacket interact() throws IOException
+	{
+		return session.interact(FSPpacket.CC_GET_FILE,0,fname,0,fname.length,null,0,0);
+	}
+
+	@Benchmark
+	public ByteBuffer interactNoCopy() throws IOException
+	{
+		session.interact(FSPpacket.CC_GET_FILE,0,fname,0,fname.length,null,0,0,false);
+		return session.payload();
+	}
+}
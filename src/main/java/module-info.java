@@ -1,4 +1,6 @@
 module net.fsp {
+    requires transitive java.management;
+    requires jdk.jfr;
     exports net.fsp;
 }
 
@@ -11,6 +11,9 @@ use of this software.
  */
 package net.fsp;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /** This class allows reading file from FSP server.
  *
@@ -24,12 +27,24 @@ public class FSPInputStream extends java.io.InputStream {
 	private long mark=0;
 	private long pos=0; // position of next packet
 
-	private byte buf[]=new byte[FSPpacket.SPACE];
-	private int bufpos=FSPpacket.SPACE; // no data in buffer
+	private byte buf[];
+	private int bufsize; // size of buffer, negotiated payload
+	private int bufpos; // bufsize means no data in buffer
 	private boolean eof=false;
 
 	private FSPsession ses;
 	private byte[] fname;
+	private byte[] getsize;
+	private String filename;
+	/* pipelined downloader, null if stream position changed */
+	private FSPdownloader dl;
+	/* number of blocks fetched in background, 0 if disabled */
+	private int readahead;
+	/* background fetcher, null if stream position changed */
+	private ReadAhead fetcher;
+
+	/** maximum read-ahead depth in blocks */
+	public final static int MAX_READ_AHEAD=256;
 
 	/** creates a new Input stream for reading file from FSP server
 	 *
@@ -39,14 +54,19 @@ public class FSPInputStream extends java.io.InputStream {
 	public FSPInputStream (FSPsession session,String filename)
 	{
 		this.ses=session;
+		this.filename=filename;
 		fname=FSPutil.stringToASCIIZ(filename);
+		getsize=session.blockSizeRequest();
+		bufsize=session.getPayload();
+		buf=new byte[bufsize];
+		bufpos=bufsize;
 	}
 
 	/** returns the number of bytes that can be read from this input stream
 	 * without contacting server. */
 	public int available()
 	{
-		return FSPpacket.SPACE-bufpos;
+		return bufsize-bufpos;
 	}
 
 	/** frees internal buffers.
@@ -54,17 +74,19 @@ public class FSPInputStream extends java.io.InputStream {
 	 */
 	public void close()
 	{
+		discard();
 		eof=true;
 		buf=null;
 		ses=null;
-		bufpos=FSPpacket.SPACE;
+		dl=null;
+		bufpos=bufsize;
 	}
 
 	/** marks current position in the stream.
 	 * @param readlimit ignored */
 	public synchronized void mark(int readlimit)
 	{
-		mark=pos-(FSPpacket.SPACE-bufpos);
+		mark=pos-(bufsize-bufpos);
 	}
 
 	/**  Repositions this stream to the position at the time the mark method was last called on this input stream.
@@ -73,8 +95,12 @@ public class FSPInputStream extends java.io.InputStream {
 	 */
 	public synchronized void reset()
 	{
-		bufpos=FSPpacket.SPACE;
+		if(buf==null) return;
+		bufpos=bufsize;
 		pos=mark;
+		eof=false;
+		dl=null;
+		discard();
 	}
 
 	/** returns true - mark is supported. */
@@ -88,7 +114,7 @@ public class FSPInputStream extends java.io.InputStream {
 	{
 		if(eof==true) return -1;
 
-		if(bufpos<FSPpacket.SPACE)
+		if(bufpos<bufsize)
 		{
 			return buf[bufpos++] & 0xFF;
 		}
@@ -102,12 +128,48 @@ public class FSPInputStream extends java.io.InputStream {
 	{
 		FSPpacket pkt;
 
-		pkt=ses.interact(FSPpacket.CC_GET_FILE,pos,fname,0,fname.length,null,0,0);
-		pkt.expect(FSPpacket.CC_GET_FILE);
+		if(readahead>0)
+		{
+			/* take block fetched in background */
+			if(fetcher==null)
+				fetcher=new ReadAhead(this,pos,readahead);
+			Block b=fetcher.take();
+			if(b.error!=null)
+			{
+				discard();
+				throw b.error;
+			}
+			if(b.len==0)
+				eof=true;
+			/* block data are stored at end of array, use it as buffer */
+			fetcher.recycle(buf);
+			buf=b.data;
+			bufpos=bufsize-b.len;
+			pos+=b.len;
+			return;
+		}
+
+		if(ses.transferWindow()>1)
+		{
+			/* pipelined transfer */
+			if(dl==null)
+				dl=new FSPdownloader(ses,filename,pos,-1);
+			pkt=dl.next();
+			if(pkt==null) {
+				eof=true;
+				bufpos=bufsize;
+				return;
+			}
+		}
+		else
+		{
+			pkt=ses.interact(FSPpacket.CC_GET_FILE,pos,fname,0,fname.length,getsize,0,getsize==null ? 0 : getsize.length);
+			pkt.expect(FSPpacket.CC_GET_FILE);
+		}
 		if(pkt.bb_len==0) {
 			eof=true;
 		}
-		bufpos=FSPpacket.SPACE-pkt.bb_len;
+		bufpos=bufsize-pkt.bb_len;
 		pos+=pkt.bb_len;
 		System.arraycopy(pkt.buf,0,buf,bufpos,pkt.bb_len);
 	}
@@ -117,10 +179,10 @@ public class FSPInputStream extends java.io.InputStream {
 	{
 		if(eof==true) return -1;
 		if(len<=0) return 0;
-		if(bufpos>=FSPpacket.SPACE)
+		if(bufpos>=bufsize)
 			fillbuffer();
 
-		int read=Math.min(len,FSPpacket.SPACE-bufpos);
+		int read=Math.min(len,bufsize-bufpos);
 		System.arraycopy(buf,bufpos,b,off,read);
 		bufpos+=read;
 		return read;
@@ -136,9 +198,194 @@ public class FSPInputStream extends java.io.InputStream {
 	public long skip(long bytes) throws IOException
 	{
 		if(eof==true) return 0;
-		pos=pos-(FSPpacket.SPACE-bufpos)+bytes;
-		bufpos=FSPpacket.SPACE;
+		pos=pos-(bufsize-bufpos)+bytes;
+		bufpos=bufsize;
+		dl=null;
+		discard();
 		return bytes;
 	}
 
+	/** Gets read-ahead depth.
+	 *
+	 * @since 1.1
+	 * @return number of blocks fetched in background, 0 if disabled
+	 */
+	public int getReadAhead()
+	{
+		return readahead;
+	}
+
+	/** Sets read-ahead depth.
+	 * <p>
+	 * If enabled, background thread fetches next blocks of file while
+	 * application processes current block. Memory used by stream is
+	 * limited to (depth + 2) * session payload bytes: fetched blocks,
+	 * block being fetched and block being read. Read-ahead data are
+	 * discarded on reset() and skip(). Session must not be used by other
+	 * threads while stream is open. Background thread ends when stream is
+	 * closed or garbage collected.
+	 *
+	 * @since 1.1
+	 * @param blocks number of blocks fetched in advance, 0 disables
+	 *        read-ahead. Maximum is MAX_READ_AHEAD.
+	 */
+	public synchronized void setReadAhead(int blocks)
+	{
+		if(blocks<0) blocks=0;
+		if(blocks>MAX_READ_AHEAD) blocks=MAX_READ_AHEAD;
+		if(blocks!=readahead)
+			discard();
+		readahead=blocks;
+	}
+
+	/* stop background fetcher and drop fetched blocks */
+	private void discard()
+	{
+		if(fetcher!=null)
+		{
+			fetcher.stop();
+			fetcher=null;
+		}
+	}
+
+	/* block fetched in background */
+	private static class Block
+	{
+		/* data are stored at end of array */
+		byte data[];
+		int len;
+		IOException error;
+	}
+
+	/* background fetcher of next blocks, it does not keep stream reachable */
+	private static class ReadAhead implements Runnable
+	{
+		private ArrayBlockingQueue<Block> queue;
+		/* arrays of blocks already read, reused for next blocks */
+		private ArrayBlockingQueue<byte[]> free;
+		private WeakReference<FSPInputStream> owner;
+		private volatile boolean stop;
+		private Thread thread;
+		private FSPsession ses;
+		private String filename;
+		private byte fname[];
+		private byte getsize[];
+		private int bufsize;
+		private long fetchpos;
+		private FSPdownloader rdl;
+
+		ReadAhead(FSPInputStream in, long start, int depth)
+		{
+			owner=new WeakReference<FSPInputStream>(in);
+			ses=in.ses;
+			filename=in.filename;
+			fname=in.fname;
+			getsize=in.getsize;
+			bufsize=in.bufsize;
+			fetchpos=start;
+			queue=new ArrayBlockingQueue<Block>(depth);
+			free=new ArrayBlockingQueue<byte[]>(depth+2);
+			thread=new Thread(this,"FSP read-ahead "+filename);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run()
+		{
+			while(!stop)
+			{
+				Block b=new Block();
+				try
+				{
+					FSPpacket pkt;
+					if(ses.transferWindow()>1)
+					{
+						if(rdl==null)
+							rdl=new FSPdownloader(ses,filename,fetchpos,-1);
+						pkt=rdl.next();
+					}
+					else
+					{
+						pkt=ses.interact(FSPpacket.CC_GET_FILE,fetchpos,fname,0,fname.length,getsize,0,getsize==null ? 0 : getsize.length);
+						pkt.expect(FSPpacket.CC_GET_FILE);
+					}
+					b.data=free.poll();
+					if(b.data==null)
+						b.data=new byte[bufsize];
+					if(pkt!=null)
+					{
+						b.len=pkt.bb_len;
+						System.arraycopy(pkt.buf,0,b.data,bufsize-b.len,b.len);
+					}
+				}
+				catch (IOException e)
+				{
+					b.error=e;
+				}
+				catch (RuntimeException e)
+				{
+					b.error=new IOException(e);
+				}
+				fetchpos+=b.len;
+				try
+				{
+					while(!queue.offer(b,100,TimeUnit.MILLISECONDS))
+						/* stream was lost without close() */
+						if(stop || owner.get()==null)
+							return;
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				if(b.len==0)
+					return;
+			}
+		}
+
+		/* wait for next block */
+		Block take() throws IOException
+		{
+			try
+			{
+				return queue.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new java.io.InterruptedIOException("Interrupted while waiting for data");
+			}
+		}
+
+		/* give back array of block which was read */
+		void recycle(byte data[])
+		{
+			if(data!=null && data.length==bufsize)
+				free.offer(data);
+		}
+
+		/* stop fetching, wait until session is no longer used */
+		void stop()
+		{
+			stop=true;
+			/* do not wait for reply or resend timeout */
+			thread.interrupt();
+			queue.clear();
+			boolean interrupted=false;
+			while(thread.isAlive())
+			{
+				try
+				{
+					thread.join();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted=true;
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
 }
@@ -27,11 +27,13 @@ public class FSPOutputStream extends OutputStream {
 
 	private FSPsession ses;
 	private byte[] fname;
-	private byte[] buf = new byte [FSPpacket.SPACE];
+	private byte[] buf;
 	/** position in buffer for writing next byte */
 	private int bufpos;
 	/** Position of next packet sent to server */
 	private long pos;
+	/** blocks in flight if session window is larger than 1 */
+	private FSPuploader uploader;
 
 	/**
 	 * Creates stream for writing file to FSP server. Because FSP protocol
@@ -50,8 +52,11 @@ public class FSPOutputStream extends OutputStream {
 	public FSPOutputStream(FSPsession session, String filename) {
 		this.ses=session;
 		this.fname=FSPutil.stringToASCIIZ(filename);
+		this.buf = new byte[session.getPayload()];
 		this.bufpos = 0;
 		this.pos = 0;
+		if (session.transferWindow() > 1)
+			this.uploader = new FSPuploader(session, 0);
 		session.lockWriter(this, true);
 	}
 
@@ -59,10 +64,25 @@ public class FSPOutputStream extends OutputStream {
 	 * Flushes internal buffer to FSP server. File on FSP server is not
 	 * created until stream is closed. This function always sent packet
 	 * to server even if internal buffer is currently empty.
+	 * If session window is larger than 1, waits until all previously
+	 * written blocks are acknowledged.
 	 *
 	 * @since 1.0rc7
 	 */
 	public void flush() throws IOException {
+		send();
+		if (uploader != null)
+			uploader.drain();
+	}
+
+	/** sends internal buffer, does not wait for reply in windowed mode */
+	private void send() throws IOException {
+		if (uploader != null) {
+			uploader.write(buf, 0, bufpos);
+			pos = uploader.position();
+			bufpos = 0;
+			return;
+		}
 		FSPpacket pkt;
 		pkt = ses.interact(FSPpacket.CC_UP_LOAD, pos, buf, 0, bufpos, null, 0, 0);
 		pkt.expect(FSPpacket.CC_UP_LOAD);
@@ -77,10 +97,10 @@ public class FSPOutputStream extends OutputStream {
 	 * @since 1.0rc7
 	 */
 	public void write(int b) throws IOException {
-		if ( bufpos < FSPpacket.SPACE ) {
+		if ( bufpos < buf.length ) {
 			buf[bufpos++] = (byte) b;
 		} else {
-			flush();
+			send();
 			write(b);
 		}
 	}
@@ -96,9 +116,9 @@ public class FSPOutputStream extends OutputStream {
 	public void write(byte[] b, int off, int len) throws IOException {
 		while ( len > 0) {
 			int frag;
-			if ( bufpos >= FSPpacket.SPACE )
-				flush();
-			frag = Math.min(FSPpacket.SPACE - bufpos, len);
+			if ( bufpos >= buf.length )
+				send();
+			frag = Math.min(buf.length - bufpos, len);
 			System.arraycopy(b, off, buf, bufpos, frag);
 			len -= frag;
 			off += frag;
@@ -118,6 +138,7 @@ public class FSPOutputStream extends OutputStream {
     	try {
         	flush();
     		pkt = ses.interact(FSPpacket.CC_INSTALL, 0, fname, 0, fname.length, null, 0, 0);
+    		FSPutil.invalidate(ses, new String(fname, 0, fname.length-1));
     		pkt.expect(FSPpacket.CC_INSTALL);
     	}
     	finally {
@@ -125,6 +146,7 @@ public class FSPOutputStream extends OutputStream {
     		ses.unlockWriter(this);
     		fname = buf = null;
     		ses = null;
+    		uploader = null;
     	}
     }
 
@@ -13,7 +13,10 @@ package net.fsp;
 import java.net.SocketPermission;
 import  java.net.URL;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import  java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Permission;
 import java.util.ArrayList;
@@ -31,8 +34,8 @@ import java.util.Map;
  */
 public class FSPURLConnection extends java.net.URLConnection
 {
-	/* FSP session */
-	private FSPsession ses;
+	/* FSP session pool */
+	private FSPsessionPool pool;
 	private FSPstat stat;
 
 	private static String header_fields[] = { "last-modified", "content-length" };
@@ -43,14 +46,27 @@ public class FSPURLConnection extends java.net.URLConnection
 	 * @since 1.0
 	 */
 	protected FSPURLConnection(URL u)
+	{
+		this(u,FSPsessionPool.getDefault());
+	}
+
+	/**
+	 * creates a new URL connection using sessions from given pool.
+	 *
+	 * @since 1.1
+	 */
+	FSPURLConnection(URL u, FSPsessionPool pool)
 	{
 		super(u);
+		this.pool=pool;
 		allowUserInteraction=false;
 		useCaches=false;
 	}
 
 	/**
 	 * gets file status from FSP server
+	 * <p>
+	 * Session is borrowed from session pool only for duration of request.
 	 *
 	 * @since 1.0
 	 */
@@ -61,22 +77,29 @@ public class FSPURLConnection extends java.net.URLConnection
 			throw new UnsupportedOperationException("FSP supports reading OR writing files");
 		if ( !doInput && !doOutput )
 			throw new IllegalStateException("You must call setDoInput() or setDoOutput() before calling connect()");
-		ses=new FSPsession(url.getHost(),url.getPort());
-		ses.setTimeout(getConnectTimeout());
-		stat=FSPutil.stat(ses,url.getFile());
+		FSPsession ses=pool.acquire(url.getHost(),url.getPort());
+		try {
+			ses.setTimeout(getConnectTimeout());
+			stat=FSPutil.stat(ses,url.getFile());
+		}
+		catch (IOException e) {
+			pool.invalidate(ses);
+			throw e;
+		}
+		pool.release(ses);
 		connected=true;
-		ses.setTimeout(getReadTimeout());
 		return;
 	}
 
 	/**
 	 * Get connection timeout.
 	 *
-	 * @return FSP session timeout (ms)
+	 * @return FSP session timeout used for connect (ms)
 	 * @since 1.0rc8
 	 */
 	public int getConnectTimeout() {
-		return ses.getTimeout();
+		int tm=super.getConnectTimeout();
+		return tm > 0 ? tm : FSPsession.DEFAULT_TIMEOUT;
 	}
 
 	/**
@@ -275,7 +298,22 @@ public class FSPURLConnection extends java.net.URLConnection
 		if(stat.type==FSPstat.RDTYPE_DIR)
 			throw new UnsupportedOperationException("Is a directory");
 
-		return new FSPInputStream(ses,url.getFile());
+		FSPsession ses=pool.acquire(url.getHost(),url.getPort());
+		boolean ok=false;
+		try
+		{
+			ses.setTimeout(getReadTimeout());
+			PooledInputStream in=new PooledInputStream(new FSPInputStream(ses,url.getFile()));
+			in.lease=pool.lease(in,ses);
+			ok=true;
+			return in;
+		}
+		finally
+		{
+			/* state of session is unknown */
+			if(!ok)
+				pool.invalidate(ses);
+		}
 	}
 
 	/**
@@ -293,10 +331,24 @@ public class FSPURLConnection extends java.net.URLConnection
 	 * Returns an output stream that writes to this URL
 	 * @since 1.0rc8
 	 */
-	public OutputStream getOutputStream() {
+	public OutputStream getOutputStream() throws IOException {
 		if (!connected) throw new IllegalStateException("Not connected");
 		if (!doOutput) throw new IllegalStateException("URL not opened for writing");
-		return new FSPOutputStream(ses, url.getFile());
+		FSPsession ses=pool.acquire(url.getHost(),url.getPort());
+		boolean ok=false;
+		try
+		{
+			ses.setTimeout(getReadTimeout());
+			PooledOutputStream out=new PooledOutputStream(new FSPOutputStream(ses, url.getFile()));
+			out.lease=pool.lease(out,ses);
+			ok=true;
+			return out;
+		}
+		finally
+		{
+			if(!ok)
+				pool.invalidate(ses);
+		}
 	}
 
 	/**
@@ -304,7 +356,8 @@ public class FSPURLConnection extends java.net.URLConnection
 	 * @since 1.0rc8
 	 */
 	public Permission getPermission() {
-		return new SocketPermission(url.getHost()+":"+ses.getPort(), "connect,resolve");
+		int port=url.getPort();
+		return new SocketPermission(url.getHost()+":"+(port > 0 ? port : 21), "connect,resolve");
 	}
 
 	/**
@@ -315,4 +368,61 @@ public class FSPURLConnection extends java.net.URLConnection
 	public boolean getUseCaches() {
 		return false;
 	}
+
+	/**
+	 * Input stream returning its session to pool when closed.
+	 * Session of stream lost without closing is dropped from pool.
+	 */
+	private static class PooledInputStream extends FilterInputStream {
+		private FSPsessionPool.Lease lease;
+		private boolean closed;
+
+		PooledInputStream(InputStream in) {
+			super(in);
+		}
+
+		public void close() throws IOException {
+			if ( closed )
+				return;
+			closed=true;
+			try {
+				super.close();
+			}
+			finally {
+				lease.release();
+			}
+		}
+	}
+
+	/**
+	 * Output stream returning its session to pool when closed.
+	 * Session is dropped if upload could not be finished or if stream
+	 * was lost without closing.
+	 */
+	private static class PooledOutputStream extends FilterOutputStream {
+		private FSPsessionPool.Lease lease;
+		private boolean closed;
+
+		PooledOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		public void close() throws IOException {
+			if ( closed )
+				return;
+			closed=true;
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				lease.invalidate();
+				throw e;
+			}
+			lease.release();
+		}
+	}
 }
@@ -0,0 +1,278 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous multi packet operation.
+ * <p>
+ * Operation is one object with one result future. Completion callback
+ * of every request handles reply and sends next request, so long
+ * transfers do not build chain of dependent futures and neither stack
+ * nor memory grows with number of blocks.
+ *
+ * @author Radim Kolar
+ * @see FSPsession#interactAsync(byte, long, byte[], int, int, byte[], int, int)
+ * @since 1.1
+ */
+abstract class FSPasyncTransfer<T> implements BiConsumer<FSPpacket, Throwable>
+{
+	protected FSPsession session;
+	protected CompletableFuture<T> result=new CompletableFuture<T>();
+
+	FSPasyncTransfer(FSPsession session)
+	{
+		this.session=session;
+	}
+
+	/** sends request, reply() is called when it is answered */
+	protected void send(byte cmd,long filepos, byte data1[],int offset1,int length1, byte data2[],int offset2,int length2)
+	{
+		session.interactAsync(cmd,filepos,data1,offset1,length1,data2,offset2,length2).whenComplete(this);
+	}
+
+	public void accept(FSPpacket pkt, Throwable error)
+	{
+		if(error!=null)
+		{
+			if(error instanceof CompletionException && error.getCause()!=null)
+				error=error.getCause();
+			result.completeExceptionally(error);
+			return;
+		}
+		try
+		{
+			reply(pkt);
+		}
+		catch (Throwable e)
+		{
+			result.completeExceptionally(e);
+		}
+	}
+
+	/** handles reply, sends next request or completes result */
+	protected abstract void reply(FSPpacket pkt) throws IOException;
+
+	/**
+	 * Downloads file. Blocks are written by thread completing replies.
+	 *
+	 * @return future completed with number of downloaded bytes
+	 */
+	static CompletableFuture<Long> download(FSPsession session,String filename,OutputStream os,long start_from,long byteswanted)
+	{
+		Download d=new Download(session,filename,os,start_from,byteswanted);
+		d.request();
+		return d.result;
+	}
+
+	/**
+	 * Uploads file. Stream is read by executor, not by reactor thread.
+	 *
+	 * @return future completed when file is installed
+	 */
+	static CompletableFuture<Void> upload(FSPsession session,String filename,InputStream is,long timestamp,Executor executor)
+	{
+		Upload u=new Upload(session,filename,is,timestamp,executor);
+		try
+		{
+			executor.execute(u);
+		}
+		catch (RuntimeException e)
+		{
+			u.result.completeExceptionally(e);
+		}
+		return u.result;
+	}
+
+	/**
+	 * Lists directory.
+	 *
+	 * @return future completed with directory entries
+	 */
+	static CompletableFuture<List<FSPstat>> list(FSPsession session,String directory)
+	{
+		Listing l=new Listing(session,directory);
+		l.request();
+		return l.result;
+	}
+
+	private static final class Download extends FSPasyncTransfer<Long>
+	{
+		private byte fname[];
+		private byte getsize[];
+		private OutputStream os;
+		private long pos;
+		private long byteswanted;
+		private long done;
+
+		Download(FSPsession session,String filename,OutputStream os,long start_from,long byteswanted)
+		{
+			super(session);
+			fname=FSPutil.stringToASCIIZ(filename);
+			getsize=session.blockSizeRequest();
+			this.os=os;
+			pos=start_from;
+			this.byteswanted=byteswanted;
+		}
+
+		void request()
+		{
+			send(FSPpacket.CC_GET_FILE,pos,fname,0,fname.length,getsize,0,getsize==null ? 0 : getsize.length);
+		}
+
+		protected void reply(FSPpacket pkt) throws IOException
+		{
+			pkt.expect(FSPpacket.CC_GET_FILE);
+			if(pkt.bb_len==0)
+			{
+				result.complete(done);
+				return;
+			}
+			if( (pkt.bb_len > byteswanted) && ( byteswanted >= 0 ) )
+				pkt.bb_len = (short) byteswanted;
+			os.write(pkt.buf,0,pkt.bb_len);
+			pos+=pkt.bb_len;
+			done+=pkt.bb_len;
+			if(byteswanted>=0)
+			{
+				byteswanted-=pkt.bb_len;
+				if(byteswanted==0)
+				{
+					result.complete(done);
+					return;
+				}
+			}
+			request();
+		}
+	}
+
+	private static final class Upload extends FSPasyncTransfer<Void> implements Runnable
+	{
+		private String filename;
+		private byte fname[];
+		private InputStream is;
+		private long timestamp;
+		private Executor executor;
+		private byte buf[];
+		private long pos;
+		private int len;
+		private boolean installing;
+
+		Upload(FSPsession session,String filename,InputStream is,long timestamp,Executor executor)
+		{
+			super(session);
+			this.filename=filename;
+			fname=FSPutil.stringToASCIIZ(filename);
+			this.is=is;
+			this.timestamp=timestamp;
+			this.executor=executor;
+			buf=new byte[session.getPayload()];
+		}
+
+		/* read next block on executor and send it */
+		public void run()
+		{
+			try
+			{
+				int br=is.read(buf);
+				/* first block is always sent, even if empty */
+				if ( br <= 0 && pos > 0 )
+				{
+					install();
+					return;
+				}
+				len=Math.max(br,0);
+				send(FSPpacket.CC_UP_LOAD,pos,buf,0,len,null,0,0);
+			}
+			catch (Throwable e)
+			{
+				result.completeExceptionally(e);
+			}
+		}
+
+		private void install()
+		{
+			byte stamp[];
+			if (timestamp != 0 ) {
+				long ts = timestamp / 1000L;
+				stamp = new byte[4];
+				stamp[0] =(byte)((ts >>>24) & 0xFF);
+				stamp[1] =(byte)((ts >>>16) & 0xFF);
+				stamp[2]=(byte)((ts  >>> 8) & 0xFF);
+				stamp[3]=(byte)(ts & 0xFF);
+			}
+			else
+				stamp = new byte[0];
+			installing=true;
+			send(FSPpacket.CC_INSTALL, stamp.length, fname, 0, fname.length, stamp, 0, stamp.length);
+		}
+
+		protected void reply(FSPpacket pkt) throws IOException
+		{
+			if(installing)
+			{
+				FSPutil.invalidate(session,filename);
+				pkt.expect(FSPpacket.CC_INSTALL);
+				result.complete(null);
+				return;
+			}
+			pkt.expect(FSPpacket.CC_UP_LOAD);
+			if ( len == 0 )
+			{
+				install();
+				return;
+			}
+			pos+=len;
+			/* stream is read by executor given by caller */
+			executor.execute(this);
+		}
+	}
+
+	private static final class Listing extends FSPasyncTransfer<List<FSPstat>>
+	{
+		private byte fname[];
+		private int pos;
+		private List<FSPstat> dirlist=new ArrayList<FSPstat>(20);
+
+		Listing(FSPsession session,String directory)
+		{
+			super(session);
+			fname=FSPutil.stringToASCIIZ(directory);
+		}
+
+		void request()
+		{
+			send(FSPpacket.CC_GET_DIR,pos,fname,0,fname.length,null,0,0);
+		}
+
+		protected void reply(FSPpacket pkt) throws IOException
+		{
+			pkt.expect(FSPpacket.CC_GET_DIR);
+			if(pkt.bb_len==0 || !FSPutil.parseDirBlock(pkt,dirlist))
+			{
+				result.complete(dirlist);
+				return;
+			}
+			pos+=pkt.bb_len;
+			request();
+		}
+	}
+}
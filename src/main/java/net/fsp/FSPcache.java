@@ -0,0 +1,317 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of file and directory information.
+ * <p>
+ * Cache holds results of CC_STAT and CC_GET_DIR commands for limited
+ * time. Missing paths are cached too. Directory listings also fill
+ * information about directory entries. If cache is full, least recently
+ * used entries are dropped.
+ * <p>
+ * Cache is attached to all sessions to one FSP server by
+ * FSPsession.setCache(). Entries are invalidated by uploads, deletes and
+ * renames done by FSPutil, changes made by other clients are not
+ * visible until entry expires.
+ *
+ * @author Radim Kolar
+ * @see FSPsession#setCache(FSPcache)
+ * @since 1.1
+ */
+public class FSPcache
+{
+	/** default time to live of cache entries (msec) */
+	public final static long DEFAULT_TTL=10000;
+	/** default maximum number of cache entries */
+	public final static int DEFAULT_SIZE=10000;
+
+	/* cached information about one path */
+	static final class Entry
+	{
+		/** null if path does not exist */
+		FSPstat stat;
+		/** directory listing, null if not known */
+		FSPstat list[];
+		long statexpires;
+		long listexpires;
+	}
+
+	private long ttl;
+	private long negativettl;
+	private int size;
+	private LinkedHashMap<String, Entry> entries;
+	/* directory to its cached children and directories leading to them */
+	private HashMap<String, Set<String>> children=new HashMap<String, Set<String>>();
+
+	/**
+	 * Creates cache with default time to live and size.
+	 *
+	 * @since 1.1
+	 */
+	public FSPcache()
+	{
+		this(DEFAULT_TTL,DEFAULT_SIZE);
+	}
+
+	/**
+	 * Creates cache.
+	 *
+	 * @param ttl time to live of entries in milliseconds
+	 * @param size maximum number of cached paths
+	 * @since 1.1
+	 */
+	public FSPcache(long ttl, final int size)
+	{
+		this.ttl=ttl;
+		this.negativettl=ttl;
+		this.size=size;
+		entries=new LinkedHashMap<String, FSPcache.Entry>(Math.min(size,1024),0.75f,true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FSPcache.Entry> eldest) {
+				if(size()<=size)
+					return false;
+				remove(eldest.getKey());
+				unlink(eldest.getKey());
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets time to live of cached missing paths.
+	 *
+	 * @return time in milliseconds
+	 * @since 1.1
+	 */
+	public synchronized long getNegativeTTL()
+	{
+		return negativettl;
+	}
+
+	/**
+	 * Sets time to live of cached missing paths. Zero disables caching
+	 * of missing paths.
+	 *
+	 * @param ttl time in milliseconds
+	 * @since 1.1
+	 */
+	public synchronized void setNegativeTTL(long ttl)
+	{
+		negativettl=ttl;
+	}
+
+	/**
+	 * Drops all cached information.
+	 *
+	 * @since 1.1
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		children.clear();
+	}
+
+	/**
+	 * Drops cached information about path, its subtree and listing of
+	 * its parent directory.
+	 *
+	 * @param path path on FSP server
+	 * @since 1.1
+	 */
+	public synchronized void invalidate(String path)
+	{
+		path=normalize(path);
+		Entry parent=entries.get(parent(path));
+		if(parent!=null)
+			parent.list=null;
+		/* remove subtree found by directory index */
+		ArrayDeque<String> todo=new ArrayDeque<String>();
+		todo.add(path);
+		String p;
+		while((p=todo.poll())!=null)
+		{
+			entries.remove(p);
+			Set<String> c=children.remove(p);
+			if(c!=null)
+				todo.addAll(c);
+		}
+		unlink(path);
+	}
+
+	/**
+	 * Finds cached information about path.
+	 *
+	 * @return entry with valid stat or null if not cached
+	 */
+	synchronized Entry getStat(String path)
+	{
+		Entry e=entries.get(normalize(path));
+		if(e==null || System.currentTimeMillis()-e.statexpires>=0)
+			return null;
+		return e;
+	}
+
+	/** Stores result of CC_STAT, null if path does not exist. */
+	synchronized void putStat(String path, FSPstat stat)
+	{
+		long life=stat==null ? negativettl : ttl;
+		if(life<=0)
+			return;
+		path=normalize(path);
+		Entry e=entry(path);
+		e.stat=stat==null ? null : copy(stat,path);
+		e.statexpires=System.currentTimeMillis()+life;
+	}
+
+	/** Finds cached directory listing or returns null. */
+	synchronized FSPstat[] getList(String directory)
+	{
+		Entry e=entries.get(normalize(directory));
+		if(e==null || e.list==null || System.currentTimeMillis()-e.listexpires>=0)
+			return null;
+		FSPstat list[]=new FSPstat[e.list.length];
+		for(int i=0;i<list.length;i++)
+			list[i]=copy(e.list[i],e.list[i].name);
+		return list;
+	}
+
+	/** Stores directory listing and information about its entries. */
+	synchronized void putList(String directory, FSPstat list[])
+	{
+		/* listing would evict itself */
+		if(ttl<=0 || list.length>=size)
+			return;
+		directory=normalize(directory);
+		Entry e=entry(directory);
+		e.list=new FSPstat[list.length];
+		for(int i=0;i<list.length;i++)
+			e.list[i]=copy(list[i],list[i].name);
+		e.listexpires=System.currentTimeMillis()+ttl;
+		for(int i=0;i<list.length;i++)
+			putEntry(directory,list[i]);
+	}
+
+	/* get or create entry */
+	private Entry entry(String path)
+	{
+		Entry e=entries.get(path);
+		if(e==null)
+		{
+			e=new Entry();
+			/* index first, put can evict new entry from tiny cache */
+			link(path);
+			entries.put(path,e);
+		}
+		return e;
+	}
+
+	/* add path and its parents to directory index */
+	private void link(String path)
+	{
+		while(!path.equals("/"))
+		{
+			String dir=parent(path);
+			Set<String> c=children.get(dir);
+			if(c==null)
+			{
+				c=new HashSet<String>();
+				children.put(dir,c);
+			}
+			if(!c.add(path))
+				return;
+			path=dir;
+		}
+	}
+
+	/* remove path without entry and children from directory index */
+	private void unlink(String path)
+	{
+		while(!path.equals("/") && !entries.containsKey(path) && !children.containsKey(path))
+		{
+			String dir=parent(path);
+			Set<String> c=children.get(dir);
+			if(c==null)
+				return;
+			c.remove(path);
+			if(!c.isEmpty())
+				return;
+			children.remove(dir);
+			path=dir;
+		}
+	}
+
+	/** Stores information about one directory entry. */
+	synchronized void putEntry(String directory, FSPstat entry)
+	{
+		if(ttl<=0 || entry.name.equals(".") || entry.name.equals(".."))
+			return;
+		putStat(child(normalize(directory),entry.name),entry);
+	}
+
+	/** Returns copy of stat object with given name. */
+	static FSPstat copy(FSPstat stat, String name)
+	{
+		FSPstat rc=new FSPstat();
+		rc.name=name;
+		rc.length=stat.length;
+		rc.lastmod=stat.lastmod;
+		rc.type=stat.type;
+		return rc;
+	}
+
+	/* canonical form of path used as cache key */
+	static String normalize(String path)
+	{
+		if(path==null || path.length()==0)
+			return "/";
+		StringBuilder sb=new StringBuilder(path.length()+1);
+		if(path.charAt(0)!='/')
+			sb.append('/');
+		for(int i=0;i<path.length();i++)
+		{
+			char c=path.charAt(i);
+			if(c=='/' && sb.length()>0 && sb.charAt(sb.length()-1)=='/')
+				continue;
+			sb.append(c);
+		}
+		if(sb.length()>1 && sb.charAt(sb.length()-1)=='/')
+			sb.setLength(sb.length()-1);
+		return sb.toString();
+	}
+
+	/* parent directory of normalized path */
+	static String parent(String path)
+	{
+		int n=path.lastIndexOf('/');
+		if(n<1)
+			return "/";
+		return path.substring(0,n);
+	}
+
+	/* path of directory entry */
+	static String child(String directory, String name)
+	{
+		if(directory.endsWith("/"))
+			return directory+name;
+		return directory+"/"+name;
+	}
+}
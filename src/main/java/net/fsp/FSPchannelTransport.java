@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * FSP transport based on java.nio.channels.DatagramChannel.
+ * <p>
+ * Channel is connected to FSP server, datagrams from other hosts are
+ * filtered by kernel. Packets are encoded and decoded directly in
+ * direct ByteBuffers.
+ *
+ * @author Radim Kolar
+ * @see FSPtransport
+ * @since 1.1
+ */
+class FSPchannelTransport implements FSPtransport
+{
+	private DatagramChannel channel;
+	private Selector selector;
+	private ByteBuffer tx;
+	private ByteBuffer rx;
+	/* view of received packet */
+	private FSPcodec codec=new FSPcodec();
+
+	/**
+	 * Creates transport connected to given server.
+	 *
+	 * @param host address of FSP server
+	 * @param port port number of FSP server
+	 */
+	FSPchannelTransport(InetAddress host, int port) throws IOException
+	{
+		channel=DatagramChannel.open();
+		try
+		{
+			channel.connect(new InetSocketAddress(host,port));
+			channel.configureBlocking(false);
+			selector=Selector.open();
+			channel.register(selector,SelectionKey.OP_READ);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		setPayload(FSPpacket.SPACE);
+	}
+
+	public void send(FSPpacket pkt) throws IOException
+	{
+		pkt.assemble(tx);
+		channel.write(tx);
+	}
+
+	public boolean receive(FSPpacket pkt, int wait, boolean copy) throws IOException
+	{
+		long deadline=System.nanoTime()+wait*1000000L;
+		while(true)
+		{
+			rx.clear();
+			if(channel.read(rx)>0)
+			{
+				rx.flip();
+				return pkt.disassemble(rx,copy);
+			}
+			long left=(deadline-System.nanoTime())/1000000L;
+			if(left<=0)
+				throw new SocketTimeoutException("Receive timed out");
+			selector.select(left);
+			selector.selectedKeys().clear();
+			/* interrupt wakes up selector, do not spin until timeout */
+			if(Thread.currentThread().isInterrupted())
+				throw new InterruptedIOException("Interrupted");
+		}
+	}
+
+	public ByteBuffer payload(FSPpacket pkt)
+	{
+		ByteBuffer view=codec.wrap(rx).data();
+		/* caller can shorten data */
+		view.limit(view.position()+pkt.bb_len);
+		return view;
+	}
+
+	public void setPayload(int space)
+	{
+		tx=ByteBuffer.allocateDirect(space+FSPpacket.HSIZE);
+		rx=ByteBuffer.allocateDirect(space+FSPpacket.HSIZE);
+	}
+
+	public <T> void setOption(SocketOption<T> name, T value) throws IOException
+	{
+		channel.setOption(name,value);
+	}
+
+	public void close()
+	{
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e) {}
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e) {}
+	}
+}
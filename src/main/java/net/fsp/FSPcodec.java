@@ -0,0 +1,289 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes FSP packets in place.
+ * <p>
+ * FSPcodec is a flyweight over ByteBuffer or byte array holding one
+ * datagram. Header fields and checksum are read and written directly
+ * in the buffer, payload is available as read-only view of the buffer.
+ * No data are copied and no objects are allocated per packet, as long
+ * as the same buffer is wrapped again.
+ * <p>
+ * Packet starts at buffer position and ends at buffer limit. FSPcodec
+ * is not thread safe.
+ *
+ * @author Radim Kolar
+ * @see FSPpacket
+ * @since 1.1
+ */
+public final class FSPcodec
+{
+	private ByteBuffer bb;
+	private ByteBuffer view;
+	private byte array[];
+	private int base;
+	private int length;
+	private boolean serverside;
+
+	/**
+	 * Creates codec for client side packets.
+	 *
+	 * @since 1.1
+	 */
+	public FSPcodec()
+	{
+		this(false);
+	}
+
+	/**
+	 * Creates codec.
+	 *
+	 * @param serverside use server side checksum method
+	 * @since 1.1
+	 */
+	public FSPcodec(boolean serverside)
+	{
+		this.serverside=serverside;
+	}
+
+	/**
+	 * Attaches codec to packet stored in buffer between position and
+	 * limit. Buffer position and limit are not changed.
+	 *
+	 * @param bb buffer with packet
+	 * @return this codec
+	 * @since 1.1
+	 */
+	public FSPcodec wrap(ByteBuffer bb)
+	{
+		if(bb!=this.bb)
+		{
+			this.bb=bb;
+			view=bb.asReadOnlyBuffer();
+			array=null;
+		}
+		base=bb.position();
+		length=bb.remaining();
+		return this;
+	}
+
+	/**
+	 * Attaches codec to packet stored in byte array.
+	 *
+	 * @param data array with packet
+	 * @param offset start of packet in array
+	 * @param length length of packet
+	 * @return this codec
+	 * @since 1.1
+	 */
+	public FSPcodec wrap(byte data[], int offset, int length)
+	{
+		if(data!=array)
+		{
+			bb=ByteBuffer.wrap(data);
+			view=bb.asReadOnlyBuffer();
+			array=data;
+		}
+		base=offset;
+		this.length=length;
+		return this;
+	}
+
+	/**
+	 * Checks if packet is complete and its checksum is valid.
+	 *
+	 * @return true if packet is valid FSP packet
+	 * @since 1.1
+	 */
+	public boolean isValid()
+	{
+		if(length<FSPpacket.HSIZE)
+			return false;
+		int len=getDataLength();
+		if(len>length-FSPpacket.HSIZE)
+			return false;
+		return checksum(bb,base,length,serverside)==bb.get(base+1);
+	}
+
+	/**
+	 * Computes checksum and stores it to packet.
+	 *
+	 * @since 1.1
+	 */
+	public void sign()
+	{
+		bb.put(base+1,checksum(bb,base,length,!serverside));
+	}
+
+	/**
+	 * Writes packet header and sets packet length. Payload should be
+	 * already stored after header or written by payload setters.
+	 *
+	 * @param cmd FSP command
+	 * @param key server access key
+	 * @param seq sequence number
+	 * @param datalen length of data
+	 * @param pos file position
+	 * @param xtralen length of extra data
+	 * @since 1.1
+	 */
+	public void setHeader(byte cmd, short key, short seq, int datalen, int pos, int xtralen)
+	{
+		length=FSPpacket.HSIZE+datalen+xtralen;
+		bb.put(base,cmd);
+		bb.put(base+1,(byte)0);
+		bb.putShort(base+2,key);
+		bb.putShort(base+4,seq);
+		bb.putShort(base+6,(short)datalen);
+		bb.putInt(base+8,pos);
+	}
+
+	/** @return FSP command
+	 *  @since 1.1 */
+	public byte getCommand()
+	{
+		return bb.get(base);
+	}
+
+	/** @return checksum stored in packet
+	 *  @since 1.1 */
+	public byte getChecksum()
+	{
+		return bb.get(base+1);
+	}
+
+	/** @return server access key
+	 *  @since 1.1 */
+	public short getKey()
+	{
+		return bb.getShort(base+2);
+	}
+
+	/** Sets server access key, packet must be signed again.
+	 *  @param key new key
+	 *  @since 1.1 */
+	public void setKey(short key)
+	{
+		bb.putShort(base+2,key);
+	}
+
+	/** @return sequence number
+	 *  @since 1.1 */
+	public short getSequence()
+	{
+		return bb.getShort(base+4);
+	}
+
+	/** Sets sequence number, packet must be signed again.
+	 *  @param seq new sequence number
+	 *  @since 1.1 */
+	public void setSequence(short seq)
+	{
+		bb.putShort(base+4,seq);
+	}
+
+	/** @return length of data
+	 *  @since 1.1 */
+	public int getDataLength()
+	{
+		return bb.getShort(base+6) & 0xFFFF;
+	}
+
+	/** @return file position
+	 *  @since 1.1 */
+	public int getPosition()
+	{
+		return bb.getInt(base+8);
+	}
+
+	/** @return length of extra data
+	 *  @since 1.1 */
+	public int getXtraLength()
+	{
+		return length-FSPpacket.HSIZE-getDataLength();
+	}
+
+	/** @return length of whole packet
+	 *  @since 1.1 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Returns data part of payload. Returned view is reused by next call,
+	 * its content is valid until buffer is changed.
+	 *
+	 * @return read-only buffer with data between position and limit
+	 * @since 1.1
+	 */
+	public ByteBuffer data()
+	{
+		view.limit(base+FSPpacket.HSIZE+getDataLength());
+		view.position(base+FSPpacket.HSIZE);
+		return view;
+	}
+
+	/**
+	 * Returns extra data part of payload. Returned view is reused by
+	 * next call, its content is valid until buffer is changed.
+	 *
+	 * @return read-only buffer with extra data between position and limit
+	 * @since 1.1
+	 */
+	public ByteBuffer xtra()
+	{
+		view.limit(base+length);
+		view.position(base+FSPpacket.HSIZE+getDataLength());
+		return view;
+	}
+
+	/**
+	 * Computes FSP checksum of packet. Checksum byte in packet is counted
+	 * as zero.
+	 *
+	 * @param bb buffer with packet
+	 * @param base start of packet in buffer
+	 * @param length length of packet
+	 * @param addlength add packet length to sum. Client adds length to
+	 *        sent packets, server to received packets.
+	 * @return checksum
+	 */
+	static byte checksum(ByteBuffer bb, int base, int length, boolean addlength)
+	{
+		if(bb.hasArray())
+			return checksum(bb.array(),bb.arrayOffset()+base,length,addlength);
+		int nsum=addlength ? length : 0;
+		for(int t=base+length-1;t>=base;t--)
+			nsum+=(bb.get(t) & 0xFF);
+		nsum-=(bb.get(base+1) & 0xFF);
+		return (byte)(nsum + (nsum >>> 8));
+	}
+
+	/**
+	 * Computes FSP checksum of packet stored in array.
+	 *
+	 * @see #checksum(ByteBuffer, int, int, boolean)
+	 */
+	static byte checksum(byte data[], int base, int length, boolean addlength)
+	{
+		int nsum=addlength ? length : 0;
+		for(int t=base+length-1;t>=base;t--)
+			nsum+=(data[t] & 0xFF);
+		nsum-=(data[base+1] & 0xFF);
+		return (byte)(nsum + (nsum >>> 8));
+	}
+}
@@ -0,0 +1,106 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy directory listing.
+ * <p>
+ * Next CC_GET_DIR block is requested only after all entries from
+ * previous block were returned, so only one block is kept in memory.
+ * Network errors are thrown as UncheckedIOException.
+ *
+ * @author Radim Kolar
+ * @see FSPutil#iterate(FSPsession, String)
+ * @since 1.1
+ */
+class FSPdirIterator implements Iterator<FSPstat>
+{
+	private FSPsession ses;
+	private String directory;
+	private byte fname[];
+	private FSPcache cache;
+
+	/* entries from current block */
+	private ArrayList<FSPstat> block;
+	private int index;
+	/* position of next block */
+	private int pos;
+	private boolean last;
+
+	/**
+	 * Creates iterator over directory entries.
+	 *
+	 * @param session live FSPsession
+	 * @param directory directory to be listed
+	 */
+	FSPdirIterator(FSPsession session,String directory)
+	{
+		ses=session;
+		this.directory=directory;
+		fname=FSPutil.stringToASCIIZ(directory);
+		cache=session.getCache();
+		block=new ArrayList<FSPstat>(64);
+	}
+
+	public boolean hasNext()
+	{
+		while(index>=block.size())
+		{
+			if(last) return false;
+			try
+			{
+				fetch();
+			}
+			catch (IOException e)
+			{
+				last=true;
+				throw new UncheckedIOException(e);
+			}
+		}
+		return true;
+	}
+
+	public FSPstat next()
+	{
+		if(!hasNext())
+			throw new NoSuchElementException();
+		FSPstat rc=block.get(index);
+		block.set(index++,null);
+		return rc;
+	}
+
+	/* read next directory block */
+	private void fetch() throws IOException
+	{
+		block.clear();
+		index=0;
+		FSPpacket pkt=ses.interact(FSPpacket.CC_GET_DIR,pos,fname,0,fname.length,null,0,0);
+		pkt.expect(FSPpacket.CC_GET_DIR);
+		if(pkt.bb_len==0)
+		{
+			last=true;
+			return;
+		}
+		pos+=pkt.bb_len;
+		if(!FSPutil.parseDirBlock(pkt,block))
+			last=true;
+		if(cache!=null)
+			for(int i=0;i<block.size();i++)
+				cache.putEntry(directory,block.get(i));
+	}
+}
@@ -0,0 +1,239 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Windowed file download engine.
+ * <p>
+ * FSPdownloader keeps multiple CC_GET_FILE requests for consecutive
+ * blocks in flight and returns received blocks in file order. If server
+ * returns shorter block than requested, only missing part of that block
+ * is requested again; requests for following blocks stay in flight.
+ * Requests run at most window blocks ahead of returned position, so
+ * blocks received after lost block are buffered in bounded memory.
+ * <p>
+ * Unordered downloader returns blocks as they arrive. It needs known
+ * range length and caller must write every block at its bb_pos.
+ *
+ * @author Radim Kolar
+ * @see FSPpipeline
+ * @since 1.1
+ */
+class FSPdownloader
+{
+	private FSPpipeline pipe;
+	private byte fname[];
+	private byte getsize[];
+	private int blocksize;
+	/* maximum distance of requests ahead of returned position */
+	private long ahead;
+
+	/* next position to be returned to caller */
+	private long expected;
+	/* next position to be requested */
+	private long nextreq;
+	/* end of requested range, -1 for end of file */
+	private long end;
+	/* end of file position if known */
+	private long eofpos=-1;
+
+	private HashMap<Long, FSPpacket> done;
+	private FSPpacket last;
+
+	private boolean ordered=true;
+	/* end of every requested block by its position */
+	private HashMap<Long, Long> requested;
+	/* parts of blocks missing after short reply */
+	private ArrayDeque<long[]> holes;
+
+	/**
+	 * Creates new downloader.
+	 *
+	 * @param session FSPsession to use
+	 * @param filename filename on FSP server
+	 * @param start_from offset where to start download
+	 * @param byteswanted how many bytes to download, &lt; 0 for all
+	 */
+	FSPdownloader(FSPsession session,String filename,long start_from,long byteswanted)
+	{
+		pipe=new FSPpipeline(session,session.transferWindow());
+		fname=FSPutil.stringToASCIIZ(filename);
+		getsize=session.blockSizeRequest();
+		blocksize=session.getPayload();
+		ahead=(long)session.transferWindow()*blocksize;
+		expected=nextreq=start_from;
+		end=byteswanted<0 ? -1 : start_from+byteswanted;
+		done=new HashMap<Long, FSPpacket>();
+		requested=new HashMap<Long, Long>();
+		holes=new ArrayDeque<long[]>();
+	}
+
+	/**
+	 * Creates unordered downloader.
+	 *
+	 * @param session FSPsession to use
+	 * @param filename filename on FSP server
+	 * @param start_from offset where to start download
+	 * @param byteswanted how many bytes to download
+	 * @param ordered false to return blocks in order of arrival
+	 */
+	FSPdownloader(FSPsession session,String filename,long start_from,long byteswanted,boolean ordered)
+	{
+		this(session,filename,start_from,byteswanted);
+		if(!ordered)
+		{
+			if(byteswanted<0)
+				throw new IllegalArgumentException("Unordered download needs known length");
+			this.ordered=false;
+		}
+	}
+
+	/**
+	 * Shortens requested range. Blocks behind new end are not requested
+	 * anymore, replies to blocks already in flight are ignored.
+	 *
+	 * @param newend new end of requested range
+	 */
+	void limit(long newend)
+	{
+		if(newend<expected)
+			newend=expected;
+		if(end<0 || newend<end)
+			end=newend;
+	}
+
+	/**
+	 * Returns next block of file. Block data are in buf field of returned
+	 * packet and they are valid until next call.
+	 *
+	 * @return next block or null on end of file
+	 * @throws IOException if i/o or net error ocured during file transfer
+	 */
+	FSPpacket next() throws IOException
+	{
+		if(last!=null)
+		{
+			pipe.recycle(last);
+			last=null;
+		}
+		if(!ordered)
+			return nextUnordered();
+		while(true)
+		{
+			if(expected==end || expected==eofpos)
+				return null;
+			FSPpacket pkt=done.remove(Long.valueOf(expected));
+			if(pkt!=null)
+			{
+				pkt.expect(FSPpacket.CC_GET_FILE);
+				if(pkt.bb_len==0)
+				{
+					eofpos=expected;
+					pipe.clear();
+					return null;
+				}
+				if(end>=0 && pkt.bb_len>end-expected)
+					pkt.bb_len=(short)(end-expected);
+				expected+=pkt.bb_len;
+				last=pkt;
+				return pkt;
+			}
+			/* fill window, missing parts of short blocks first. Blocks
+			 * waiting for lost block are buffered, do not run ahead. */
+			while(pipe.canSubmit() && (!holes.isEmpty() || (end<0 || nextreq<end) && (eofpos<0 || nextreq<eofpos) && nextreq-expected<ahead))
+				request();
+			pkt=pipe.take();
+			long pos=pkt.bb_pos & 0xffffffffL;
+			Long to=requested.remove(Long.valueOf(pos));
+			if(to==null || pos<expected)
+			{
+				/* late reply to request made again */
+				pipe.recycle(pkt);
+				continue;
+			}
+			if(pkt.cmd==FSPpacket.CC_GET_FILE)
+			{
+				long wanted=to.longValue()-pos;
+				if(pkt.bb_len==0)
+				{
+					if(eofpos<0 || pos<eofpos)
+						eofpos=pos;
+				}
+				else
+					if(pkt.bb_len>wanted)
+						pkt.bb_len=(short)wanted;
+					else
+						if(pkt.bb_len<wanted && (end<0 || pos+pkt.bb_len<end))
+							/* ask for the rest, it can be end of file */
+							holes.add(new long[] {pos+pkt.bb_len,to.longValue()});
+			}
+			done.put(Long.valueOf(pos),pkt);
+		}
+	}
+
+	/* request missing part of short block or next block */
+	private void request()
+	{
+		long from,to;
+		if(!holes.isEmpty())
+		{
+			long h[]=holes.poll();
+			from=h[0];
+			to=h[1];
+		}
+		else
+		{
+			from=nextreq;
+			to=end<0 ? nextreq+blocksize : Math.min(end,nextreq+blocksize);
+			nextreq=to;
+		}
+		requested.put(Long.valueOf(from),Long.valueOf(to));
+		pipe.submit(FSPpacket.CC_GET_FILE,from,fname,0,fname.length,getsize,0,getsize==null ? 0 : getsize.length);
+	}
+
+	/* returns any received block, block position is in bb_pos */
+	private FSPpacket nextUnordered() throws IOException
+	{
+		while(true)
+		{
+			/* fill window, missing parts of short blocks first */
+			while(pipe.canSubmit() && (!holes.isEmpty() || nextreq<end))
+				request();
+			if(requested.isEmpty())
+				return null;
+			FSPpacket pkt=pipe.take();
+			long pos=pkt.bb_pos & 0xffffffffL;
+			Long to=requested.remove(Long.valueOf(pos));
+			if(to==null)
+			{
+				/* late reply to request made again */
+				pipe.recycle(pkt);
+				continue;
+			}
+			pkt.expect(FSPpacket.CC_GET_FILE);
+			long wanted=to.longValue()-pos;
+			if(pkt.bb_len==0)
+				throw new IOException("Unexpected end of file at "+pos);
+			if(pkt.bb_len>wanted)
+				pkt.bb_len=(short)wanted;
+			else
+				if(pkt.bb_len<wanted)
+					holes.add(new long[] {pos+pkt.bb_len,to.longValue()});
+			last=pkt;
+			return pkt;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Shared state of one FSP server (host:port).
+ * <p>
+ * Holds access key, round trip time estimator used for computing
+ * retransmit timeout, optional metadata cache and transfer metrics.
+ * Smoothed RTT and RTT variance are computed by Jacobson's algorithm,
+ * samples are taken only from packets which were not resent (Karn's
+ * algorithm). All sessions talking to same server share one instance.
+ * <p>
+ * FSP server accepts only key from its last reply, so only one request
+ * can be in flight to the same server. Sessions take host lock for the
+ * time of request, like fspd clients do, and transfers use window 1.
+ * If server is marked as lenient, it accepts older keys: host lock is
+ * not taken, sessions send requests concurrently and transfers keep
+ * whole window in flight. Every reply carries new key and key from the
+ * latest sent request wins.
+ *
+ * @author Radim Kolar
+ * @see FSPsession
+ * @since 1.1
+ */
+class FSPhost
+{
+	/* smoothed round trip time in msec, negative if not measured yet */
+	private float srtt=-1;
+	/* round trip time variance in msec */
+	private float rttvar;
+	/* current retransmit timeout in msec */
+	private int rto;
+	/* metadata cache, null if disabled */
+	volatile FSPcache cache;
+	/* transfer metrics of all sessions */
+	final FSPmetrics metrics=new FSPmetrics(null);
+	/* access key for next request */
+	private short key;
+	/* ticket of request which brought current key */
+	private long keyticket=-1;
+	/* ticket of last sent request */
+	private long ticket;
+	/* one request in flight, not owned by thread */
+	private final Semaphore permit=new Semaphore(1,true);
+	/* reactor has requests waiting for host lock */
+	volatile boolean contended;
+	/* server accepts older keys, host lock is not used */
+	volatile boolean lenient;
+
+	/**
+	 * Takes host lock, waits until request of other session is answered.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void lock() throws InterruptedException
+	{
+		permit.acquire();
+	}
+
+	/**
+	 * Takes host lock if it is free.
+	 *
+	 * @return true if lock was taken
+	 */
+	boolean tryLock()
+	{
+		return permit.tryAcquire();
+	}
+
+	/** Releases host lock, wakes up reactor waiting for it. */
+	void unlock()
+	{
+		permit.release();
+		if(contended)
+			FSPreactor.wakeup();
+	}
+
+	/**
+	 * Gets ticket for request which is going to be sent. Tickets are
+	 * increasing in order of sending.
+	 *
+	 * @return request ticket
+	 */
+	synchronized long ticket()
+	{
+		return ++ticket;
+	}
+
+	/**
+	 * Gets access key for request.
+	 *
+	 * @return current key
+	 */
+	synchronized short getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Stores key received from server. Replies can arrive in different
+	 * order than requests were sent, key from reply to request sent
+	 * earlier than request which brought current key is ignored.
+	 *
+	 * @param key key from reply
+	 * @param ticket ticket of request which was answered
+	 */
+	synchronized void setKey(short key, long ticket)
+	{
+		if(ticket<keyticket)
+			return;
+		this.key=key;
+		keyticket=ticket;
+	}
+
+	/**
+	 * Adds round trip time sample.
+	 *
+	 * @param nanos round trip time of packet which was sent only once
+	 */
+	synchronized void sample(long nanos)
+	{
+		float rtt=nanos/1000000f;
+		if(srtt<0)
+		{
+			srtt=rtt;
+			rttvar=rtt/2;
+		}
+		else
+		{
+			rttvar=0.75f*rttvar+0.25f*Math.abs(srtt-rtt);
+			srtt=0.875f*srtt+0.125f*rtt;
+		}
+		rto=(int)Math.ceil(srtt+Math.max(1f,4*rttvar));
+	}
+
+	/**
+	 * Keeps backed off timeout after packet loss until next valid
+	 * sample is taken.
+	 *
+	 * @param delay resent delay used after packet loss
+	 */
+	synchronized void backoff(int delay)
+	{
+		if(srtt>=0 && delay>rto)
+			rto=delay;
+	}
+
+	/**
+	 * Gets retransmit timeout.
+	 *
+	 * @param initial timeout used if round trip time was not measured yet
+	 * @param min minimum timeout
+	 * @param max maximum timeout
+	 * @return timeout in msec
+	 */
+	synchronized int getTimeout(int initial, int min, int max)
+	{
+		if(srtt<0)
+			return initial;
+		return Math.max(min,Math.min(max,rto));
+	}
+
+	/**
+	 * Gets smoothed round trip time.
+	 *
+	 * @return rtt in msec or -1 if not measured yet
+	 */
+	synchronized float getRTT()
+	{
+		return srtt;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event of one FSP request and reply exchange.
+ * <p>
+ * Event is emitted by FSPsession.interact(). Fields are filled only if
+ * event is going to be committed, so disabled event costs nothing.
+ *
+ * @author Radim Kolar
+ * @see FSPsession#interact(byte, long, byte[], int, int, byte[], int, int)
+ * @since 1.1
+ */
+@Name("net.fsp.Interact")
+@Label("FSP Request")
+@Category({"FSP"})
+@Description("FSP request sent to server and its reply")
+@StackTrace(false)
+class FSPinteractEvent extends Event
+{
+	@Label("Command")
+	String command;
+
+	@Label("Host")
+	String host;
+
+	@Label("File Position")
+	long position;
+
+	@Label("Attempts")
+	@Description("Number of times the request was sent")
+	int attempts;
+
+	@Label("Round Trip Time")
+	@Description("Time between last send and reply")
+	@Timespan(Timespan.NANOSECONDS)
+	long rtt;
+
+	@Label("Outcome")
+	String outcome;
+
+	/** Fills fields and commits event if it is enabled. */
+	void end(byte cmd, String host, long position, int attempts, long rtt, String outcome)
+	{
+		if(!shouldCommit())
+			return;
+		this.command=commandName(cmd);
+		this.host=host;
+		this.position=position;
+		this.attempts=attempts;
+		this.rtt=rtt;
+		this.outcome=outcome;
+		commit();
+	}
+
+	/** Converts FSP command code to its name. */
+	static String commandName(byte cmd)
+	{
+		switch(cmd)
+		{
+		case FSPpacket.CC_VERSION:   return "CC_VERSION";
+		case FSPpacket.CC_INFO:      return "CC_INFO";
+		case FSPpacket.CC_ERR:       return "CC_ERR";
+		case FSPpacket.CC_GET_DIR:   return "CC_GET_DIR";
+		case FSPpacket.CC_GET_FILE:  return "CC_GET_FILE";
+		case FSPpacket.CC_UP_LOAD:   return "CC_UP_LOAD";
+		case FSPpacket.CC_INSTALL:   return "CC_INSTALL";
+		case FSPpacket.CC_DEL_FILE:  return "CC_DEL_FILE";
+		case FSPpacket.CC_DEL_DIR:   return "CC_DEL_DIR";
+		case FSPpacket.CC_GET_PRO:   return "CC_GET_PRO";
+		case FSPpacket.CC_SET_PRO:   return "CC_SET_PRO";
+		case FSPpacket.CC_MAKE_DIR:  return "CC_MAKE_DIR";
+		case FSPpacket.CC_BYE:       return "CC_BYE";
+		case FSPpacket.CC_GRAB_FILE: return "CC_GRAB_FILE";
+		case FSPpacket.CC_GRAB_DONE: return "CC_GRAB_DONE";
+		case FSPpacket.CC_STAT:      return "CC_STAT";
+		case FSPpacket.CC_RENAME:    return "CC_RENAME";
+		case FSPpacket.CC_LIMIT:     return "CC_LIMIT";
+		case FSPpacket.CC_TEST:      return "CC_TEST";
+		default:                     return "0x"+Integer.toHexString(cmd & 0xFF);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Signals that thread waiting for FSP server was interrupted.
+ * <p>
+ * It is a SocketTimeoutException, so FSPsession.interact() keeps its
+ * declared exception and callers which handle timeout stop on
+ * interrupt too. Interrupt status of thread is kept set.
+ *
+ * @author Radim Kolar
+ * @see FSPsession#interact(byte, long, byte[], int, int, byte[], int, int)
+ * @since 1.1
+ */
+public class FSPinterruptedException extends SocketTimeoutException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates exception with detail message.
+	 *
+	 * @param msg detail message
+	 * @since 1.1
+	 */
+	public FSPinterruptedException(String msg)
+	{
+		super(msg);
+	}
+}
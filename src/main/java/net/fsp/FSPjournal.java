@@ -0,0 +1,230 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Progress journal of resumable download.
+ * <p>
+ * Journal is stored in sidecar file next to downloaded file. It holds
+ * modification time and length of remote file and list of byte ranges
+ * already written to local file. Journal is saved at most once per
+ * second, after local file data were forced to disk.
+ *
+ * @author Radim Kolar
+ * @see FSPutil#downloadResumable(FSPsession, String, File)
+ * @since 1.1
+ */
+class FSPjournal
+{
+	/** suffix of journal file */
+	final static String SUFFIX=".fspjournal";
+	/* minimum time between journal saves (msec) */
+	private final static long SAVE_INTERVAL=1000;
+
+	private File file;
+	private long lastmod;
+	private long length;
+	/* sorted non overlapping ranges, start and end */
+	private ArrayList<long[]> ranges=new ArrayList<long[]>();
+	private long lastsave;
+
+	private FSPjournal(File file, long lastmod, long length)
+	{
+		this.file=file;
+		this.lastmod=lastmod;
+		this.length=length;
+	}
+
+	/**
+	 * Opens journal for local file. If journal does not exist, it is
+	 * damaged or remote file was changed, empty journal is returned.
+	 *
+	 * @param target local file
+	 * @param stat information about remote file
+	 * @return journal
+	 */
+	static FSPjournal open(File target, FSPstat stat)
+	{
+		File f=new File(target.getPath()+SUFFIX);
+		FSPjournal j=new FSPjournal(f,stat.lastmod,stat.length);
+		if(!target.exists() || !f.exists())
+			return j;
+		Properties p=new Properties();
+		try
+		{
+			InputStream is=new FileInputStream(f);
+			try
+			{
+				p.load(is);
+			}
+			finally
+			{
+				is.close();
+			}
+			if(Long.parseLong(p.getProperty("lastmod"))!=stat.lastmod ||
+			   Long.parseLong(p.getProperty("length"))!=stat.length)
+				return j;
+			String r=p.getProperty("ranges","").trim();
+			if(r.length()>0)
+			{
+				String items[]=r.split(",");
+				for(int i=0;i<items.length;i++)
+				{
+					int n=items[i].indexOf('-');
+					long start=Long.parseLong(items[i].substring(0,n));
+					long end=Long.parseLong(items[i].substring(n+1));
+					if(start<0 || end>stat.length || start>end)
+					{
+						j.ranges.clear();
+						return j;
+					}
+					j.add(start,end-start);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			j.ranges.clear();
+		}
+		catch (RuntimeException e)
+		{
+			/* damaged journal */
+			j.ranges.clear();
+		}
+		return j;
+	}
+
+	/** Returns true if journal has no completed ranges. */
+	synchronized boolean isEmpty()
+	{
+		return ranges.isEmpty();
+	}
+
+	/** Returns number of bytes already downloaded. */
+	synchronized long completed()
+	{
+		long rc=0;
+		for(long r[]:ranges)
+			rc+=r[1]-r[0];
+		return rc;
+	}
+
+	/** Records completed range. */
+	synchronized void add(long start, long len)
+	{
+		if(len<=0) return;
+		long end=start+len;
+		int i=0;
+		/* skip ranges before new one */
+		while(i<ranges.size() && ranges.get(i)[1]<start)
+			i++;
+		/* merge overlapping or adjacent ranges */
+		while(i<ranges.size() && ranges.get(i)[0]<=end)
+		{
+			long r[]=ranges.remove(i);
+			start=Math.min(start,r[0]);
+			end=Math.max(end,r[1]);
+		}
+		ranges.add(i,new long[] {start,end});
+	}
+
+	/** Returns ranges which are not downloaded yet. */
+	synchronized List<long[]> missing()
+	{
+		ArrayList<long[]> rc=new ArrayList<long[]>();
+		long pos=0;
+		for(long r[]:ranges)
+		{
+			if(r[0]>pos)
+				rc.add(new long[] {pos,r[0]});
+			pos=r[1];
+		}
+		if(pos<length)
+			rc.add(new long[] {pos,length});
+		return rc;
+	}
+
+	/**
+	 * Saves journal if last save is older than save interval.
+	 *
+	 * @param fc local file, forced to disk before save
+	 */
+	void checkpoint(FileChannel fc) throws IOException
+	{
+		synchronized(this)
+		{
+			if(System.currentTimeMillis()-lastsave<SAVE_INTERVAL)
+				return;
+			lastsave=System.currentTimeMillis();
+		}
+		save(fc);
+	}
+
+	/**
+	 * Saves journal.
+	 *
+	 * @param fc local file, forced to disk before save
+	 */
+	void save(FileChannel fc) throws IOException
+	{
+		Properties p=new Properties();
+		synchronized(this)
+		{
+			p.setProperty("lastmod",Long.toString(lastmod));
+			p.setProperty("length",Long.toString(length));
+			StringBuilder sb=new StringBuilder();
+			for(long r[]:ranges)
+			{
+				if(sb.length()>0) sb.append(',');
+				sb.append(r[0]).append('-').append(r[1]);
+			}
+			p.setProperty("ranges",sb.toString());
+		}
+		/* journal must not claim data which are not on disk yet,
+		 * ranges added after snapshot are saved next time */
+		fc.force(false);
+		File tmp=new File(file.getPath()+".tmp");
+		FileOutputStream os=new FileOutputStream(tmp);
+		try
+		{
+			p.store(os,"FSP download journal");
+			/* renamed journal must not be empty after crash */
+			os.getChannel().force(true);
+		}
+		finally
+		{
+			os.close();
+		}
+		if(!tmp.renameTo(file))
+		{
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("Can not write journal "+file);
+		}
+	}
+
+	/** Deletes journal after finished download. */
+	void delete()
+	{
+		file.delete();
+	}
+}
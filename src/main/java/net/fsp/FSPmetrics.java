@@ -0,0 +1,367 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Transfer metrics of FSP session or FSP server.
+ * <p>
+ * Every FSPsession has its own metrics and all sessions talking to the
+ * same server share host metrics. Session metrics are registered in
+ * platform MBean server as <code>net.fsp:type=Session,host="addr:port",id=N</code>
+ * until session is closed, host metrics as
+ * <code>net.fsp:type=Host,name="addr:port"</code>.
+ * <p>
+ * Recording is lock free and does not allocate, so metrics are always
+ * enabled.
+ *
+ * @author Radim Kolar
+ * @see FSPsession#getMetrics()
+ * @since 1.1
+ */
+public class FSPmetrics implements FSPmetricsMBean
+{
+	/* JMX domain */
+	private final static String DOMAIN="net.fsp";
+	/* histogram buckets, last one is up to 2^39 us */
+	private final static int BUCKETS=40;
+
+	/* log2 histogram of times */
+	private static final class Histogram
+	{
+		private final AtomicLongArray buckets=new AtomicLongArray(BUCKETS);
+		private final LongAdder count=new LongAdder();
+		private final LongAdder sum=new LongAdder();
+		private final AtomicLong max=new AtomicLong();
+
+		void add(long nanos)
+		{
+			long us=nanos/1000L;
+			int i=64-Long.numberOfLeadingZeros(us);
+			if(i>=BUCKETS) i=BUCKETS-1;
+			buckets.incrementAndGet(i);
+			count.increment();
+			sum.add(nanos);
+			long m;
+			while( (m=max.get()) < nanos)
+				if(max.compareAndSet(m,nanos))
+					break;
+		}
+
+		long count()
+		{
+			return count.sum();
+		}
+
+		double mean()
+		{
+			long n=count.sum();
+			return n==0 ? 0 : sum.sum()/1000000.0/n;
+		}
+
+		double max()
+		{
+			return max.get()/1000000.0;
+		}
+
+		/* upper bound of bucket containing percentile in msec */
+		double percentile(double p)
+		{
+			long h[]=snapshot();
+			long n=0;
+			for(int i=0;i<h.length;i++)
+				n+=h[i];
+			if(n==0)
+				return 0;
+			long rank=(long)Math.ceil(p*n);
+			long seen=0;
+			for(int i=0;i<h.length;i++)
+			{
+				seen+=h[i];
+				if(seen>=rank)
+					return Math.min((1L<<i)/1000.0,max());
+			}
+			return max();
+		}
+
+		long[] snapshot()
+		{
+			long h[]=new long[BUCKETS];
+			for(int i=0;i<BUCKETS;i++)
+				h[i]=buckets.get(i);
+			return h;
+		}
+
+		void reset()
+		{
+			for(int i=0;i<BUCKETS;i++)
+				buckets.set(i,0);
+			count.reset();
+			sum.reset();
+			max.set(0);
+		}
+	}
+
+	private final FSPmetrics parent;
+	private final LongAdder requests=new LongAdder();
+	private final LongAdder retransmits=new LongAdder();
+	private final LongAdder invalid=new LongAdder();
+	private final LongAdder discarded=new LongAdder();
+	private final LongAdder timeouts=new LongAdder();
+	private final LongAdder sent=new LongAdder();
+	private final LongAdder received=new LongAdder();
+	private final Histogram rtt=new Histogram();
+	private final Histogram latency=new Histogram();
+	private ObjectName name;
+
+	/**
+	 * Creates metrics.
+	 *
+	 * @param parent metrics which receive copy of all samples, can be null
+	 */
+	FSPmetrics(FSPmetrics parent)
+	{
+		this.parent=parent;
+	}
+
+	/* recording, called by FSPsession, FSPpipeline and FSPreactor */
+
+	void request()
+	{
+		requests.increment();
+		if(parent!=null) parent.request();
+	}
+
+	void retransmit()
+	{
+		retransmits.increment();
+		if(parent!=null) parent.retransmit();
+	}
+
+	void invalid()
+	{
+		invalid.increment();
+		if(parent!=null) parent.invalid();
+	}
+
+	void discarded()
+	{
+		discarded.increment();
+		if(parent!=null) parent.discarded();
+	}
+
+	void timeout()
+	{
+		timeouts.increment();
+		if(parent!=null) parent.timeout();
+	}
+
+	void sent(int bytes)
+	{
+		sent.add(bytes);
+		if(parent!=null) parent.sent(bytes);
+	}
+
+	void received(int bytes)
+	{
+		received.add(bytes);
+		if(parent!=null) parent.received(bytes);
+	}
+
+	void rtt(long nanos)
+	{
+		rtt.add(nanos);
+		if(parent!=null) parent.rtt(nanos);
+	}
+
+	void latency(long nanos)
+	{
+		latency.add(nanos);
+		if(parent!=null) parent.latency(nanos);
+	}
+
+	/**
+	 * Registers metrics in platform MBean server. Failures are ignored,
+	 * metrics are still available by API.
+	 *
+	 * @param properties key properties of object name
+	 */
+	synchronized void register(String properties)
+	{
+		try
+		{
+			MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+			ObjectName on=new ObjectName(DOMAIN+":"+properties);
+			if(server.isRegistered(on))
+				server.unregisterMBean(on);
+			server.registerMBean(this,on);
+			name=on;
+		}
+		catch (JMException e) {}
+		catch (SecurityException e) {}
+	}
+
+	/** Removes metrics from platform MBean server. */
+	synchronized void unregister()
+	{
+		if(name==null)
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch (JMException e) {}
+		catch (SecurityException e) {}
+		name=null;
+	}
+
+	/**
+	 * Gets name under which metrics are registered.
+	 *
+	 * @return object name or null if not registered
+	 * @since 1.1
+	 */
+	public synchronized ObjectName getObjectName()
+	{
+		return name;
+	}
+
+	public long getRequests()
+	{
+		return requests.sum();
+	}
+
+	public long getRetransmits()
+	{
+		return retransmits.sum();
+	}
+
+	public long getInvalidPackets()
+	{
+		return invalid.sum();
+	}
+
+	public long getDiscardedReplies()
+	{
+		return discarded.sum();
+	}
+
+	public long getTimeouts()
+	{
+		return timeouts.sum();
+	}
+
+	public long getBytesSent()
+	{
+		return sent.sum();
+	}
+
+	public long getBytesReceived()
+	{
+		return received.sum();
+	}
+
+	public long getRttCount()
+	{
+		return rtt.count();
+	}
+
+	public double getRttMean()
+	{
+		return rtt.mean();
+	}
+
+	public double getRttMax()
+	{
+		return rtt.max();
+	}
+
+	public double getRttP50()
+	{
+		return rtt.percentile(0.5);
+	}
+
+	public double getRttP90()
+	{
+		return rtt.percentile(0.9);
+	}
+
+	public double getRttP99()
+	{
+		return rtt.percentile(0.99);
+	}
+
+	public long[] getRttHistogram()
+	{
+		return rtt.snapshot();
+	}
+
+	public long getLatencyCount()
+	{
+		return latency.count();
+	}
+
+	public double getLatencyMean()
+	{
+		return latency.mean();
+	}
+
+	public double getLatencyMax()
+	{
+		return latency.max();
+	}
+
+	public double getLatencyP50()
+	{
+		return latency.percentile(0.5);
+	}
+
+	public double getLatencyP90()
+	{
+		return latency.percentile(0.9);
+	}
+
+	public double getLatencyP99()
+	{
+		return latency.percentile(0.99);
+	}
+
+	public long[] getLatencyHistogram()
+	{
+		return latency.snapshot();
+	}
+
+	/**
+	 * Clears all counters. Host metrics are not affected by reset of
+	 * session metrics.
+	 */
+	public void reset()
+	{
+		requests.reset();
+		retransmits.reset();
+		invalid.reset();
+		discarded.reset();
+		timeouts.reset();
+		sent.reset();
+		received.reset();
+		rtt.reset();
+		latency.reset();
+	}
+}
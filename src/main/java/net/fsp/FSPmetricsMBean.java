@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+/**
+ * JMX management interface of FSP transfer metrics.
+ * <p>
+ * Times are in milliseconds. Histograms have buckets of powers of two
+ * microseconds: bucket 0 counts samples under 1 us, bucket i counts
+ * samples from 2^(i-1) to 2^i - 1 us.
+ *
+ * @author Radim Kolar
+ * @see FSPmetrics
+ * @since 1.1
+ */
+public interface FSPmetricsMBean
+{
+	/** @return number of requests made */
+	long getRequests();
+
+	/** @return number of resent request packets */
+	long getRetransmits();
+
+	/** @return number of received packets with bad checksum or size */
+	long getInvalidPackets();
+
+	/** @return number of valid replies not matching any request in flight */
+	long getDiscardedReplies();
+
+	/** @return number of requests failed with timeout */
+	long getTimeouts();
+
+	/** @return bytes sent in FSP packets */
+	long getBytesSent();
+
+	/** @return bytes received in valid FSP packets */
+	long getBytesReceived();
+
+	/** @return number of round trip time samples */
+	long getRttCount();
+
+	/** @return mean round trip time */
+	double getRttMean();
+
+	/** @return maximum round trip time */
+	double getRttMax();
+
+	/** @return median round trip time, upper bound of histogram bucket */
+	double getRttP50();
+
+	/** @return 90th percentile of round trip time */
+	double getRttP90();
+
+	/** @return 99th percentile of round trip time */
+	double getRttP99();
+
+	/** @return round trip time histogram */
+	long[] getRttHistogram();
+
+	/** @return number of completed requests */
+	long getLatencyCount();
+
+	/** @return mean request latency */
+	double getLatencyMean();
+
+	/** @return maximum request latency */
+	double getLatencyMax();
+
+	/** @return median request latency */
+	double getLatencyP50();
+
+	/** @return 90th percentile of request latency */
+	double getLatencyP90();
+
+	/** @return 99th percentile of request latency */
+	double getLatencyP99();
+
+	/** @return request latency histogram */
+	long[] getLatencyHistogram();
+
+	/** Clears all counters. */
+	void reset();
+}
@@ -0,0 +1,886 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors directory tree from FSP server to local directory.
+ * <p>
+ * Directories are listed and files are downloaded in parallel by
+ * ForkJoinPool. Every task borrows session from FSPsessionPool, so
+ * number of sessions to server is bounded by pool and by mirror
+ * parallelism. Memory budget limits number of transfers running at
+ * once, every transfer needs window * packet size bytes of buffers.
+ * Sessions wait for each other unless server is marked as lenient by
+ * FSPsession.setLenientServer(), window is used only by lenient server.
+ * <p>
+ * Local files with the same length and modification time as remote
+ * files are not downloaded again. Files are downloaded to temporary
+ * file which is renamed after successful transfer. Optionally partial
+ * downloads are resumed, local files missing on server are deleted
+ * and state of mirrored files is kept in manifest file, so unchanged
+ * files are recognized even if local file system does not keep
+ * modification times. Dry run only reports changes which would be
+ * made, see getChanges(). Changes and progress counters are reset at
+ * start of every mirror() call.
+ *
+ * @author Radim Kolar
+ * @see FSPsessionPool
+ * @since 1.1
+ */
+public class FSPmirror
+{
+	/** default number of parallel tasks */
+	public final static int DEFAULT_PARALLELISM=4;
+	/** default memory budget for transfer buffers (bytes) */
+	public final static long DEFAULT_MEMORY_BUDGET=16*1024*1024;
+
+	/**
+	 * Receives progress of mirror operation. Listener is called from
+	 * worker threads after each file or directory is finished.
+	 *
+	 * @since 1.1
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * Called after file or directory was processed.
+		 *
+		 * @param mirror mirror with updated counters
+		 * @param path remote path which was processed
+		 */
+		void progress(FSPmirror mirror, String path);
+	}
+
+	/**
+	 * Change of local file made by mirror, or which would be made in
+	 * dry run.
+	 *
+	 * @since 1.1
+	 */
+	public static final class Change
+	{
+		/** file does not exist locally */
+		public final static int NEW=1;
+		/** local file is different from remote file */
+		public final static int UPDATE=2;
+		/** partial download is resumed */
+		public final static int RESUME=3;
+		/** local file or directory does not exist on server */
+		public final static int DELETE=4;
+
+		/** type of change */
+		public final int type;
+		/** remote path */
+		public final String path;
+		/** local file */
+		public final File local;
+		/** length of remote file, 0 for deleted files */
+		public final long length;
+
+		Change(int type, String path, File local, long length)
+		{
+			this.type=type;
+			this.path=path;
+			this.local=local;
+			this.length=length;
+		}
+
+		public String toString()
+		{
+			String names[]={"new","update","resume","delete"};
+			return names[type-1]+" "+path+" "+local+" "+length;
+		}
+	}
+
+	private FSPsessionPool pool;
+	private String host;
+	private int port;
+	private int parallelism=DEFAULT_PARALLELISM;
+	private long budget=DEFAULT_MEMORY_BUDGET;
+	private int window=1;
+	private Executor executor;
+	private boolean resume;
+	private boolean deleteorphans;
+	private boolean dryrun;
+	private File manifest;
+	private volatile ProgressListener listener;
+
+	private AtomicLong filesfound=new AtomicLong();
+	private AtomicLong bytesfound=new AtomicLong();
+	private AtomicLong filesdone=new AtomicLong();
+	private AtomicLong filesskipped=new AtomicLong();
+	private AtomicLong bytesdone=new AtomicLong();
+	private AtomicLong dirsdone=new AtomicLong();
+
+	/* state of running mirror operation */
+	private Semaphore memory;
+	private Executor transfers;
+	private int cost;
+	private ConcurrentLinkedQueue<IOException> errors;
+	private ConcurrentLinkedQueue<Change> changes=new ConcurrentLinkedQueue<Change>();
+	/* manifest of previous and current run, path to "length lastmod" */
+	private Properties known;
+	private Map<String, String> synced;
+
+	/**
+	 * Creates mirror using default session pool.
+	 *
+	 * @param host hostname of fsp server
+	 * @param port port number on fsp server
+	 * @since 1.1
+	 */
+	public FSPmirror(String host, int port)
+	{
+		this(FSPsessionPool.getDefault(),host,port);
+	}
+
+	/**
+	 * Creates mirror.
+	 *
+	 * @param pool session pool used for server access
+	 * @param host hostname of fsp server
+	 * @param port port number on fsp server
+	 * @since 1.1
+	 */
+	public FSPmirror(FSPsessionPool pool, String host, int port)
+	{
+		this.pool=pool;
+		this.host=host;
+		this.port=port;
+	}
+
+	/**
+	 * Mirrors remote directory tree to local directory. Local directories
+	 * are created if needed. Transfer continues after failure of single
+	 * file; first error is thrown at end with other errors attached as
+	 * suppressed exceptions. Manifest is saved even if some files failed,
+	 * it holds only files which are up to date.
+	 *
+	 * @param remote directory on FSP server
+	 * @param local local directory
+	 * @throws IOException if some files or directories were not mirrored
+	 * @since 1.1
+	 */
+	public void mirror(String remote, File local) throws IOException
+	{
+		synchronized(this)
+		{
+			if(errors!=null)
+				throw new IllegalStateException("Mirror is already running");
+			errors=new ConcurrentLinkedQueue<IOException>();
+			/* transfer buffers: window of packets and stream buffer */
+			cost=(Math.max(1,window)+1)*FSPpacket.MAXSIZE;
+			long permits=Math.max(1,Math.min(Integer.MAX_VALUE,budget/cost));
+			memory=new Semaphore((int)permits);
+			transfers=executor;
+			changes.clear();
+			/* counters describe last or running mirror */
+			filesfound.set(0);
+			bytesfound.set(0);
+			filesdone.set(0);
+			filesskipped.set(0);
+			bytesdone.set(0);
+			dirsdone.set(0);
+			if(manifest!=null)
+			{
+				known=loadManifest(manifest);
+				synced=new ConcurrentHashMap<String, String>();
+			}
+		}
+		ForkJoinPool fjp=new ForkJoinPool(parallelism);
+		try
+		{
+			fjp.invoke(new DirTask(remote,local));
+			if(synced!=null && !dryrun)
+			{
+				try
+				{
+					saveManifest(manifest,synced);
+				}
+				catch (IOException e)
+				{
+					errors.add(e);
+				}
+			}
+			IOException first=errors.poll();
+			if(first!=null)
+			{
+				IOException e;
+				while((e=errors.poll())!=null)
+					first.addSuppressed(e);
+				throw first;
+			}
+		}
+		finally
+		{
+			fjp.shutdown();
+			synchronized(this)
+			{
+				errors=null;
+				memory=null;
+				transfers=null;
+				known=null;
+				synced=null;
+			}
+		}
+	}
+
+	/* read manifest, damaged manifest is ignored */
+	private static Properties loadManifest(File f)
+	{
+		Properties p=new Properties();
+		if(!f.isFile())
+			return p;
+		try
+		{
+			InputStream is=new FileInputStream(f);
+			try
+			{
+				p.load(is);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException e)
+		{
+			p.clear();
+		}
+		catch (RuntimeException e)
+		{
+			p.clear();
+		}
+		return p;
+	}
+
+	private static void saveManifest(File f, Map<String, String> entries) throws IOException
+	{
+		Properties p=new Properties();
+		p.putAll(entries);
+		File tmp=new File(f.getPath()+".tmp");
+		OutputStream os=new FileOutputStream(tmp);
+		try
+		{
+			p.store(os,"FSP mirror manifest");
+		}
+		finally
+		{
+			os.close();
+		}
+		if(!tmp.renameTo(f))
+		{
+			f.delete();
+			if(!tmp.renameTo(f))
+				throw new IOException("Can not write manifest "+f);
+		}
+	}
+
+	/* temporary file for download */
+	private static File partial(File local)
+	{
+		return new File(local.getParentFile(),"."+local.getName()+".part");
+	}
+
+	/* lists one directory and processes its entries */
+	private class DirTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private String remote;
+		private File local;
+
+		DirTask(String remote, File local)
+		{
+			this.remote=remote;
+			this.local=local;
+		}
+
+		protected void compute()
+		{
+			FSPstat entries[];
+			try
+			{
+				if(!dryrun && !local.isDirectory() && !local.mkdirs())
+					throw new IOException("Can not create directory "+local);
+				FSPsession ses=pool.acquire(host,port);
+				try
+				{
+					entries=FSPutil.statlist(ses,remote);
+				}
+				catch (IOException e)
+				{
+					pool.invalidate(ses);
+					ses=null;
+					throw e;
+				}
+				finally
+				{
+					if(ses!=null)
+						pool.release(ses);
+				}
+			}
+			catch (IOException e)
+			{
+				errors.add(e);
+				return;
+			}
+			List<RecursiveAction> tasks=new ArrayList<RecursiveAction>(entries.length);
+			List<CompletableFuture<Void>> files=new ArrayList<CompletableFuture<Void>>();
+			Set<String> names=new HashSet<String>();
+			for(int i=0;i<entries.length;i++)
+			{
+				FSPstat st=entries[i];
+				/* do not leave target directory */
+				if(st.name.equals(".") || st.name.equals("..") || st.name.indexOf('/')>=0 || st.name.indexOf(File.separatorChar)>=0)
+					continue;
+				names.add(st.name);
+				if(st.type==FSPstat.RDTYPE_FILE)
+				{
+					/* keep partial download */
+					names.add("."+st.name+".part");
+					names.add("."+st.name+".part"+FSPjournal.SUFFIX);
+				}
+				String path=FSPcache.child(remote,st.name);
+				if(st.type==FSPstat.RDTYPE_DIR)
+					tasks.add(new DirTask(path,new File(local,st.name)));
+				else if(st.type==FSPstat.RDTYPE_FILE)
+				{
+					filesfound.incrementAndGet();
+					bytesfound.addAndGet(st.length);
+					FileTask ft=new FileTask(path,st,new File(local,st.name));
+					if(transfers==null)
+						tasks.add(ft);
+					else
+					{
+						try
+						{
+							files.add(CompletableFuture.runAsync(ft::compute,transfers));
+						}
+						catch (RejectedExecutionException e)
+						{
+							tasks.add(ft);
+						}
+					}
+				}
+			}
+			if(deleteorphans)
+				deleteOrphans(names);
+			invokeAll(tasks);
+			/* pool compensates for blocked worker */
+			for(CompletableFuture<Void> f:files)
+				f.join();
+			dirsdone.incrementAndGet();
+			report(remote);
+		}
+
+		/* delete local files which are not on server */
+		private void deleteOrphans(Set<String> names)
+		{
+			File list[]=local.listFiles();
+			if(list==null)
+				return;
+			for(int i=0;i<list.length;i++)
+			{
+				File f=list[i];
+				if(names.contains(f.getName()) || manifest!=null && f.getAbsoluteFile().equals(manifest.getAbsoluteFile()))
+					continue;
+				changes.add(new Change(Change.DELETE,FSPcache.child(remote,f.getName()),f,0));
+				if(dryrun)
+					continue;
+				try
+				{
+					delete(f);
+				}
+				catch (IOException e)
+				{
+					errors.add(e);
+				}
+			}
+		}
+	}
+
+	/* delete file or directory tree, symbolic links are not followed */
+	private static void delete(File f) throws IOException
+	{
+		if(f.isDirectory() && !Files.isSymbolicLink(f.toPath()))
+		{
+			File list[]=f.listFiles();
+			if(list!=null)
+				for(int i=0;i<list.length;i++)
+					delete(list[i]);
+		}
+		if(!f.delete())
+			throw new IOException("Can not delete "+f);
+	}
+
+	/* downloads one file */
+	private class FileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private String remote;
+		private FSPstat stat;
+		private File local;
+
+		FileTask(String remote, FSPstat stat, File local)
+		{
+			this.remote=remote;
+			this.stat=stat;
+			this.local=local;
+		}
+
+		protected void compute()
+		{
+			try
+			{
+				if(current())
+				{
+					filesskipped.incrementAndGet();
+					bytesdone.addAndGet(stat.length);
+					synced();
+				}
+				else
+				{
+					int type=Change.NEW;
+					if(resume && new File(partial(local).getPath()+FSPjournal.SUFFIX).isFile())
+						type=Change.RESUME;
+					else if(local.exists())
+						type=Change.UPDATE;
+					changes.add(new Change(type,remote,local,stat.length));
+					if(!dryrun)
+					{
+						download();
+						synced();
+					}
+				}
+				filesdone.incrementAndGet();
+			}
+			catch (IOException e)
+			{
+				errors.add(e);
+			}
+			report(remote);
+		}
+
+		/* local file is same as remote file */
+		private boolean current()
+		{
+			if(!local.isFile() || local.length()!=stat.length)
+				return false;
+			if(known!=null)
+			{
+				String m=known.getProperty(remote);
+				if(m!=null)
+					return m.equals(stat.length+" "+stat.lastmod);
+			}
+			return local.lastModified()==stat.lastmod;
+		}
+
+		private void synced()
+		{
+			if(synced!=null)
+				synced.put(remote,stat.length+" "+stat.lastmod);
+		}
+
+		private void download() throws IOException
+		{
+			try
+			{
+				memory.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for memory budget");
+			}
+			File tmp=partial(local);
+			long written=0;
+			try
+			{
+				FSPsession ses=pool.acquire(host,port);
+				int oldwindow=ses.getWindow();
+				CountingStream os=null;
+				try
+				{
+					ses.setWindow(window);
+					if(resume)
+					{
+						/* journal is kept with partial file on failure */
+						FSPutil.downloadResumable(ses,remote,tmp);
+						bytesdone.addAndGet(stat.length);
+						written=stat.length;
+					}
+					else
+					{
+						os=new CountingStream(new FileOutputStream(tmp));
+						FSPutil.download(ses,remote,os,0,-1);
+						os.close();
+						written=os.count;
+						os=null;
+					}
+					ses.setWindow(oldwindow);
+				}
+				catch (IOException e)
+				{
+					pool.invalidate(ses);
+					ses=null;
+					throw e;
+				}
+				finally
+				{
+					if(os!=null)
+					{
+						written=os.count;
+						try { os.close(); } catch (IOException e) {}
+					}
+					if(ses!=null)
+						pool.release(ses);
+				}
+				if(local.exists() && !local.delete() || !tmp.renameTo(local))
+					throw new IOException("Can not rename "+tmp+" to "+local);
+				tmp=null;
+				local.setLastModified(stat.lastmod);
+			}
+			catch (IOException e)
+			{
+				/* do not count partial transfer */
+				bytesdone.addAndGet(-written);
+				throw e;
+			}
+			finally
+			{
+				if(tmp!=null && !resume)
+					tmp.delete();
+				memory.release();
+			}
+		}
+	}
+
+	/* output stream updating transferred bytes counter */
+	private class CountingStream extends FilterOutputStream
+	{
+		long count;
+
+		CountingStream(OutputStream os)
+		{
+			super(os);
+		}
+
+		public void write(byte b[], int off, int len) throws IOException
+		{
+			out.write(b,off,len);
+			count+=len;
+			bytesdone.addAndGet(len);
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+			bytesdone.incrementAndGet();
+		}
+	}
+
+	private void report(String path)
+	{
+		ProgressListener l=listener;
+		if(l!=null)
+			l.progress(this,path);
+	}
+
+	/**
+	 * Gets number of parallel tasks.
+	 *
+	 * @return parallelism
+	 * @since 1.1
+	 */
+	public synchronized int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Sets number of parallel tasks. Every task uses one session, so
+	 * it should not be greater than maximum number of sessions in pool.
+	 *
+	 * @param parallelism number of tasks, at least 1
+	 * @since 1.1
+	 */
+	public synchronized void setParallelism(int parallelism)
+	{
+		if(parallelism<1) parallelism=1;
+		this.parallelism=parallelism;
+	}
+
+	/**
+	 * Gets memory budget for transfer buffers.
+	 *
+	 * @return budget in bytes
+	 * @since 1.1
+	 */
+	public synchronized long getMemoryBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Sets memory budget for transfer buffers. At least one transfer is
+	 * always allowed.
+	 *
+	 * @param bytes budget in bytes
+	 * @since 1.1
+	 */
+	public synchronized void setMemoryBudget(long bytes)
+	{
+		budget=bytes;
+	}
+
+	/**
+	 * Gets window used for file downloads.
+	 *
+	 * @return number of blocks requested at once
+	 * @since 1.1
+	 */
+	public synchronized int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Sets window used for file downloads.
+	 *
+	 * @param window number of blocks requested at once
+	 * @see FSPsession#setWindow(int)
+	 * @since 1.1
+	 */
+	public synchronized void setWindow(int window)
+	{
+		if(window<1) window=1;
+		if(window>FSPsession.MAX_WINDOW) window=FSPsession.MAX_WINDOW;
+		this.window=window;
+	}
+
+	/**
+	 * Gets executor running file downloads.
+	 *
+	 * @return executor or null if files are downloaded by mirror tasks
+	 * @since 1.1
+	 */
+	public synchronized Executor getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Sets executor running file downloads. Directories are still
+	 * listed by mirror tasks with configured parallelism, but files are
+	 * downloaded by executor, so with executor created by
+	 * FSPutil.newTransferExecutor() every file gets its own virtual
+	 * thread. Number of transfers running at once is then limited only
+	 * by memory budget and session pool. Executor is not shut down by
+	 * mirror.
+	 *
+	 * @param executor executor or null
+	 * @see FSPutil#newTransferExecutor()
+	 * @since 1.1
+	 */
+	public synchronized void setExecutor(Executor executor)
+	{
+		this.executor=executor;
+	}
+
+	/**
+	 * Checks if partial downloads are resumed.
+	 *
+	 * @return true if partial downloads are resumed
+	 * @since 1.1
+	 */
+	public synchronized boolean isResume()
+	{
+		return resume;
+	}
+
+	/**
+	 * Sets if partial downloads are resumed. Failed download leaves
+	 * partial file with journal next to target file and next mirror
+	 * downloads only missing ranges, unless remote file was changed.
+	 *
+	 * @param resume true to resume partial downloads
+	 * @see FSPutil#downloadResumable(FSPsession, String, File)
+	 * @since 1.1
+	 */
+	public synchronized void setResume(boolean resume)
+	{
+		this.resume=resume;
+	}
+
+	/**
+	 * Checks if local files missing on server are deleted.
+	 *
+	 * @return true if orphans are deleted
+	 * @since 1.1
+	 */
+	public synchronized boolean isDeleteOrphans()
+	{
+		return deleteorphans;
+	}
+
+	/**
+	 * Sets if local files and directories which do not exist on server
+	 * are deleted. Partial downloads of remote files and manifest are
+	 * kept.
+	 *
+	 * @param delete true to delete orphans
+	 * @since 1.1
+	 */
+	public synchronized void setDeleteOrphans(boolean delete)
+	{
+		deleteorphans=delete;
+	}
+
+	/**
+	 * Checks if mirror only reports changes.
+	 *
+	 * @return true for dry run
+	 * @since 1.1
+	 */
+	public synchronized boolean isDryRun()
+	{
+		return dryrun;
+	}
+
+	/**
+	 * Sets dry run. Remote tree is listed and changes are reported by
+	 * getChanges(), but no local file is created, changed or deleted.
+	 *
+	 * @param dryrun true for dry run
+	 * @since 1.1
+	 */
+	public synchronized void setDryRun(boolean dryrun)
+	{
+		this.dryrun=dryrun;
+	}
+
+	/**
+	 * Gets manifest file.
+	 *
+	 * @return manifest or null if not used
+	 * @since 1.1
+	 */
+	public synchronized File getManifest()
+	{
+		return manifest;
+	}
+
+	/**
+	 * Sets manifest file. Manifest holds length and modification time of
+	 * remote files from last mirror. Local file with the same length is
+	 * up to date if remote file was not changed since, even if its
+	 * modification time differs. Manifest is rewritten after every mirror
+	 * except dry run.
+	 *
+	 * @param manifest manifest file or null
+	 * @since 1.1
+	 */
+	public synchronized void setManifest(File manifest)
+	{
+		this.manifest=manifest;
+	}
+
+	/**
+	 * Gets changes made by last or running mirror.
+	 *
+	 * @return list of changes
+	 * @since 1.1
+	 */
+	public List<Change> getChanges()
+	{
+		return new ArrayList<Change>(changes);
+	}
+
+	/**
+	 * Sets progress listener.
+	 *
+	 * @param listener listener or null
+	 * @since 1.1
+	 */
+	public void setProgressListener(ProgressListener listener)
+	{
+		this.listener=listener;
+	}
+
+	/** Returns number of files found so far.
+	 * @since 1.1 */
+	public long getFilesFound()
+	{
+		return filesfound.get();
+	}
+
+	/** Returns total size of files found so far.
+	 * @since 1.1 */
+	public long getBytesFound()
+	{
+		return bytesfound.get();
+	}
+
+	/** Returns number of finished files, including skipped files.
+	 * @since 1.1 */
+	public long getFilesDone()
+	{
+		return filesdone.get();
+	}
+
+	/** Returns number of files which were already up to date.
+	 * @since 1.1 */
+	public long getFilesSkipped()
+	{
+		return filesskipped.get();
+	}
+
+	/** Returns number of transferred bytes, including skipped files.
+	 * @since 1.1 */
+	public long getBytesDone()
+	{
+		return bytesdone.get();
+	}
+
+	/** Returns number of listed directories.
+	 * @since 1.1 */
+	public long getDirectoriesDone()
+	{
+		return dirsdone.get();
+	}
+}
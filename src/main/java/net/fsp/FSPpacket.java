@@ -12,6 +12,7 @@ use of this software.
 package net.fsp;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
 /**
  * This class handles assembly and disassembly FSP packets from/to DatagramPacket.
@@ -32,8 +33,10 @@ public class FSPpacket
 	/** Maximum standard FSP data payload - 1024 bytes.
 	 *    All FSP clients and servers are required to handle this. */
 	public final static int SPACE=1024;
-	/** Maximum payload supported by this library. */
-	public final static int MAXSPACE=SPACE;
+	/** Maximum payload supported by this library. Payloads larger than
+	 *    SPACE must be negotiated with server first.
+	 *    @see FSPsession#negotiatePayload(int) */
+	public final static int MAXSPACE=16384;
 	/** Maximum packet size (HSIZE+MAXSPACE). */
 	public final static int MAXSIZE=MAXSPACE+HSIZE;
 
@@ -58,6 +61,8 @@ public class FSPpacket
 	public int   xtra_len;
 	/** buffer for holding user generated data to be transmitted via FSP protocol */
 	public byte buf[];
+	/* data sent instead of buf, set by setData(ByteBuffer) */
+	private ByteBuffer data;
 
 	/* FSP commands */
 	/** get server setup */
@@ -107,7 +112,22 @@ public class FSPpacket
 	 */
 	public FSPpacket()
 	{
-		buf=new byte[MAXSPACE];
+		this(SPACE);
+	}
+
+	/**
+	 * Constructs a new storage for handling client side of
+	 * FSP packets with payload up to given size.
+	 *
+	 * @param space maximum payload size, between SPACE and MAXSPACE
+	 * @throws IllegalArgumentException if space is out of range
+	 * @since 1.1
+	 */
+	public FSPpacket(int space)
+	{
+		if ( space < SPACE || space > MAXSPACE )
+			throw new IllegalArgumentException("Payload size must be between "+SPACE+" and "+MAXSPACE);
+		buf=new byte[space];
 		serverside=false;
 	}
 
@@ -145,19 +165,14 @@ public class FSPpacket
 			// System.out.println("Packet truncated.");
 			return false;
 		}
-		if(nbb_len+nxtra_len>MAXSPACE)
+		if(nbb_len+nxtra_len>buf.length)
 		{
 			// System.out.println("Packet too big.");
 			return false;
 		}
 		/* check sum */
 		sum=data[1]; /* sum */
-		data[1]=0;
-		int t=nsum-1;
-		if(!serverside) nsum = 0;
-		for(;t>=0;t--)
-			nsum+=(data[t] & 0xFF);
-		csum=(byte)(nsum + (nsum >>> 8));
+		csum=FSPcodec.checksum(data,0,nsum,serverside);
 		if(csum!=sum) {
 			// System.out.println("BAD sum. Got="+sum+" Computed="+csum);
 			return false;
@@ -169,6 +184,7 @@ public class FSPpacket
 		bb_pos =((data[8] << 8) | (data[9] & 0xFF)) << 16;
 		bb_pos|=((data[10] & 0xFF)<< 8) | (data[11] & 0xFF);
 		bb_len=nbb_len;
+		this.data=null;
 		xtra_len=nxtra_len;
 
 		/* extract data */
@@ -186,8 +202,8 @@ public class FSPpacket
 		byte data[]=udp.getData();
 		int payload = bb_len+xtra_len;
 
-        if ( payload > MAXSPACE )
-        	throw new IllegalArgumentException("Maximum supported payload by this library is "+MAXSPACE);
+        if ( payload > buf.length )
+        	throw new IllegalArgumentException("Maximum supported payload by this packet is "+buf.length);
         else
         	if ( data.length < HSIZE+payload ) {
         		data = new byte[payload+HSIZE];
@@ -210,20 +226,118 @@ public class FSPpacket
 		/* END OF HEADER */
 
 		// copy data
-		System.arraycopy(buf,0,data,HSIZE,payload);
+		if(this.data!=null)
+		{
+			this.data.rewind();
+			this.data.get(data,HSIZE,payload);
+		}
+		else
+			System.arraycopy(buf,0,data,HSIZE,payload);
 
 		/* make sum */
-		short nsum=0;
-		if(!serverside) nsum=(short)(HSIZE+payload);
-		for(int t=HSIZE+payload-1;t>=0;t--)
-			nsum+=(data[t] & 0xFF);
-		data[1]=(byte)(nsum + (nsum >>> 8));
-		sum=data[1];
+		sum=FSPcodec.checksum(data,0,HSIZE+payload,!serverside);
+		data[1]=sum;
 
 		udp.setLength(HSIZE+payload);
 		return udp;
 	}
 
+	/** Disassemble FSP packet stored in ByteBuffer into this FSP packet.
+	 * <p>
+	 * Packet is read from buffer position to buffer limit. Buffer position
+	 * is not changed.
+	 *
+	 * @param bb buffer with received datagram
+	 * @since 1.1
+	 * @return true if valid FSP packet was found
+	 */
+	public boolean disassemble(ByteBuffer bb)
+	{
+		return disassemble(bb,true);
+	}
+
+	/** Disassemble FSP packet from ByteBuffer.
+	 *
+	 * @param bb buffer with received datagram
+	 * @param copy if false payload is not copied into buf, unless
+	 *        packet is CC_ERR
+	 * @return true if valid FSP packet was found
+	 */
+	boolean disassemble(ByteBuffer bb, boolean copy)
+	{
+		int base=bb.position();
+		int length=bb.remaining();
+		if(length<HSIZE)
+			return false;
+		short nbb_len =bb.getShort(base+6);
+		int nxtra_len=length-HSIZE-nbb_len;
+		if(nxtra_len<0 || nbb_len<0)
+			return false;
+		if(nbb_len+nxtra_len>buf.length)
+			return false;
+		/* check sum */
+		if(FSPcodec.checksum(bb,base,length,serverside)!=bb.get(base+1))
+			return false;
+		/* extract header */
+		sum=bb.get(base+1);
+		cmd=bb.get(base);
+		bb_key=bb.getShort(base+2);
+		bb_seq=bb.getShort(base+4);
+		bb_pos=bb.getInt(base+8);
+		bb_len=nbb_len;
+		this.data=null;
+		xtra_len=nxtra_len;
+
+		/* extract data */
+		if(copy || cmd==CC_ERR)
+		{
+			ByteBuffer src=bb.duplicate();
+			src.position(base+HSIZE);
+			src.get(buf,0,bb_len+xtra_len);
+		}
+		return true;
+	}
+
+	/** generate FSP packet in ByteBuffer.
+	 * <p>
+	 * Buffer is cleared, filled with packet and flipped, so it is ready
+	 * to be written to channel.
+	 *
+	 * @param bb storage for assembled packet
+	 * @return assembled packet. Reference to bb parameter.
+	 * @throws java.nio.BufferOverflowException if packet does not fit
+	 *         into buffer
+	 * @since 1.1
+	 */
+	public ByteBuffer assemble(ByteBuffer bb) {
+		int payload = bb_len+xtra_len;
+
+		if ( payload > buf.length )
+			throw new IllegalArgumentException("Maximum supported payload by this packet is "+buf.length);
+		bb.clear();
+		/* make header */
+		bb.put(cmd);
+		bb.put((byte)0); /* sum */
+		bb.putShort(bb_key);
+		bb.putShort(bb_seq);
+		bb.putShort(bb_len);
+		bb.putInt(bb_pos);
+		/* copy data */
+		if(data!=null)
+		{
+			data.rewind();
+			bb.put(data);
+		}
+		else
+			bb.put(buf,0,payload);
+		bb.flip();
+
+		/* make sum */
+		sum=FSPcodec.checksum(bb,0,HSIZE+payload,!serverside);
+		bb.put(1,sum);
+		return bb;
+	}
+
 	/** prints header of FSP packet.
 	 *
 	 * @since 1.0
@@ -265,8 +379,9 @@ public class FSPpacket
 	 * */
 	public void setData(byte data1[],int offset1,int length1,byte data2[],int offset2,int length2)
 	{
-		if ( length1 + length2 > FSPpacket.MAXSPACE)
-			throw new IllegalArgumentException("Maximum supported payload size is "+MAXSPACE);
+		if ( length1 + length2 > buf.length)
+			throw new IllegalArgumentException("Maximum supported payload size is "+buf.length);
+		data=null;
 		if(length1>0)
 		{
             try {
@@ -293,6 +408,24 @@ public class FSPpacket
 		xtra_len=(short)length2;
 	}
 
+	/**
+	 * Sets data payload to remaining bytes of buffer. Data are not copied
+	 * into buf, they are read from buffer every time packet is assembled,
+	 * so buffer content must not change until packet is no longer sent.
+	 * Buffer position and limit are not changed.
+	 *
+	 * @param src data payload, usually slice of mapped file
+	 * @throws IllegalArgumentException if data does not fit into packet
+	 */
+	void setData(ByteBuffer src)
+	{
+		if ( src.remaining() > buf.length)
+			throw new IllegalArgumentException("Maximum supported payload size is "+buf.length);
+		data=src.slice();
+		bb_len=(short)data.remaining();
+		xtra_len=0;
+	}
+
 	/** check if we are using server side checksum method.
 	 *
 	 * @since 1.0rc7
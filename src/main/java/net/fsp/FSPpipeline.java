@@ -0,0 +1,331 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps multiple FSP requests in flight over one FSPsession.
+ * <p>
+ * Every request gets its own sequence number, so replies can arrive
+ * in any order. Only requests without reply are resent. Number of
+ * requests in flight is adapted to packet loss: it grows by one packet
+ * per round trip and it is halved when packet is lost.
+ *
+ * @author Radim Kolar
+ * @see FSPsession#interact(byte, long, byte[], int, int, byte[], int, int)
+ * @since 1.1
+ */
+class FSPpipeline
+{
+	/* one request in flight */
+	private static final class Slot
+	{
+		FSPpacket pkt;
+		short seq;
+		boolean active;
+		boolean sent;
+		long sentat;
+		long started;
+		long ticket;
+		long deadline;
+		int rdelay;
+		int tries;
+		Object attachment;
+	}
+
+	private FSPsession ses;
+	private Slot slots[];
+	private int active;
+	/* last submitted and last answered request */
+	private Slot submitted;
+	private Object answered;
+
+	/* adaptive window */
+	private float cwnd;
+	private float ssthresh;
+	private long lastcut;
+
+	private FSPpacket reply;
+	private FSPpacket spare;
+
+	/**
+	 * Creates new pipeline.
+	 *
+	 * @param session FSPsession used for sending requests
+	 * @param window maximum number of requests in flight
+	 */
+	FSPpipeline(FSPsession session, int window)
+	{
+		ses=session;
+		if(window<1) window=1;
+		slots=new Slot[window];
+		for(int i=0;i<window;i++)
+		{
+			slots[i]=new Slot();
+			slots[i].pkt=session.newPacket();
+		}
+		cwnd=Math.min(2,window);
+		ssthresh=window;
+		lastcut=System.nanoTime();
+		reply=session.newPacket();
+	}
+
+	/** Returns true if another request can be submitted now. */
+	boolean canSubmit()
+	{
+		return active<(int)cwnd && active<slots.length;
+	}
+
+	/** Returns number of requests waiting for reply. */
+	int pending()
+	{
+		return active;
+	}
+
+	/**
+	 * Queues request for sending. Request is sent by next take() call.
+	 *
+	 * @throws IllegalStateException if window is full
+	 */
+	void submit(byte cmd,long filepos, byte data1[],int offset1,int length1, byte data2[],int offset2,int length2)
+	{
+		Slot s=free();
+		s.pkt.setData(data1,offset1,length1,data2,offset2,length2);
+		queue(s,cmd,filepos);
+	}
+
+	/**
+	 * Queues request with data read from buffer. Data are not copied,
+	 * buffer content must not change until reply is taken.
+	 *
+	 * @throws IllegalStateException if window is full
+	 */
+	void submit(byte cmd,long filepos, ByteBuffer data)
+	{
+		Slot s=free();
+		s.pkt.setData(data);
+		queue(s,cmd,filepos);
+	}
+
+	/* find unused slot */
+	private Slot free()
+	{
+		for(int i=0;i<slots.length;i++)
+			if(!slots[i].active)
+				return slots[i];
+		throw new IllegalStateException("Pipeline is full");
+	}
+
+	private void queue(Slot s,byte cmd,long filepos)
+	{
+		s.attachment=null;
+		submitted=s;
+		s.pkt.cmd=cmd;
+		s.pkt.bb_pos=(int)(filepos & 0xffffffff);
+		s.seq=uniqueSequence();
+		s.pkt.bb_seq=s.seq;
+		s.rdelay=ses.initialDelay();
+		s.tries=0;
+		s.sent=false;
+		s.active=true;
+		active++;
+		ses.getMetrics().request();
+	}
+
+	/** Attaches object to request queued by last submit(). */
+	void attach(Object attachment)
+	{
+		submitted.attachment=attachment;
+	}
+
+	/** Returns object attached to request answered by last take(). */
+	Object attachment()
+	{
+		return answered;
+	}
+
+	/* allocate sequence number not used by other request in flight */
+	private short uniqueSequence()
+	{
+		while(true)
+		{
+			short seq=ses.nextSequence();
+			boolean used=false;
+			for(int i=0;i<slots.length;i++)
+				if(slots[i].active && slots[i].seq==seq)
+				{
+					used=true;
+					break;
+				}
+			if(!used) return seq;
+		}
+	}
+
+	/** Forgets all requests in flight. Late replies are ignored. */
+	void clear()
+	{
+		for(int i=0;i<slots.length;i++)
+			slots[i].active=false;
+		active=0;
+	}
+
+	/**
+	 * Sends queued requests and waits for first reply. Lost requests
+	 * are resent.
+	 * <p>
+	 * Returned packet belongs to caller and it should be returned to
+	 * pipeline by recycle() after use.
+	 *
+	 * @return reply packet. Field bb_pos holds position of request.
+	 * @throws SocketTimeoutException if some request is not answered
+	 *         within session timeout after it was sent first time
+	 * @throws FSPinterruptedException if thread was interrupted
+	 * @throws IllegalStateException if no request is in flight
+	 */
+	FSPpacket take() throws IOException
+	{
+		if(active==0)
+			throw new IllegalStateException("No request in flight");
+		long timeout=ses.getTimeout()==0 ? Long.MAX_VALUE : ses.getTimeout()*1000000L;
+
+		ses.lockIO();
+		try
+		{
+			while(true)
+			{
+				long now=System.nanoTime();
+				long next=Long.MAX_VALUE;
+				/* send new requests and resend expired ones */
+				for(int i=0;i<slots.length;i++)
+				{
+					Slot s=slots[i];
+					if(!s.active) continue;
+					if(s.sent && s.deadline-now>0)
+					{
+						next=Math.min(next,s.deadline-now);
+						continue;
+					}
+					if(s.sent)
+					{
+						/* packet lost, shrink window once per round trip */
+						if(s.sentat-lastcut>=0)
+						{
+							lost();
+							lastcut=now;
+						}
+						s.rdelay=ses.backoff(s.rdelay);
+						ses.getMetrics().retransmit();
+					}
+					else
+						s.started=now;
+					s.pkt.bb_seq=(short)(s.seq + (++s.pkt.bb_seq & 0x07));
+					s.ticket=ses.ticket();
+					s.pkt.bb_key=ses.getKey();
+					s.sent=true;
+					s.tries++;
+					s.sentat=now;
+					s.deadline=now+s.rdelay*1000000L;
+					next=Math.min(next,s.rdelay*1000000L);
+					try
+					{
+						ses.send(s.pkt);
+					}
+					catch (IOException ioe) {}
+				}
+				/* every request has its own timeout, other replies do not
+				 * keep unanswered request alive */
+				long left=Long.MAX_VALUE;
+				for(int i=0;i<slots.length;i++)
+					if(slots[i].active)
+						left=Math.min(left,timeout-(now-slots[i].started));
+				if(left<=0)
+				{
+					ses.getMetrics().timeout();
+					throw new SocketTimeoutException("Timeout");
+				}
+				int wait=(int)Math.max(1,Math.min(next,left)/1000000L);
+				try
+				{
+					if(ses.receive(reply,wait))
+					{
+						Slot s=match(reply);
+						if(s!=null)
+						{
+							ses.setKey(reply.bb_key,s.ticket);
+							if(s.tries==1)
+								ses.rttSample(System.nanoTime()-s.sentat);
+							ses.getMetrics().latency(System.nanoTime()-s.started);
+							s.active=false;
+							active--;
+							answered=s.attachment;
+							s.attachment=null;
+							received();
+							FSPpacket rc=reply;
+							reply=spare!=null ? spare : ses.newPacket();
+							spare=null;
+							return rc;
+						}
+						ses.getMetrics().discarded();
+					}
+				} catch (InterruptedIOException ioe) {}
+				catch (IOException ioe) {}
+				if(Thread.currentThread().isInterrupted())
+					throw new FSPinterruptedException("Interrupted");
+			}
+		}
+		finally
+		{
+			ses.unlockIO();
+		}
+	}
+
+	/** Returns packet obtained from take() for later reuse. */
+	void recycle(FSPpacket pkt)
+	{
+		spare=pkt;
+	}
+
+	/* find request for reply */
+	private Slot match(FSPpacket pkt)
+	{
+		for(int i=0;i<slots.length;i++)
+		{
+			Slot s=slots[i];
+			if(!s.active || !s.sent) continue;
+			if( (pkt.bb_seq & 0xfff8) != (s.seq & 0xfff8) ) continue;
+			if( (pkt.cmd != s.pkt.cmd) && (pkt.cmd != FSPpacket.CC_ERR) ) continue;
+			if( pkt.bb_pos != s.pkt.bb_pos && FSPsession.isPositioned(s.pkt.cmd) ) continue;
+			return s;
+		}
+		return null;
+	}
+
+	/* window adaptation */
+	private void received()
+	{
+		if(cwnd<ssthresh)
+			cwnd+=1;
+		else
+			cwnd+=1/cwnd;
+		if(cwnd>slots.length) cwnd=slots.length;
+	}
+
+	private void lost()
+	{
+		ssthresh=Math.max(1,cwnd/2);
+		cwnd=ssthresh;
+	}
+}
@@ -0,0 +1,474 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Single thread driving asynchronous FSP requests of many sessions.
+ * <p>
+ * Every session doing asynchronous requests gets its own non blocking
+ * DatagramChannel registered with reactor selector. Reactor thread sends
+ * requests, dispatches replies and resends lost packets. Request waits
+ * for host lock before it is sent, so only one request is in flight to
+ * the same server like with blocking sessions. Requests to lenient
+ * server are sent without waiting. Session timeout counts from
+ * submitting of request, including time spent waiting for host lock.
+ * <p>
+ * Futures are completed by common ForkJoinPool, not by reactor thread,
+ * so dependent actions can block on other FSP requests.
+ *
+ * @author Radim Kolar
+ * @see FSPsession#interactAsync(byte, long, byte[], int, int, byte[], int, int)
+ * @since 1.1
+ */
+class FSPreactor implements Runnable
+{
+	/* asynchronous part of one FSPsession */
+	static final class Endpoint
+	{
+		FSPsession ses;
+		DatagramChannel channel;
+		ByteBuffer tx;
+		ByteBuffer rx;
+		HashMap<Short, Request> pending=new HashMap<Short, Request>();
+		boolean closed;
+	}
+
+	/* one request in flight */
+	private static final class Request implements Comparable<Request>
+	{
+		Endpoint ep;
+		FSPpacket pkt;
+		short seq;
+		int rdelay;
+		int tries;
+		long started;
+		long sent;
+		long deadline;
+		long ticket;
+		boolean locked;
+		boolean done;
+		CompletableFuture<FSPpacket> future;
+
+		public int compareTo(Request r)
+		{
+			return Long.signum(deadline-r.deadline);
+		}
+	}
+
+	private static volatile FSPreactor reactor;
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private PriorityQueue<Request> timers;
+	/* requests waiting for host lock */
+	private ArrayDeque<Request> waiting;
+
+	/** Returns shared reactor, starting its thread if needed. */
+	static synchronized FSPreactor getDefault() throws IOException
+	{
+		if(reactor==null)
+		{
+			reactor=new FSPreactor();
+			Thread t=new Thread(reactor,"FSP reactor");
+			t.setDaemon(true);
+			t.start();
+		}
+		return reactor;
+	}
+
+	private FSPreactor() throws IOException
+	{
+		selector=Selector.open();
+		tasks=new ConcurrentLinkedQueue<Runnable>();
+		timers=new PriorityQueue<Request>();
+		waiting=new ArrayDeque<Request>();
+	}
+
+	/** Wakes up reactor thread, host lock was released. */
+	static void wakeup()
+	{
+		FSPreactor r=reactor;
+		if(r!=null)
+			r.selector.wakeup();
+	}
+
+	/* run task on reactor thread */
+	private void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Creates endpoint for session. Channel is opened on reactor thread
+	 * when first request is sent.
+	 */
+	Endpoint open(FSPsession ses)
+	{
+		Endpoint ep=new Endpoint();
+		ep.ses=ses;
+		return ep;
+	}
+
+	/** Closes endpoint and fails its requests in flight. */
+	void close(final Endpoint ep)
+	{
+		execute(new Runnable() {
+			public void run() {
+				ep.closed=true;
+				for(Request r:ep.pending.values())
+				{
+					r.done=true;
+					unlock(r);
+					complete(r,null,new ClosedChannelException());
+				}
+				ep.pending.clear();
+				if(ep.channel!=null)
+				{
+					try
+					{
+						ep.channel.close();
+					}
+					catch (IOException e) {}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends request asynchronously.
+	 *
+	 * @param ep session endpoint
+	 * @param pkt request packet. Packet is owned by reactor.
+	 * @return future completed with reply packet
+	 */
+	CompletableFuture<FSPpacket> submit(final Endpoint ep, FSPpacket pkt)
+	{
+		final Request r=new Request();
+		r.ep=ep;
+		r.pkt=pkt;
+		r.future=new CompletableFuture<FSPpacket>();
+		execute(new Runnable() {
+			public void run() {
+				try {
+					start(r);
+				}
+				catch (Throwable e) {
+					fail(r,e);
+				}
+			}
+		});
+		return r.future;
+	}
+
+	private void start(Request r)
+	{
+		Endpoint ep=r.ep;
+		r.started=System.nanoTime();
+		if(ep.closed)
+		{
+			complete(r,null,new ClosedChannelException());
+			return;
+		}
+		if(ep.channel==null)
+		{
+			try
+			{
+				ep.channel=DatagramChannel.open();
+				ep.channel.connect(new InetSocketAddress(ep.ses.getHost(),ep.ses.getPort()));
+				ep.channel.configureBlocking(false);
+				ep.channel.register(selector,SelectionKey.OP_READ,ep);
+			}
+			catch (IOException e)
+			{
+				if(ep.channel!=null)
+				{
+					try
+					{
+						ep.channel.close();
+					}
+					catch (IOException e2) {}
+				}
+				ep.channel=null;
+				complete(r,null,e);
+				return;
+			}
+		}
+		int size=ep.ses.getPayload()+FSPpacket.HSIZE;
+		if(ep.tx==null || ep.tx.capacity()<size)
+		{
+			ep.tx=ByteBuffer.allocateDirect(size);
+			ep.rx=ByteBuffer.allocateDirect(size);
+		}
+		/* allocate unique sequence number */
+		do
+		{
+			r.seq=(short)((int)(Math.random()*0xffff) & 0xfff8);
+		}
+		while(ep.pending.containsKey(Short.valueOf(r.seq)));
+		ep.pending.put(Short.valueOf(r.seq),r);
+		r.pkt.bb_seq=r.seq;
+		r.rdelay=ep.ses.initialDelay();
+		ep.ses.getMetrics().request();
+		if(!admit(r))
+			waiting.add(r);
+	}
+
+	/* send request if host lock is free or not needed */
+	private boolean admit(Request r)
+	{
+		FSPsession ses=r.ep.ses;
+		if(!ses.isLenientServer())
+		{
+			/* flag is set first, so lock released meanwhile wakes us up */
+			ses.setHostContended(true);
+			if(!ses.tryLockHost())
+				return false;
+			r.locked=true;
+			if(waiting.isEmpty())
+				ses.setHostContended(false);
+		}
+		transmit(r,System.nanoTime());
+		return true;
+	}
+
+	/* send waiting requests whose host lock is free, fail requests
+	 * waiting longer than session timeout. Returns time in nanoseconds
+	 * until next waiting request times out. */
+	private long admitWaiting(long now)
+	{
+		long next=Long.MAX_VALUE;
+		int n=waiting.size();
+		for(int i=0;i<n;i++)
+		{
+			Request r=waiting.poll();
+			if(r.done)
+				continue;
+			long timeout=r.ep.ses.getTimeout()*1000000L;
+			if(timeout!=0 && now-r.started>=timeout)
+			{
+				r.ep.ses.getMetrics().timeout();
+				fail(r,new SocketTimeoutException("Timeout"));
+				continue;
+			}
+			if(admit(r))
+				continue;
+			waiting.add(r);
+			if(timeout!=0)
+				next=Math.min(next,timeout-(now-r.started));
+		}
+		return next;
+	}
+
+	/* release host lock of finished request */
+	private static void unlock(Request r)
+	{
+		if(r.locked)
+		{
+			r.locked=false;
+			r.ep.ses.unlockHost();
+		}
+	}
+
+	private void transmit(Request r,long now)
+	{
+		r.pkt.bb_seq=(short)(r.seq + (++r.pkt.bb_seq & 0x07));
+		r.ticket=r.ep.ses.ticket();
+		r.pkt.bb_key=r.ep.ses.getKey();
+		r.tries++;
+		r.sent=now;
+		FSPmetrics metrics=r.ep.ses.getMetrics();
+		if(r.tries>1)
+			metrics.retransmit();
+		try
+		{
+			ByteBuffer tx=r.pkt.assemble(r.ep.tx);
+			metrics.sent(tx.remaining());
+			r.ep.channel.write(tx);
+		}
+		catch (IOException e) {}
+		r.deadline=now+r.rdelay*1000000L;
+		timers.add(r);
+	}
+
+	/* datagrams arrived for endpoint */
+	private void receive(Endpoint ep)
+	{
+		while(true)
+		{
+			ep.rx.clear();
+			try
+			{
+				if(ep.channel.read(ep.rx)<=0)
+					return;
+			}
+			catch (IOException e)
+			{
+				/* ICMP errors, packet will be resent */
+				return;
+			}
+			ep.rx.flip();
+			FSPmetrics metrics=ep.ses.getMetrics();
+			int len=ep.rx.remaining();
+			FSPpacket pkt=new FSPpacket(ep.ses.getPayload());
+			if(!pkt.disassemble(ep.rx))
+			{
+				metrics.invalid();
+				continue;
+			}
+			metrics.received(len);
+			Request r=ep.pending.get(Short.valueOf((short)(pkt.bb_seq & 0xfff8)));
+			if(r==null ||
+			   (pkt.cmd != r.pkt.cmd) && (pkt.cmd != FSPpacket.CC_ERR) ||
+			   pkt.bb_pos != r.pkt.bb_pos && FSPsession.isPositioned(r.pkt.cmd) )
+			{
+				/* stale or out of sequence reply */
+				metrics.discarded();
+				continue;
+			}
+			ep.ses.setKey(pkt.bb_key,r.ticket);
+			if(r.tries==1)
+				ep.ses.rttSample(System.nanoTime()-r.sent);
+			metrics.latency(System.nanoTime()-r.started);
+			ep.pending.remove(Short.valueOf(r.seq));
+			r.done=true;
+			unlock(r);
+			complete(r,pkt,null);
+		}
+	}
+
+	/* resend expired requests */
+	private void expire(long now)
+	{
+		Request r;
+		while( (r=timers.peek()) != null && r.deadline-now<=0 )
+		{
+			timers.poll();
+			if(r.done)
+				continue;
+			int timeout=r.ep.ses.getTimeout();
+			if(timeout!=0 && now-r.started>=timeout*1000000L)
+			{
+				r.ep.ses.getMetrics().timeout();
+				fail(r,new SocketTimeoutException("Timeout"));
+				continue;
+			}
+			try
+			{
+				r.rdelay=r.ep.ses.backoff(r.rdelay);
+				transmit(r,now);
+			}
+			catch (Throwable e)
+			{
+				/* request is no longer in timers */
+				fail(r,e);
+			}
+		}
+	}
+
+	/* complete request with error */
+	private void fail(Request r,Throwable e)
+	{
+		if(r.done)
+			return;
+		r.done=true;
+		r.ep.pending.remove(Short.valueOf(r.seq));
+		unlock(r);
+		complete(r,null,e);
+	}
+
+	/* complete future outside of reactor thread, callbacks may block */
+	private static void complete(final Request r,final FSPpacket pkt,final Throwable e)
+	{
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			public void run() {
+				if(e!=null)
+					r.future.completeExceptionally(e);
+				else
+					r.future.complete(pkt);
+			}
+		});
+	}
+
+	/** reactor thread main loop */
+	public void run()
+	{
+		/* time until first waiting request times out */
+		long waitleft=Long.MAX_VALUE;
+		while(true)
+		{
+			try
+			{
+				long wait=0;
+				Request r=timers.peek();
+				if(r!=null)
+					wait=Math.max(1,(r.deadline-System.nanoTime())/1000000L);
+				if(waitleft!=Long.MAX_VALUE)
+				{
+					long w=Math.max(1,waitleft/1000000L);
+					wait= wait==0 ? w : Math.min(wait,w);
+				}
+				selector.select(wait);
+				Runnable task;
+				while( (task=tasks.poll()) != null )
+				{
+					try
+					{
+						task.run();
+					}
+					catch (Throwable e)
+					{
+						/* task fails its own request */
+					}
+				}
+				Iterator<SelectionKey> it=selector.selectedKeys().iterator();
+				while(it.hasNext())
+				{
+					SelectionKey key=it.next();
+					it.remove();
+					try
+					{
+						if(key.isValid() && key.isReadable())
+							receive((Endpoint)key.attachment());
+					}
+					catch (Throwable e)
+					{
+						/* requests stay pending, reply comes after resend */
+					}
+				}
+				long now=System.nanoTime();
+				expire(now);
+				waitleft=admitWaiting(now);
+			}
+			catch (Throwable e)
+			{
+				/* keep reactor running, no other thread completes futures */
+			}
+		}
+	}
+}
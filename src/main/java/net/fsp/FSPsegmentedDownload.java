@@ -0,0 +1,622 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads single file over multiple FSP sessions.
+ * <p>
+ * File is split into segments by its length. Every segment is downloaded
+ * by its own worker thread using session borrowed from FSPsessionPool
+ * and written directly to its place in local file. Failed segment is
+ * retried from last written position on a new session. Worker without
+ * work splits the largest remaining segment, so slow segments do not
+ * delay end of transfer. Segments are transferred concurrently only if
+ * server is marked as lenient by FSPsession.setLenientServer(),
+ * otherwise their requests take turns.
+ *
+ * @author Radim Kolar
+ * @see FSPsessionPool
+ * @since 1.1
+ */
+public class FSPsegmentedDownload
+{
+	/** default number of segments downloaded in parallel */
+	public final static int DEFAULT_SEGMENTS=4;
+	/** default number of retries per segment */
+	public final static int DEFAULT_RETRIES=3;
+
+	/* range of file downloaded by one worker */
+	private static final class Segment
+	{
+		/* next position to be written */
+		long pos;
+		/* end of segment, can be lowered by work stealing */
+		long end;
+		/* segment is downloaded by worker */
+		boolean active;
+	}
+
+	private FSPsessionPool pool;
+	private String host;
+	private int port;
+	private int segments=DEFAULT_SEGMENTS;
+	private int retries=DEFAULT_RETRIES;
+	private int window=1;
+	private boolean resumable;
+	private int timeout=FSPsession.DEFAULT_TIMEOUT;
+	private Executor executor;
+
+	private AtomicLong bytesdone=new AtomicLong();
+
+	/* state of running download */
+	private ArrayDeque<Segment> queue;
+	private List<Segment> all;
+	private int blocksize;
+	private IOException error;
+	private FSPjournal journal;
+	private List<Thread> running;
+
+	/**
+	 * Creates segmented download using default session pool.
+	 *
+	 * @param host hostname of fsp server
+	 * @param port port number on fsp server
+	 * @since 1.1
+	 */
+	public FSPsegmentedDownload(String host, int port)
+	{
+		this(FSPsessionPool.getDefault(),host,port);
+	}
+
+	/**
+	 * Creates segmented download.
+	 *
+	 * @param pool session pool used for server access
+	 * @param host hostname of fsp server
+	 * @param port port number on fsp server
+	 * @since 1.1
+	 */
+	public FSPsegmentedDownload(FSPsessionPool pool, String host, int port)
+	{
+		this.pool=pool;
+		this.host=host;
+		this.port=port;
+	}
+
+	/**
+	 * Downloads file. Local file is created or overwritten and sized to
+	 * length of remote file before transfer. If download is resumable,
+	 * only ranges missing in journal of previous download are fetched.
+	 *
+	 * @param filename filename on FSP server
+	 * @param target local file
+	 * @return length of downloaded file
+	 * @throws FileNotFoundException if remote file does not exist
+	 * @throws IOException if file can not be downloaded
+	 * @since 1.1
+	 */
+	public long download(String filename, File target) throws IOException
+	{
+		FSPstat stat;
+		FSPsession ses=pool.acquire(host,port);
+		try
+		{
+			stat=FSPutil.stat(ses,filename);
+			blocksize=ses.getPayload();
+		}
+		catch (IOException e)
+		{
+			pool.invalidate(ses);
+			ses=null;
+			throw e;
+		}
+		finally
+		{
+			if(ses!=null)
+				pool.release(ses);
+		}
+		if(stat==null || stat.type!=FSPstat.RDTYPE_FILE)
+			throw new FileNotFoundException(filename);
+
+		FSPjournal j=null;
+		List<long[]> ranges;
+		if(isResumable())
+		{
+			j=FSPjournal.open(target,stat);
+			ranges=j.missing();
+		}
+		else
+		{
+			ranges=new ArrayList<long[]>();
+			ranges.add(new long[] {0,stat.length});
+		}
+		RandomAccessFile raf=new RandomAccessFile(target,"rw");
+		try
+		{
+			if(j!=null && j.isEmpty())
+				raf.getChannel().truncate(0);
+			raf.setLength(stat.length);
+			journal=j;
+			try
+			{
+				download(filename,raf.getChannel(),ranges);
+			}
+			catch (IOException e)
+			{
+				if(j!=null)
+				{
+					try
+					{
+						j.save(raf.getChannel());
+					}
+					catch (IOException e2)
+					{
+						e.addSuppressed(e2);
+					}
+				}
+				throw e;
+			}
+			finally
+			{
+				journal=null;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+		if(j!=null)
+			j.delete();
+		return stat.length;
+	}
+
+	/* split file and run workers */
+	private void download(String filename, FileChannel fc, List<long[]> ranges) throws IOException
+	{
+		int workers;
+		synchronized(this)
+		{
+			queue=new ArrayDeque<Segment>();
+			all=new ArrayList<Segment>();
+			running=new ArrayList<Thread>();
+			error=null;
+			long length=0;
+			for(long r[]:ranges)
+				length+=r[1]-r[0];
+			long blocks=(length+blocksize-1)/blocksize;
+			workers=(int)Math.max(1,Math.min(segments,blocks));
+			long per=(blocks+workers-1)/workers*blocksize;
+			for(long r[]:ranges)
+				for(long pos=r[0];pos<r[1];pos+=per)
+				{
+					Segment s=new Segment();
+					s.pos=pos;
+					s.end=Math.min(r[1],pos+per);
+					queue.add(s);
+					all.add(s);
+				}
+			if(all.isEmpty())
+				return;
+		}
+		Executor ex=getExecutor();
+		CountDownLatch done=new CountDownLatch(workers);
+		for(int i=0;i<workers;i++)
+		{
+			Worker w=new Worker(filename,fc,done);
+			if(ex!=null)
+			{
+				try
+				{
+					ex.execute(w);
+					continue;
+				}
+				catch (RejectedExecutionException e)
+				{
+					/* saturated or shut down executor, use own thread */
+				}
+			}
+			Thread t=new Thread(w,"FSP segment "+i+" "+filename);
+			t.setDaemon(true);
+			t.start();
+		}
+		boolean interrupted=false;
+		while(true)
+		{
+			try
+			{
+				done.await();
+				break;
+			}
+			catch (InterruptedException e)
+			{
+				/* stop workers, they are waiting for replies */
+				interrupted=true;
+				fail(new InterruptedIOException("Interrupted while downloading"));
+				synchronized(this)
+				{
+					for(Thread t:running)
+						t.interrupt();
+				}
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		synchronized(this)
+		{
+			IOException e=error;
+			queue=null;
+			all=null;
+			running=null;
+			if(e!=null)
+				throw e;
+		}
+	}
+
+	/* records first error and stops other workers */
+	private synchronized void fail(IOException e)
+	{
+		if(error==null)
+			error=e;
+		queue.clear();
+	}
+
+	/* gets next segment, splits largest active segment if queue is empty */
+	private synchronized Segment nextSegment()
+	{
+		if(error!=null)
+			return null;
+		Segment s=queue.poll();
+		if(s!=null)
+		{
+			s.active=true;
+			return s;
+		}
+		Segment victim=null;
+		for(Segment c:all)
+		{
+			synchronized(c)
+			{
+				if(c.active && (victim==null || c.end-c.pos>victim.end-victim.pos))
+					victim=c;
+			}
+		}
+		if(victim==null)
+			return null;
+		synchronized(victim)
+		{
+			/* leave blocks requested by victim's window to victim */
+			long left=victim.end-victim.pos-(long)window*blocksize;
+			if(left<2L*blocksize)
+				return null;
+			long mid=victim.pos+(long)window*blocksize+(left/2+blocksize-1)/blocksize*blocksize;
+			s=new Segment();
+			s.pos=mid;
+			s.end=victim.end;
+			s.active=true;
+			victim.end=mid;
+		}
+		all.add(s);
+		return s;
+	}
+
+	/* downloads segments until there is no work */
+	private class Worker implements Runnable
+	{
+		private String filename;
+		private FileChannel fc;
+		private CountDownLatch done;
+
+		Worker(String filename, FileChannel fc, CountDownLatch done)
+		{
+			this.filename=filename;
+			this.fc=fc;
+			this.done=done;
+		}
+
+		public void run()
+		{
+			Thread me=Thread.currentThread();
+			synchronized(FSPsegmentedDownload.this)
+			{
+				running.add(me);
+				/* interrupted before start */
+				if(error instanceof InterruptedIOException)
+					me.interrupt();
+			}
+			try
+			{
+				work();
+			}
+			finally
+			{
+				synchronized(FSPsegmentedDownload.this)
+				{
+					running.remove(me);
+				}
+				/* pooled thread must not stay interrupted */
+				Thread.interrupted();
+				done.countDown();
+			}
+		}
+
+		private void work()
+		{
+			Segment s;
+			while((s=nextSegment())!=null)
+			{
+				int failures=0;
+				while(true)
+				{
+					try
+					{
+						fetch(s);
+						break;
+					}
+					catch (IOException e)
+					{
+						if(++failures>retries || e instanceof InterruptedIOException)
+						{
+							fail(e);
+							return;
+						}
+					}
+				}
+				synchronized(s)
+				{
+					s.active=false;
+				}
+			}
+		}
+
+		/* download rest of segment on one session */
+		private void fetch(Segment s) throws IOException
+		{
+			FSPsession ses=pool.acquire(host,port);
+			int oldwindow=ses.getWindow();
+			try
+			{
+				ses.setWindow(window);
+				ses.setTimeout(timeout);
+				long end;
+				FSPdownloader dl;
+				synchronized(s)
+				{
+					end=s.end;
+					dl=new FSPdownloader(ses,filename,s.pos,end-s.pos);
+				}
+				while(true)
+				{
+					synchronized(FSPsegmentedDownload.this)
+					{
+						if(error!=null)
+							throw new InterruptedIOException("Download aborted");
+					}
+					synchronized(s)
+					{
+						if(s.end<end)
+						{
+							/* part of segment was stolen */
+							end=s.end;
+							dl.limit(end);
+						}
+						if(s.pos>=end)
+							break;
+					}
+					FSPpacket pkt=dl.next();
+					if(pkt==null)
+						throw new IOException("Unexpected end of file "+filename);
+					long pos=pkt.bb_pos & 0xffffffffL;
+					int len=pkt.bb_len;
+					ByteBuffer bb=ByteBuffer.wrap(pkt.buf,0,len);
+					while(bb.hasRemaining())
+						fc.write(bb,pos+bb.position());
+					synchronized(s)
+					{
+						s.pos=pos+len;
+					}
+					bytesdone.addAndGet(len);
+					if(journal!=null)
+					{
+						journal.add(pos,len);
+						journal.checkpoint(fc);
+					}
+				}
+				ses.setWindow(oldwindow);
+			}
+			catch (IOException e)
+			{
+				pool.invalidate(ses);
+				ses=null;
+				throw e;
+			}
+			finally
+			{
+				if(ses!=null)
+					pool.release(ses);
+			}
+		}
+	}
+
+	/**
+	 * Gets number of segments downloaded in parallel.
+	 *
+	 * @return number of segments
+	 * @since 1.1
+	 */
+	public synchronized int getSegments()
+	{
+		return segments;
+	}
+
+	/**
+	 * Sets number of segments downloaded in parallel. Every segment
+	 * uses one session from pool.
+	 *
+	 * @param segments number of segments, at least 1
+	 * @since 1.1
+	 */
+	public synchronized void setSegments(int segments)
+	{
+		if(segments<1) segments=1;
+		this.segments=segments;
+	}
+
+	/**
+	 * Gets number of retries per segment.
+	 *
+	 * @return number of retries
+	 * @since 1.1
+	 */
+	public synchronized int getRetries()
+	{
+		return retries;
+	}
+
+	/**
+	 * Sets number of retries per segment. Segment is retried from last
+	 * written position on new session.
+	 *
+	 * @param retries number of retries
+	 * @since 1.1
+	 */
+	public synchronized void setRetries(int retries)
+	{
+		if(retries<0) retries=0;
+		this.retries=retries;
+	}
+
+	/**
+	 * Gets window used by each segment.
+	 *
+	 * @return number of blocks requested at once
+	 * @since 1.1
+	 */
+	public synchronized int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Sets window used by each segment.
+	 *
+	 * @param window number of blocks requested at once
+	 * @see FSPsession#setWindow(int)
+	 * @since 1.1
+	 */
+	public synchronized void setWindow(int window)
+	{
+		if(window<1) window=1;
+		if(window>FSPsession.MAX_WINDOW) window=FSPsession.MAX_WINDOW;
+		this.window=window;
+	}
+
+	/**
+	 * Gets timeout of one segment attempt.
+	 *
+	 * @return timeout in milliseconds
+	 * @since 1.1
+	 */
+	public synchronized int getTimeout()
+	{
+		return timeout;
+	}
+
+	/**
+	 * Sets timeout of one segment attempt. Segment is retried on new
+	 * session if server does not reply within this time.
+	 *
+	 * @param timeout timeout in milliseconds
+	 * @see FSPsession#setTimeout(int)
+	 * @since 1.1
+	 */
+	public synchronized void setTimeout(int timeout)
+	{
+		this.timeout=timeout;
+	}
+
+	/**
+	 * Gets executor running segment workers.
+	 *
+	 * @return executor or null if every worker gets its own thread
+	 * @since 1.1
+	 */
+	public synchronized Executor getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Sets executor running segment workers. Worker is blocked in
+	 * network receive most of the time, executor with virtual threads
+	 * created by FSPutil.newTransferExecutor() fits well. Executor is
+	 * not shut down by download. Worker rejected by executor runs in its
+	 * own thread.
+	 *
+	 * @param executor executor or null for own thread per worker
+	 * @see FSPutil#newTransferExecutor()
+	 * @since 1.1
+	 */
+	public synchronized void setExecutor(Executor executor)
+	{
+		this.executor=executor;
+	}
+
+	/**
+	 * Checks if download is resumable.
+	 *
+	 * @return true if progress journal is used
+	 * @since 1.1
+	 */
+	public synchronized boolean isResumable()
+	{
+		return resumable;
+	}
+
+	/**
+	 * Enables progress journal. Journal is saved if download fails and
+	 * next download of the same file fetches only missing ranges.
+	 *
+	 * @param resumable true to use progress journal
+	 * @see FSPutil#downloadResumable(FSPsession, String, File)
+	 * @since 1.1
+	 */
+	public synchronized void setResumable(boolean resumable)
+	{
+		this.resumable=resumable;
+	}
+
+	/**
+	 * Returns number of bytes written to local file.
+	 *
+	 * @return bytes downloaded by all segments
+	 * @since 1.1
+	 */
+	public long getBytesDone()
+	{
+		return bytesdone.get();
+	}
+}
@@ -0,0 +1,803 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simple in-process FSP server.
+ * <p>
+ * Server serves files from local directory over UDP. It implements
+ * CC_VERSION, CC_GET_DIR, CC_GET_FILE, CC_STAT, CC_UP_LOAD, CC_INSTALL
+ * and CC_BYE commands. It is intended for testing and benchmarking of
+ * FSP clients on single machine, not for production use.
+ * <p>
+ * Network impairment can be simulated: packet loss, duplication,
+ * reordering, delay with jitter and bandwidth limit are applied to
+ * replies; loss is applied to requests too. Random generator is seeded,
+ * so runs with the same seed and request pattern are reproducible.
+ * <p>
+ * Access keys are checked like in fspd: request must carry the key from
+ * the last reply, retransmission of the last request with previous key
+ * gets the cached reply, anything else is dropped. Lenient mode accepts
+ * older keys too, clients use it after FSPsession.setLenientServer()
+ * for keeping more requests in flight (session window larger than 1)
+ * and for talking from several sessions at once without waiting for
+ * each other.
+ *
+ * @author Radim Kolar
+ * @see FSPsession
+ * @since 1.1
+ */
+public class FSPserver implements AutoCloseable
+{
+	/** default maximum payload advertised to clients */
+	public final static int DEFAULT_MAX_PAYLOAD=8192;
+	/* client state is dropped after this idle time (msec) */
+	private final static long CLIENT_TIMEOUT=60000;
+	/* number of previous keys and replies kept for lenient mode */
+	private final static int KEY_HISTORY=64;
+
+	/* executed request and its reply, resent to retransmitted request */
+	private static final class Reply
+	{
+		short seq;
+		byte cmd;
+		int pos;
+		byte request[];
+		byte data[];
+	}
+
+	/* per client host state */
+	private static final class Client
+	{
+		short key;
+		/* previously issued keys and their requests, newest at next-1 */
+		short oldkeys[]=new short[KEY_HISTORY];
+		Reply replies[]=new Reply[KEY_HISTORY];
+		int next;
+		long lastseen;
+		File upload;
+	}
+
+	/* reply waiting for its departure time */
+	private static final class Outgoing implements Comparable<Outgoing>
+	{
+		long due;
+		long order;
+		DatagramPacket udp;
+
+		public int compareTo(Outgoing o)
+		{
+			if(due!=o.due)
+				return due<o.due ? -1 : 1;
+			return Long.compare(order,o.order);
+		}
+	}
+
+	private File root;
+	private DatagramSocket socket;
+	private Thread receiver;
+	private Thread sender;
+	private volatile boolean closed;
+
+	private HashMap<InetAddress, Client> clients=new HashMap<InetAddress, Client>();
+	private PriorityQueue<Outgoing> queue=new PriorityQueue<Outgoing>();
+	private long order;
+	/* departure time of last packet, used for bandwidth limit */
+	private long linefree;
+
+	private Random random=new Random(0);
+	private int maxpayload=DEFAULT_MAX_PAYLOAD;
+	private double loss;
+	private double duplicate;
+	private double reorder;
+	private int delay;
+	private int jitter;
+	private long bandwidth;
+	private boolean lenient;
+
+	private long requests;
+	private long dropped;
+
+	/**
+	 * Creates server for given directory. Server is not started.
+	 *
+	 * @param root directory served to clients
+	 * @since 1.1
+	 */
+	public FSPserver(File root)
+	{
+		this.root=root.getAbsoluteFile();
+	}
+
+	/**
+	 * Starts server on loopback interface.
+	 *
+	 * @param port UDP port, 0 for any free port
+	 * @throws SocketException if socket can not be bound
+	 * @since 1.1
+	 */
+	public void start(int port) throws SocketException
+	{
+		start(new InetSocketAddress(InetAddress.getLoopbackAddress(),port));
+	}
+
+	/**
+	 * Starts server.
+	 *
+	 * @param address local address to bind
+	 * @throws SocketException if socket can not be bound
+	 * @since 1.1
+	 */
+	public synchronized void start(InetSocketAddress address) throws SocketException
+	{
+		if(socket!=null)
+			throw new IllegalStateException("Server is already started");
+		socket=new DatagramSocket(address);
+		receiver=new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		},"FSP server "+socket.getLocalPort());
+		receiver.setDaemon(true);
+		sender=new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		},"FSP server sender "+socket.getLocalPort());
+		sender.setDaemon(true);
+		receiver.start();
+		sender.start();
+	}
+
+	/**
+	 * Returns local port of started server.
+	 *
+	 * @return UDP port
+	 * @since 1.1
+	 */
+	public int getPort()
+	{
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Stops server.
+	 *
+	 * @since 1.1
+	 */
+	public void close()
+	{
+		closed=true;
+		if(socket!=null)
+			socket.close();
+		synchronized(queue)
+		{
+			queue.notifyAll();
+		}
+		synchronized(this)
+		{
+			for(Client c:clients.values())
+				if(c.upload!=null)
+					c.upload.delete();
+			clients.clear();
+		}
+	}
+
+	/* receive loop */
+	private void receive()
+	{
+		FSPpacket pkt=new FSPpacket(FSPpacket.MAXSPACE);
+		pkt.serverside=true;
+		DatagramPacket udp=new DatagramPacket(new byte[FSPpacket.MAXSIZE],FSPpacket.MAXSIZE);
+		while(!closed)
+		{
+			try
+			{
+				udp.setLength(FSPpacket.MAXSIZE);
+				socket.receive(udp);
+				byte reply[];
+				if(!pkt.disassemble(udp))
+					continue;
+				synchronized(this)
+				{
+					requests++;
+					if(chance(loss))
+					{
+						dropped++;
+						continue;
+					}
+					reply=process(pkt,udp.getAddress());
+				}
+				if(reply!=null)
+					schedule(new DatagramPacket(reply,reply.length,udp.getAddress(),udp.getPort()));
+			}
+			catch (IOException e)
+			{
+				if(closed) return;
+			}
+			catch (RuntimeException e)
+			{
+				/* bad request, ignore it */
+			}
+		}
+	}
+
+	/* apply impairment and queue reply */
+	private void schedule(DatagramPacket reply)
+	{
+		int copies=1;
+		long now=System.nanoTime();
+		synchronized(this)
+		{
+			if(chance(loss))
+			{
+				dropped++;
+				return;
+			}
+			if(chance(duplicate))
+				copies=2;
+		}
+		synchronized(queue)
+		{
+			for(int i=0;i<copies;i++)
+			{
+				Outgoing o=new Outgoing();
+				o.udp=reply;
+				o.order=order++;
+				long d=delay*1000000L;
+				synchronized(this)
+				{
+					if(jitter>0)
+						d+=(long)(random.nextDouble()*jitter*1000000L);
+					if(chance(reorder))
+						/* hold packet back, so next packets overtake it */
+						d+=Math.max(1,delay+jitter)*1000000L;
+				}
+				o.due=now+d;
+				if(bandwidth>0)
+				{
+					/* packets leave one after another */
+					long tx=reply.getLength()*1000000000L/bandwidth;
+					linefree=Math.max(linefree,o.due)+tx;
+					o.due=linefree;
+				}
+				queue.add(o);
+			}
+			queue.notifyAll();
+		}
+	}
+
+	/* send loop */
+	private void send()
+	{
+		while(!closed)
+		{
+			Outgoing o;
+			synchronized(queue)
+			{
+				o=queue.peek();
+				if(o==null)
+				{
+					try
+					{
+						queue.wait();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					continue;
+				}
+				long wait=o.due-System.nanoTime();
+				if(wait>0)
+				{
+					try
+					{
+						queue.wait(wait/1000000L,(int)(wait%1000000L));
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					continue;
+				}
+				queue.poll();
+			}
+			try
+			{
+				socket.send(o.udp);
+			}
+			catch (IOException e)
+			{
+				if(closed) return;
+			}
+		}
+	}
+
+	private boolean chance(double p)
+	{
+		return p>0 && random.nextDouble()<p;
+	}
+
+	/*
+	 * Process request and build reply in the same packet.
+	 * Returns assembled reply or null if request is ignored.
+	 */
+	private byte[] process(FSPpacket pkt, InetAddress from)
+	{
+		long now=System.currentTimeMillis();
+		Client c=clients.get(from);
+		if(c!=null && now-c.lastseen>CLIENT_TIMEOUT && c.upload==null)
+			c=null;
+		if(c==null)
+		{
+			c=new Client();
+			c.key=pkt.bb_key;
+			Arrays.fill(c.oldkeys,pkt.bb_key);
+			clients.put(from,c);
+		}
+		if(pkt.bb_key!=c.key)
+		{
+			/* only retransmission of executed request is answered,
+			 * fspd remembers previous key and last reply only */
+			int history=lenient ? KEY_HISTORY : 1;
+			int i;
+			for(i=0;i<history;i++)
+				if(c.oldkeys[(c.next-1-i+KEY_HISTORY)%KEY_HISTORY]==pkt.bb_key)
+					break;
+			if(i==history)
+				/* wrong key */
+				return null;
+			for(i=0;i<history;i++)
+			{
+				Reply r=c.replies[(c.next-1-i+KEY_HISTORY)%KEY_HISTORY];
+				if(r!=null && (pkt.bb_seq & 0xfff8)==(r.seq & 0xfff8) && sameRequest(pkt,r))
+				{
+					/* request was already executed, INSTALL is not idempotent */
+					c.lastseen=now;
+					return rekey(r.data,c.key);
+				}
+			}
+			if(!lenient)
+				return null;
+		}
+		/* new request, rotate key */
+		short used=pkt.bb_key;
+		c.oldkeys[c.next]=c.key;
+		do
+			c.key=(short)random.nextInt();
+		while(c.key==used || c.key==c.oldkeys[c.next]);
+		c.lastseen=now;
+		/* sessions from one host share key, compare whole request */
+		Reply r=new Reply();
+		r.cmd=pkt.cmd;
+		r.pos=pkt.bb_pos;
+		r.request=Arrays.copyOf(pkt.buf,pkt.bb_len+pkt.xtra_len);
+
+		try
+		{
+			switch(pkt.cmd)
+			{
+			case FSPpacket.CC_VERSION:
+				version(pkt);
+				break;
+			case FSPpacket.CC_GET_DIR:
+				getDir(pkt);
+				break;
+			case FSPpacket.CC_GET_FILE:
+				getFile(pkt);
+				break;
+			case FSPpacket.CC_STAT:
+				stat(pkt);
+				break;
+			case FSPpacket.CC_UP_LOAD:
+				upload(pkt,c);
+				break;
+			case FSPpacket.CC_INSTALL:
+				install(pkt,c);
+				break;
+			case FSPpacket.CC_BYE:
+				pkt.bb_len=0;
+				pkt.xtra_len=0;
+				break;
+			default:
+				error(pkt,"Unknown command");
+			}
+		}
+		catch (IOException e)
+		{
+			error(pkt,e.getMessage()==null ? "I/O error" : e.getMessage());
+		}
+		pkt.bb_key=c.key;
+		DatagramPacket udp=new DatagramPacket(new byte[FSPpacket.HSIZE+pkt.bb_len+pkt.xtra_len],0);
+		pkt.assemble(udp);
+		r.seq=pkt.bb_seq;
+		r.data=udp.getData();
+		c.replies[c.next]=r;
+		c.next=(c.next+1)%KEY_HISTORY;
+		return r.data;
+	}
+
+	/* resent reply must carry current key, older keys are forgotten */
+	private static byte[] rekey(byte reply[], short key)
+	{
+		if(reply[2]==(byte)(key >>> 8) && reply[3]==(byte)key)
+			return reply;
+		byte rc[]=reply.clone();
+		rc[2]=(byte)(key >>> 8);
+		rc[3]=(byte)key;
+		rc[1]=FSPcodec.checksum(rc,0,rc.length,false);
+		return rc;
+	}
+
+	private static boolean sameRequest(FSPpacket pkt, Reply r)
+	{
+		if(pkt.cmd!=r.cmd || pkt.bb_pos!=r.pos || pkt.bb_len+pkt.xtra_len!=r.request.length)
+			return false;
+		for(int i=0;i<r.request.length;i++)
+			if(pkt.buf[i]!=r.request[i])
+				return false;
+		return true;
+	}
+
+	private void version(FSPpacket pkt)
+	{
+		byte v[]=FSPutil.stringToASCIIZ("jfsplib FSPserver");
+		System.arraycopy(v,0,pkt.buf,0,v.length);
+		pkt.bb_len=(short)v.length;
+		/* flags and maximum payload */
+		pkt.buf[v.length]=0;
+		pkt.buf[v.length+1]=(byte)(maxpayload >>> 8);
+		pkt.buf[v.length+2]=(byte)maxpayload;
+		pkt.xtra_len=3;
+		pkt.bb_pos=3;
+	}
+
+	/* block size requested by client */
+	private int blockSize(FSPpacket pkt)
+	{
+		int size=FSPpacket.SPACE;
+		if(pkt.xtra_len>=2)
+			size=((pkt.buf[pkt.bb_len] & 0xFF)<<8) | (pkt.buf[pkt.bb_len+1] & 0xFF);
+		return Math.max(1,Math.min(size,maxpayload));
+	}
+
+	private void getFile(FSPpacket pkt) throws IOException
+	{
+		File f=resolve(pkt);
+		int size=blockSize(pkt);
+		if(!f.isFile())
+			throw new IOException("No such file");
+		RandomAccessFile raf=new RandomAccessFile(f,"r");
+		try
+		{
+			long pos=pkt.bb_pos & 0xffffffffL;
+			int n=0;
+			if(pos<raf.length())
+			{
+				raf.seek(pos);
+				while(n<size)
+				{
+					int r=raf.read(pkt.buf,n,size-n);
+					if(r<=0) break;
+					n+=r;
+				}
+			}
+			pkt.bb_len=(short)n;
+			pkt.xtra_len=0;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private void getDir(FSPpacket pkt) throws IOException
+	{
+		File d=resolve(pkt);
+		int size=blockSize(pkt);
+		if(!d.isDirectory())
+			throw new IOException("No such directory");
+		byte list[]=listing(d,size);
+		long pos=pkt.bb_pos & 0xffffffffL;
+		int n=(int)Math.max(0,Math.min(size,list.length-pos));
+		if(n>0)
+			System.arraycopy(list,(int)pos,pkt.buf,0,n);
+		pkt.bb_len=(short)n;
+		pkt.xtra_len=0;
+	}
+
+	/* encode directory into blocks, entries do not cross blocks */
+	private static byte[] listing(File d, int size)
+	{
+		String names[]=d.list();
+		if(names==null) names=new String[0];
+		Arrays.sort(names);
+		ByteArrayOutputStream os=new ByteArrayOutputStream();
+		int used=0;
+		for(int i=0;i<=names.length;i++)
+		{
+			byte e[];
+			if(i<names.length)
+			{
+				File f=new File(d,names[i]);
+				byte name[]=names[i].getBytes();
+				e=new byte[(9+name.length+1+3) & ~3];
+				putStat(e,0,f);
+				System.arraycopy(name,0,e,9,name.length);
+			}
+			else
+				/* end of directory */
+				e=new byte[9];
+			if(used+e.length>size)
+			{
+				/* skip to next block */
+				byte skip[]=new byte[size-used];
+				if(skip.length>=9)
+					skip[8]=0x2A;
+				os.write(skip,0,skip.length);
+				used=0;
+			}
+			os.write(e,0,e.length);
+			used+=e.length;
+		}
+		return os.toByteArray();
+	}
+
+	/* store 9 byte stat record: time, size, type */
+	private static void putStat(byte buf[], int off, File f)
+	{
+		long time=f.lastModified()/1000L;
+		long len=f.isFile() ? f.length() : 0;
+		buf[off]=(byte)(time>>>24);
+		buf[off+1]=(byte)(time>>>16);
+		buf[off+2]=(byte)(time>>>8);
+		buf[off+3]=(byte)time;
+		buf[off+4]=(byte)(len>>>24);
+		buf[off+5]=(byte)(len>>>16);
+		buf[off+6]=(byte)(len>>>8);
+		buf[off+7]=(byte)len;
+		if(f.isDirectory())
+			buf[off+8]=FSPstat.RDTYPE_DIR;
+		else
+			if(f.isFile())
+				buf[off+8]=FSPstat.RDTYPE_FILE;
+			else
+				buf[off+8]=0;
+	}
+
+	private void stat(FSPpacket pkt) throws IOException
+	{
+		File f=resolve(pkt);
+		putStat(pkt.buf,0,f);
+		pkt.bb_len=9;
+		pkt.xtra_len=0;
+	}
+
+	private void upload(FSPpacket pkt, Client c) throws IOException
+	{
+		long pos=pkt.bb_pos & 0xffffffffL;
+		if(c.upload==null)
+			c.upload=File.createTempFile(".fspupload",".tmp",root);
+		/* blocks are written at their position, windowed upload can
+		 * deliver them in any order. In lenient mode duplicate of first
+		 * block can arrive late, so file is truncated in strict mode only. */
+		RandomAccessFile raf=new RandomAccessFile(c.upload,"rw");
+		try
+		{
+			if(pos==0 && !lenient)
+				raf.setLength(0);
+			raf.seek(pos);
+			raf.write(pkt.buf,0,pkt.bb_len);
+		}
+		finally
+		{
+			raf.close();
+		}
+		pkt.bb_len=0;
+		pkt.xtra_len=0;
+	}
+
+	private void install(FSPpacket pkt, Client c) throws IOException
+	{
+		if(pkt.bb_len<=1)
+		{
+			/* cancel upload */
+			if(c.upload!=null)
+				c.upload.delete();
+			c.upload=null;
+			pkt.bb_len=0;
+			pkt.xtra_len=0;
+			return;
+		}
+		File f=resolve(pkt);
+		if(c.upload==null)
+			c.upload=File.createTempFile(".fspupload",".tmp",root);
+		if(f.isDirectory())
+			throw new IOException("Target is a directory");
+		if(f.exists() && !f.delete() || !c.upload.renameTo(f))
+			throw new IOException("Can not install file");
+		if(pkt.xtra_len>=4)
+		{
+			int b=pkt.bb_len;
+			long time=((pkt.buf[b] & 0xFFL)<<24) | ((pkt.buf[b+1] & 0xFF)<<16) | ((pkt.buf[b+2] & 0xFF)<<8) | (pkt.buf[b+3] & 0xFF);
+			f.setLastModified(time*1000L);
+		}
+		c.upload=null;
+		pkt.bb_len=0;
+		pkt.xtra_len=0;
+	}
+
+	private static void error(FSPpacket pkt, String msg)
+	{
+		byte m[]=FSPutil.stringToASCIIZ(msg);
+		pkt.cmd=FSPpacket.CC_ERR;
+		System.arraycopy(m,0,pkt.buf,0,m.length);
+		pkt.bb_len=(short)m.length;
+		pkt.xtra_len=0;
+	}
+
+	/* map path in request to file under root */
+	private File resolve(FSPpacket pkt) throws IOException
+	{
+		int n=0;
+		while(n<pkt.bb_len && pkt.buf[n]!=0)
+			n++;
+		String path=new String(pkt.buf,0,n);
+		File f=root;
+		String parts[]=path.split("/");
+		for(int i=0;i<parts.length;i++)
+		{
+			if(parts[i].length()==0 || parts[i].equals("."))
+				continue;
+			if(parts[i].equals("..") || parts[i].indexOf(File.separatorChar)>=0)
+				throw new IOException("Permission denied");
+			f=new File(f,parts[i]);
+		}
+		return f;
+	}
+
+	/**
+	 * Sets seed of random generator used for impairment and keys.
+	 *
+	 * @param seed random seed
+	 * @since 1.1
+	 */
+	public synchronized void setSeed(long seed)
+	{
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Enables lenient key checking. Request carrying any of recently
+	 * issued keys is executed and every recent request is recognized
+	 * when retransmitted. Real fspd does not do this; use it only for
+	 * testing pipelined clients.
+	 *
+	 * @param lenient true to accept older keys
+	 * @since 1.1
+	 */
+	public synchronized void setLenient(boolean lenient)
+	{
+		this.lenient=lenient;
+	}
+
+	/**
+	 * Checks if lenient key checking is enabled.
+	 *
+	 * @return true if older keys are accepted
+	 * @since 1.1
+	 */
+	public synchronized boolean isLenient()
+	{
+		return lenient;
+	}
+
+	/**
+	 * Sets maximum payload advertised in CC_VERSION reply.
+	 *
+	 * @param size payload size between FSPpacket.SPACE and
+	 *        FSPpacket.MAXSPACE
+	 * @since 1.1
+	 */
+	public synchronized void setMaxPayload(int size)
+	{
+		maxpayload=Math.max(FSPpacket.SPACE,Math.min(size,FSPpacket.MAXSPACE));
+	}
+
+	/**
+	 * Sets probability of packet loss. Loss is applied to requests and
+	 * replies independently.
+	 *
+	 * @param p probability between 0 and 1
+	 * @since 1.1
+	 */
+	public synchronized void setLoss(double p)
+	{
+		loss=p;
+	}
+
+	/**
+	 * Sets probability of reply duplication.
+	 *
+	 * @param p probability between 0 and 1
+	 * @since 1.1
+	 */
+	public synchronized void setDuplicate(double p)
+	{
+		duplicate=p;
+	}
+
+	/**
+	 * Sets probability of reply reordering. Reordered reply is held back
+	 * by delay plus jitter, at least 1 ms.
+	 *
+	 * @param p probability between 0 and 1
+	 * @since 1.1
+	 */
+	public synchronized void setReorder(double p)
+	{
+		reorder=p;
+	}
+
+	/**
+	 * Sets delay of replies.
+	 *
+	 * @param delay fixed delay in milliseconds
+	 * @param jitter maximum random delay added to fixed delay
+	 * @since 1.1
+	 */
+	public synchronized void setDelay(int delay, int jitter)
+	{
+		this.delay=Math.max(0,delay);
+		this.jitter=Math.max(0,jitter);
+	}
+
+	/**
+	 * Sets bandwidth limit of replies.
+	 *
+	 * @param bytes bytes per second, 0 for unlimited
+	 * @since 1.1
+	 */
+	public synchronized void setBandwidth(long bytes)
+	{
+		bandwidth=Math.max(0,bytes);
+	}
+
+	/** Returns number of valid requests received.
+	 * @since 1.1 */
+	public synchronized long getRequests()
+	{
+		return requests;
+	}
+
+	/** Returns number of requests and replies dropped by simulated loss.
+	 * @since 1.1 */
+	public synchronized long getDropped()
+	{
+		return dropped;
+	}
+}
@@ -11,19 +11,30 @@ use of this software.
  */
 package net.fsp;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
 import java.io.InterruptedIOException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
 
 /** This class represents one live FSP session.
  * <p>
  * FSPsession class takes care about FSP session management. It handles
- * packet resends on timeouts and key management. It also handles locks
- * for synchronizing multi session access to same FSP server.
+ * packet resends on timeouts and key management. Sessions talking to the
+ * same FSP server share its access key and send their requests one after
+ * another, because server accepts only key from its last reply. Sessions
+ * to server which accepts older keys do not wait for each other, see
+ * setLenientServer(). One session can be used by multiple threads, its
+ * requests are sent one after another.
  *
  * @author Radim Kolar
  * @see FSPpacket
@@ -31,23 +42,35 @@ import java.util.Hashtable;
  * @since 1.0
  */
 public class FSPsession implements AutoCloseable {
-	private DatagramSocket socket;
-	private DatagramPacket udp;
+	private FSPtransport transport;
 	private FSPpacket   packet;
+	private FSPreactor.Endpoint async;
 
 	private short seq;  /* sequence number */
 
 	private int timeout;
 	private int delay;
 	private int maxdelay;
+	private int window;
+	private boolean adaptive;
+	private int payload;
+	private byte getsize[]; /* CC_GET_FILE block size request */
 
 	private int port;
 	private InetAddress host;
 	private String hostadr;  /* 1.2.3.4:2234  */
 
-	private static Hashtable<String, Short> locks;
+	private static Hashtable<String, FSPhost> hosts=new Hashtable<String, FSPhost>();
+	private FSPhost hoststate;
+	/* serializes use of packet and transport */
+	private final ReentrantLock iolock=new ReentrantLock();
+	/* host lock taken by lockIO(), guarded by iolock */
+	private boolean hostlocked;
+	private FSPmetrics metrics;
+	private static AtomicInteger ids=new AtomicInteger();
 	volatile private Object writer;
-	private Object lockwait;
+	private final ReentrantLock writerlock=new ReentrantLock();
+	private final Condition writerfree=writerlock.newCondition();
 
 	/** minimum resent delay (msec) */
 	public final static int MIN_DELAY=1000;
@@ -56,10 +79,20 @@ public class FSPsession implements AutoCloseable {
 	/** maximum resent delay. FSP protocol has max delay 300s,
 	 * but we are using 60s for faster recovery on common Internet/Wifi lines. */
 	public final static int MAX_DELAY=60000;
+	/** minimum resent delay computed from measured round trip time (msec) */
+	public final static int MIN_ADAPTIVE_DELAY=20;
 
 	/** default timeout (msec) */
 	public final static int DEFAULT_TIMEOUT=300000;
 
+	/** default number of requests kept in flight during transfers.
+	 * Value 1 means classic stop-and-wait FSP transfers, which work
+	 * with every FSP server. Larger window is used only with lenient
+	 * server. */
+	public final static int DEFAULT_WINDOW=1;
+	/** maximum number of requests kept in flight during transfers */
+	public final static int MAX_WINDOW=64;
+
 	/** Creates a new FSP session
 	 *
 	 * @param host hostname of fsp server
@@ -79,44 +112,86 @@ public class FSPsession implements AutoCloseable {
 	 */
 	public FSPsession(InetAddress host, int port) throws java.net.SocketException
 	{
-		socket=new DatagramSocket();
-		udp=new DatagramPacket(new byte[FSPpacket.MAXSIZE],FSPpacket.MAXSIZE,host,port);
 		if(port==0) port=21;
-		udp.setPort(port);
-		udp.setAddress(host);
+		transport=new FSPsocketTransport(host,port);
+		init(host,port);
+	}
+
+	/** Creates a new FSP session using NIO transport.
+	 * <p>
+	 * Session uses DatagramChannel connected to FSP server with direct
+	 * buffers instead of DatagramSocket. Datagrams from other hosts
+	 * are filtered by kernel.
+	 *
+	 * @param host hostname of fsp server
+	 * @param port port number on fsp server
+	 * @param nio true for using NIO transport
+	 * @throws IOException if channel can't be opened
+	 * @since 1.1
+	 */
+	public FSPsession(String host, int port, boolean nio) throws IOException
+	{
+		this(InetAddress.getByName(host),port,nio);
+	}
+
+	/** Creates a new FSP session using NIO transport.
+	 *
+	 * @param host address of fsp server
+	 * @param port port number on fsp server
+	 * @param nio true for using NIO transport
+	 * @throws IOException if channel can't be opened
+	 * @see #FSPsession(String, int, boolean)
+	 * @since 1.1
+	 */
+	public FSPsession(InetAddress host, int port, boolean nio) throws IOException
+	{
+		if(port==0) port=21;
+		if(nio)
+			transport=new FSPchannelTransport(host,port);
+		else
+			transport=new FSPsocketTransport(host,port);
+		init(host,port);
+	}
+
+	/** Creates a new FSP session over given transport.
+	 * Used for running session over in-memory transports.
+	 *
+	 * @param transport datagram transport
+	 * @param host address of fsp server
+	 * @param port port number on fsp server
+	 */
+	FSPsession(FSPtransport transport, InetAddress host, int port)
+	{
+		this.transport=transport;
+		init(host,port);
+	}
+
+	private void init(InetAddress host, int port)
+	{
 		packet=new FSPpacket();
 		seq=(short)((int)(Math.random()*0xffff) & 0xfff8);
 		timeout=DEFAULT_TIMEOUT;
 		delay=DEFAULT_DELAY;
 		maxdelay=MAX_DELAY;
+		window=DEFAULT_WINDOW;
+		adaptive=true;
+		payload=FSPpacket.SPACE;
 
-		if(locks==null) locks=new Hashtable<String, Short>();
 		hostadr=host.getHostAddress()+":"+port;
-		hostadr=hostadr.intern();
-		synchronized(locks)
+		synchronized(hosts)
 		{
-			Short k=(Short)locks.get(hostadr);
-			if(k==null)
-			{
-				k = Short.valueOf((short)0);
-				locks.put(hostadr,k);
-			}
-			/* Get object from hash table, we need it for correct locking */
-			java.util.Enumeration<String> en=locks.keys();
-			while(en.hasMoreElements())
+			hoststate=hosts.get(hostadr);
+			if(hoststate==null)
 			{
-				String hkey;
-				hkey=(String)en.nextElement();
-				if(hostadr.equals(hkey))
-				{
-					hostadr=hkey;
-					break;
-				}
+				hoststate=new FSPhost();
+				hosts.put(hostadr,hoststate);
+				hoststate.metrics.register("type=Host,name="+ObjectName.quote(hostadr));
 			}
 		}
+		metrics=new FSPmetrics(hoststate.metrics);
+		metrics.register("type=Session,host="+ObjectName.quote(hostadr)+",id="+ids.incrementAndGet());
 		this.port=port;
 		this.host=host;
-		lockwait = new Object();
 	}
 
 	/**
@@ -131,72 +206,348 @@ public class FSPsession implements AutoCloseable {
 	 * @param offset2 starting offset of data in array
 	 * @param length2 length of extra data
 	 * @since 1.0
-	 * @throws SocketTimeoutException if server can't be reached within timeout
+	 * @throws SocketTimeoutException if server can't be reached within
+	 *         timeout. FSPinterruptedException if thread was interrupted,
+	 *         interrupt status is kept set.
 	 */
 	public FSPpacket interact(byte cmd,long filepos, byte data1[],int offset1,int length1, byte data2[],int offset2,int length2) throws SocketTimeoutException
 	{
-		int rdelay=delay;
-		int rtimeout=0;
-		Short k;
+		return interact(cmd,filepos,data1,offset1,length1,data2,offset2,length2,true);
+	}
 
-		/* setup the packet */
-		packet.setData(data1,offset1,length1,data2,offset2,length2);
-		k = Short.valueOf((short)((int)(Math.random()*0xffff) & 0xfff8));
-		if (k.shortValue()==seq)
-			seq ^=0x1080;
-		else
-			seq=k.shortValue();
-		packet.bb_seq=seq;
-		packet.bb_pos=(int)(filepos & 0xffffffff);
-		packet.cmd=cmd;
-		/* get key for the host */
-		synchronized(hostadr)
+	/**
+	 * Sends FSP packet and waits for reply.
+	 * <p>
+	 * If copy is false, reply payload is not copied into packet buffer
+	 * and it must be read by payload() before next request.
+	 */
+	FSPpacket interact(byte cmd,long filepos, byte data1[],int offset1,int length1, byte data2[],int offset2,int length2, boolean copy) throws SocketTimeoutException
+	{
+		int rdelay=initialDelay();
+		int tries=0;
+		long started=System.nanoTime();
+		long sent=started;
+		long ticket=0;
+
+		metrics.request();
+		FSPinteractEvent event=new FSPinteractEvent();
+		event.begin();
+		/* server accepts only key from its last reply, other sessions
+		 * to the same host wait until we are answered */
+		lockIO();
+		try
 		{
-			k=(Short)locks.get(hostadr);
-			packet.bb_key=k.shortValue();
+			/* setup the packet */
+			packet.setData(data1,offset1,length1,data2,offset2,length2);
+			nextSequence();
+			packet.bb_seq=seq;
+			packet.bb_pos=(int)(filepos & 0xffffffff);
+			packet.cmd=cmd;
 
+			short rseq=packet.bb_seq;
 			while(true)
 			{
-				/* increase a sequence number */
-				packet.bb_seq=(short)(seq + (++packet.bb_seq & 0x07));
-				packet.assemble(udp);
-				try
+				if(tries>0)
 				{
-					socket.setSoTimeout(rdelay);
+					/* received packet could overwrite request, rebuild it */
+					packet.setData(data1,offset1,length1,data2,offset2,length2);
+					packet.bb_pos=(int)(filepos & 0xffffffff);
+					packet.cmd=cmd;
+					packet.bb_seq=rseq;
 				}
-				catch (java.net.SocketException ex) {}
+				/* key could be changed by pipelined session meanwhile */
+				ticket=hoststate.ticket();
+				packet.bb_key=hoststate.getKey();
+				/* increase a sequence number */
+				packet.bb_seq=(short)(seq + (++packet.bb_seq & 0x07));
+				rseq=packet.bb_seq;
 				try
 				{
-					socket.send(udp);
-					udp.setLength(FSPpacket.MAXSIZE);
-					socket.receive(udp);
-					if(packet.disassemble(udp)==true)
+					tries++;
+					if(tries>1)
+						metrics.retransmit();
+					sent=System.nanoTime();
+					metrics.sent(FSPpacket.HSIZE+packet.bb_len+packet.xtra_len);
+					transport.send(packet);
+					if(transport.receive(packet,rdelay,copy))
 					{
-						// System.out.println("received valid fsp packet seq="+packet.bb_seq+" our seq="+seq);
+						metrics.received(FSPpacket.HSIZE+packet.bb_len+packet.xtra_len);
 						/* check reply type */
 						if( (packet.cmd != cmd) && (packet.cmd != FSPpacket.CC_ERR))
+						{
+							metrics.discarded();
 							continue;
+						}
 						/* check position */
-						if(packet.bb_pos != filepos && ( cmd == FSPpacket.CC_GET_DIR || cmd == FSPpacket.CC_GET_FILE || cmd == FSPpacket.CC_UP_LOAD || cmd == FSPpacket.CC_GRAB_FILE || cmd == FSPpacket.CC_INFO) )
+						if(packet.bb_pos != filepos && isPositioned(cmd) )
+						{
+							metrics.discarded();
 							continue;
+						}
 						/* check sequence number */
 						if( (packet.bb_seq & 0xfff8) == (seq & 0xfff8) )
 						{
-							locks.put(hostadr, Short.valueOf(packet.bb_key));
+							hoststate.setKey(packet.bb_key,ticket);
+							if(tries==1)
+								rttSample(System.nanoTime()-sent);
+							long now=System.nanoTime();
+							metrics.latency(now-started);
+							event.end(cmd,hostadr,filepos,tries,now-sent,packet.cmd == FSPpacket.CC_ERR ? "error" : "ok");
 							return packet;
 						}
+						metrics.discarded();
 					}
+					else
+						metrics.invalid();
 				} catch (InterruptedIOException ioe) {}
-				catch (IOException ioe) {}
+				catch (IOException ioe)
+				{
+					/* ICMP error is reported at once, do not resend
+					 * before delay is over */
+					long left=rdelay-(System.nanoTime()-sent)/1000000L;
+					if(left>0)
+					{
+						try
+						{
+							Thread.sleep(left);
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
 
-				rtimeout+=rdelay;
-				// System.out.println(rtimeout);
-				if(rtimeout>=timeout) throw new SocketTimeoutException("Timeout");
+				if(Thread.currentThread().isInterrupted())
+				{
+					/* virtual thread's socket is closed by interrupt */
+					event.end(cmd,hostadr,filepos,tries,0,"interrupted");
+					throw new FSPinterruptedException("Interrupted");
+				}
+				if(System.nanoTime()-started>=timeout*1000000L)
+				{
+					metrics.timeout();
+					event.end(cmd,hostadr,filepos,tries,0,"timeout");
+					throw new SocketTimeoutException("Timeout");
+				}
 				/* increase delay */
-				rdelay*=1.5f;
-				if(rdelay>maxdelay) rdelay=maxdelay;
+				rdelay=backoff(rdelay);
 			}
 		}
+		finally
+		{
+			unlockIO();
+		}
+	}
+
+	/**
+	 * Sends FSP packet asynchronously.
+	 * <p>
+	 * Request is sent by shared reactor thread, which also resends it
+	 * if it is lost. Any number of asynchronous requests can be submitted
+	 * on one session, they are sent one after another because server
+	 * accepts only key from its last reply. Returned future is completed with reply packet
+	 * by common ForkJoinPool, so dependent actions may block on other FSP
+	 * requests; packet is owned by caller. If server can't be reached
+	 * within timeout, counted from this call, future fails with
+	 * SocketTimeoutException.
+	 *
+	 * @param cmd FSP command to be sent to server
+	 * @param filepos position in file
+	 * @param data1 array contains data for FSP packet
+	 * @param offset1 starting offset of data in array
+	 * @param length1 length of data
+	 * @param data2 array with extra data
+	 * @param offset2 starting offset of data in array
+	 * @param length2 length of extra data
+	 * @return future completed with reply
+	 * @since 1.1
+	 * @see #interact(byte, long, byte[], int, int, byte[], int, int)
+	 */
+	public CompletableFuture<FSPpacket> interactAsync(byte cmd,long filepos, byte data1[],int offset1,int length1, byte data2[],int offset2,int length2)
+	{
+		FSPpacket pkt=newPacket();
+		pkt.setData(data1,offset1,length1,data2,offset2,length2);
+		pkt.bb_pos=(int)(filepos & 0xffffffff);
+		pkt.cmd=cmd;
+		FSPreactor reactor;
+		try {
+			reactor=FSPreactor.getDefault();
+		}
+		catch (IOException e) {
+			CompletableFuture<FSPpacket> rc=new CompletableFuture<FSPpacket>();
+			rc.completeExceptionally(e);
+			return rc;
+		}
+		synchronized(this) {
+			if(async==null)
+				async=reactor.open(this);
+		}
+		return reactor.submit(async,pkt);
+	}
+
+	/* Low level packet access used by interact() and FSPpipeline.
+	 * Caller must hold lock taken by lockIO() while using them. */
+
+	/** Gets address of FSP server as host:port. */
+	String hostAddress()
+	{
+		return hostadr;
+	}
+
+	/**
+	 * Locks session transport and FSP server. Lenient server is not
+	 * locked. Locks are not monitors, so virtual thread waiting for
+	 * reply does not pin its carrier thread.
+	 *
+	 * @throws FSPinterruptedException if interrupted while waiting for lock
+	 */
+	void lockIO() throws FSPinterruptedException
+	{
+		try
+		{
+			iolock.lockInterruptibly();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new FSPinterruptedException("Interrupted while waiting for session");
+		}
+		if(hoststate.lenient)
+			return;
+		try
+		{
+			hoststate.lock();
+			hostlocked=true;
+		}
+		catch (InterruptedException e)
+		{
+			iolock.unlock();
+			Thread.currentThread().interrupt();
+			throw new FSPinterruptedException("Interrupted while waiting for server");
+		}
+	}
+
+	/** Unlocks session transport locked by lockIO(). */
+	void unlockIO()
+	{
+		if(hostlocked)
+		{
+			hostlocked=false;
+			hoststate.unlock();
+		}
+		iolock.unlock();
+	}
+
+	/** Takes FSP server lock for asynchronous request if it is free. */
+	boolean tryLockHost()
+	{
+		return hoststate.tryLock();
+	}
+
+	/** Releases FSP server lock taken by tryLockHost(). */
+	void unlockHost()
+	{
+		hoststate.unlock();
+	}
+
+	/** Marks that reactor waits for FSP server lock. */
+	void setHostContended(boolean contended)
+	{
+		hoststate.contended=contended;
+	}
+
+	/** Gets ticket for request which is going to be sent. */
+	long ticket()
+	{
+		return hoststate.ticket();
+	}
+
+	/** Gets current access key for FSP server. */
+	short getKey()
+	{
+		return hoststate.getKey();
+	}
+
+	/** Stores access key received from FSP server in reply to request
+	 * with given ticket. */
+	void setKey(short key, long ticket)
+	{
+		hoststate.setKey(key,ticket);
+	}
+
+	/** Allocates new sequence number base for request. Lower 3 bits
+	 * are used as resend counter. */
+	short nextSequence()
+	{
+		short k=(short)((int)(Math.random()*0xffff) & 0xfff8);
+		if (k==seq)
+			seq ^=0x1080;
+		else
+			seq=k;
+		return seq;
+	}
+
+	/** Assembles packet and sends it to server. */
+	void send(FSPpacket pkt) throws IOException
+	{
+		metrics.sent(FSPpacket.HSIZE+pkt.bb_len+pkt.xtra_len);
+		transport.send(pkt);
+	}
+
+	/**
+	 * Waits for datagram from server and disassembles it into packet.
+	 *
+	 * @return false if invalid packet was received
+	 * @throws SocketTimeoutException if nothing was received in time
+	 */
+	boolean receive(FSPpacket pkt,int wait) throws IOException
+	{
+		if(transport.receive(pkt,wait,true))
+		{
+			metrics.received(FSPpacket.HSIZE+pkt.bb_len+pkt.xtra_len);
+			return true;
+		}
+		metrics.invalid();
+		return false;
+	}
+
+	/** Returns payload of last reply received without copying. */
+	ByteBuffer payload()
+	{
+		return transport.payload(packet);
+	}
+
+	/** Gets resent delay for first transmission of request. */
+	int initialDelay()
+	{
+		if(adaptive)
+			return hoststate.getTimeout(delay,MIN_ADAPTIVE_DELAY,maxdelay);
+		else
+			return delay;
+	}
+
+	/** Increases resent delay after packet loss. */
+	int backoff(int rdelay)
+	{
+		rdelay*=1.5f;
+		if(rdelay>maxdelay) rdelay=maxdelay;
+		if(adaptive)
+			hoststate.backoff(rdelay);
+		return rdelay;
+	}
+
+	/** Adds round trip time of packet which was not resent. */
+	void rttSample(long nanos)
+	{
+		hoststate.sample(nanos);
+		metrics.rtt(nanos);
+	}
+
+	/** Checks if reply to command must have same file position as request. */
+	static boolean isPositioned(byte cmd)
+	{
+		return cmd == FSPpacket.CC_GET_DIR || cmd == FSPpacket.CC_GET_FILE || cmd == FSPpacket.CC_UP_LOAD || cmd == FSPpacket.CC_GRAB_FILE || cmd == FSPpacket.CC_INFO;
 	}
 
 	/** Close a session.
@@ -208,19 +559,31 @@ public class FSPsession implements AutoCloseable {
 	 */
 	@Override
 	public void close() throws Exception {
-		if(socket!=null) {
+		if(transport==null)
+			return;
+		synchronized(this) {
+			if(async!=null) {
+				FSPreactor.getDefault().close(async);
+				async=null;
+			}
+		}
+		try {
 			interact(FSPpacket.CC_BYE,0,null,0,0,null,0,0);
-			socket.close();
 		}
-
-		socket=null;
-		udp=null;
-		packet=null;
-		host=null;
-		port=0;
+		finally {
+			metrics.unregister();
+			transport.close();
+			transport=null;
+			packet=null;
+			host=null;
+			port=0;
+		}
 	}
 
 	/** Gets the delay time before we resent packet for first time.
+	 * <p>
+	 * If adaptive delay is enabled, this delay is used only until round
+	 * trip time to server is measured.
 	 *
 	 * @since 1.0
 	 * @return delay in milliseconds
@@ -303,6 +666,311 @@ public class FSPsession implements AutoCloseable {
 		    	this.timeout=Integer.MAX_VALUE;
 	}
 
+	/**
+	 * Negotiates packet payload size with server.
+	 * <p>
+	 * Server is asked for its setup by CC_VERSION command. If server
+	 * advertises maximum payload larger than FSPpacket.SPACE, session
+	 * will use packets up to that size but not larger than limit.
+	 * Servers which do not answer CC_VERSION within 7 seconds stay
+	 * on standard payload size.
+	 *
+	 * @param limit largest payload to be used. Use getPathPayload() for
+	 *        avoiding IP fragmentation.
+	 * @return negotiated payload size
+	 * @throws IOException if server replied with error
+	 * @since 1.1
+	 */
+	public int negotiatePayload(int limit) throws IOException
+	{
+		FSPversion ver;
+		int tm=timeout;
+		timeout=Math.min(timeout,7000);
+		try {
+			ver=FSPutil.version(this);
+		}
+		catch (SocketTimeoutException e) {
+			return payload;
+		}
+		finally {
+			timeout=tm;
+		}
+		int size=FSPpacket.SPACE;
+		if(ver.extended_info && (ver.payload & 0xFFFF) > FSPpacket.SPACE)
+			size=Math.min(ver.payload & 0xFFFF,Math.min(limit,FSPpacket.MAXSPACE));
+		setPayload(size);
+		return payload;
+	}
+
+	/**
+	 * Negotiates packet payload size with server, keeping packets
+	 * small enough to fit into Ethernet frame without IP fragmentation.
+	 *
+	 * @return negotiated payload size
+	 * @throws IOException if server replied with error
+	 * @see #negotiatePayload(int)
+	 * @since 1.1
+	 */
+	public int negotiatePayload() throws IOException
+	{
+		return negotiatePayload(getPathPayload());
+	}
+
+	/* switch session buffers to new payload size */
+	private void setPayload(int size)
+	{
+		if(size<FSPpacket.SPACE) size=FSPpacket.SPACE;
+		iolock.lock();
+		try
+		{
+			packet=new FSPpacket(size);
+			transport.setPayload(size);
+		}
+		finally
+		{
+			iolock.unlock();
+		}
+		payload=size;
+		if(size>FSPpacket.SPACE)
+		{
+			getsize=new byte[2];
+			getsize[0]=(byte)((size >>> 8) & 0xFF);
+			getsize[1]=(byte)(size & 0xFF);
+		}
+		else
+			getsize=null;
+	}
+
+	/**
+	 * Gets payload size used for file transfers.
+	 *
+	 * @return payload size in bytes, FSPpacket.SPACE unless larger
+	 *         size was negotiated
+	 * @since 1.1
+	 */
+	public int getPayload()
+	{
+		return payload;
+	}
+
+	/**
+	 * Gets largest payload which fits into standard 1500 bytes
+	 * Ethernet MTU.
+	 *
+	 * @return payload size in bytes for path to server
+	 * @since 1.1
+	 */
+	public int getPathPayload()
+	{
+		/* MTU - IP header - UDP header - FSP header */
+		if(host instanceof Inet6Address)
+			return 1500-40-8-FSPpacket.HSIZE;
+		else
+			return 1500-20-8-FSPpacket.HSIZE;
+	}
+
+	/**
+	 * Restores settings changed by user to their defaults. Used by
+	 * FSPsessionPool, so next borrower does not inherit them.
+	 */
+	void reset()
+	{
+		timeout=DEFAULT_TIMEOUT;
+		delay=DEFAULT_DELAY;
+		maxdelay=MAX_DELAY;
+		window=DEFAULT_WINDOW;
+		adaptive=true;
+		if(payload!=FSPpacket.SPACE)
+			setPayload(FSPpacket.SPACE);
+	}
+
+	/** Creates packet for holding replies of this session. */
+	FSPpacket newPacket()
+	{
+		return new FSPpacket(payload);
+	}
+
+	/**
+	 * Returns extra data for CC_GET_FILE requesting negotiated block
+	 * size. Returns null if standard block size is used.
+	 */
+	byte[] blockSizeRequest()
+	{
+		return getsize;
+	}
+
+	/** Checks if resent delay is computed from measured round trip time.
+	 *
+	 * @since 1.1
+	 * @return true if adaptive delay is enabled
+	 */
+	public boolean isAdaptiveDelay()
+	{
+		return adaptive;
+	}
+
+	/** Enables or disables adaptive resent delay.
+	 * <p>
+	 * If enabled (default), round trip time to server is measured and
+	 * resent delay is computed from smoothed round trip time and its
+	 * variance. Resent delay can go down to MIN_ADAPTIVE_DELAY on fast
+	 * networks. Round trip time is shared by all sessions to same server.
+	 * If disabled, fixed delay set by setDelay() is used.
+	 *
+	 * @since 1.1
+	 * @param adaptive true for adaptive resent delay
+	 */
+	public void setAdaptiveDelay(boolean adaptive)
+	{
+		this.adaptive=adaptive;
+	}
+
+	/** Gets smoothed round trip time to server.
+	 *
+	 * @since 1.1
+	 * @return round trip time in milliseconds or -1 if not measured yet
+	 */
+	public float getRTT()
+	{
+		return hoststate.getRTT();
+	}
+
+	/** Gets transfer metrics of this session.
+	 * <p>
+	 * Metrics are also registered as JMX MBean until session is closed.
+	 *
+	 * @since 1.1
+	 * @return session metrics
+	 */
+	public FSPmetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/** Gets transfer metrics of all sessions talking to this FSP server.
+	 *
+	 * @since 1.1
+	 * @return host metrics
+	 */
+	public FSPmetrics getHostMetrics()
+	{
+		return hoststate.metrics;
+	}
+
+	/** Gets metadata cache used for this FSP server.
+	 *
+	 * @since 1.1
+	 * @return cache or null if caching is disabled
+	 */
+	public FSPcache getCache()
+	{
+		return hoststate.cache;
+	}
+
+	/** Sets metadata cache used for this FSP server.
+	 * <p>
+	 * Cache is shared by all sessions to the same host and port. Results
+	 * of FSPutil.stat(), list() and statlist() are served from cache
+	 * while valid.
+	 *
+	 * @since 1.1
+	 * @param cache cache to use, null disables caching
+	 */
+	public void setCache(FSPcache cache)
+	{
+		hoststate.cache=cache;
+	}
+
+	/** Tells whether FSP server accepts older access keys.
+	 *
+	 * @since 1.1
+	 * @return true if server is marked as lenient
+	 * @see #setLenientServer(boolean)
+	 */
+	public boolean isLenientServer()
+	{
+		return hoststate.lenient;
+	}
+
+	/** Marks FSP server as accepting older access keys.
+	 * <p>
+	 * fspd accepts only key from its last reply, so by default sessions
+	 * to the same server take turns: request waits until request of
+	 * other session is answered and transfers do not use window. Server
+	 * which accepts keys from older replies, for example FSPserver in
+	 * lenient mode, gets requests of all sessions concurrently and
+	 * transfers keep whole window in flight. Server remembers limited
+	 * number of older keys, 64 in case of FSPserver, so windows of all
+	 * sessions together should stay below it. Marking fspd as lenient
+	 * makes its sessions lose packets and time out.
+	 * <p>
+	 * Setting is shared by all sessions to the same host and port.
+	 * Change it before sessions start to send requests.
+	 *
+	 * @since 1.1
+	 * @param lenient true if server accepts older keys
+	 */
+	public void setLenientServer(boolean lenient)
+	{
+		hoststate.lenient=lenient;
+	}
+
+	/** Gets number of requests which file transfers keep in flight.
+	 * Server which is not lenient gets one request at time. */
+	int transferWindow()
+	{
+		return hoststate.lenient ? window : 1;
+	}
+
+	/** Gets number of requests kept in flight during file transfers.
+	 *
+	 * @since 1.1
+	 * @return transfer window size in packets
+	 */
+	public int getWindow()
+	{
+		return window;
+	}
+
+	/** Sets number of requests kept in flight during file transfers.
+	 * <p>
+	 * If window is larger than 1, FSPutil.download() and FSPInputStream
+	 * send multiple CC_GET_FILE requests for consecutive blocks without
+	 * waiting for replies. Real number of requests in flight is adapted
+	 * to packet loss, window is upper limit only.
+	 * <p>
+	 * Pipelined requests carry older access keys, so window is used only
+	 * if server is marked by setLenientServer(). Transfers from other
+	 * servers send one request at time.
+	 *
+	 * @since 1.1
+	 * @param window number of requests in flight, between 1 and MAX_WINDOW
+	 */
+	public void setWindow(int window)
+	{
+		if(window<1)
+			this.window=1;
+		else
+			if(window>MAX_WINDOW)
+				this.window=MAX_WINDOW;
+			else
+				this.window=window;
+	}
+
+	/**
+	 * Sets socket option on session socket, for example
+	 * StandardSocketOptions.SO_RCVBUF or SO_SNDBUF.
+	 *
+	 * @param name socket option
+	 * @param value new value of option
+	 * @throws IOException if option is not supported or can't be set
+	 * @since 1.1
+	 */
+	public <T> void setOption(SocketOption<T> name, T value) throws IOException
+	{
+		transport.setOption(name,value);
+	}
+
 	/** Get FSP host.
 	 * <p>
 	 * Get InetAddress of FSP server we are connected to.
@@ -351,27 +1019,33 @@ public class FSPsession implements AutoCloseable {
 	 * @param lock object writing to FSP session
 	 * @param wait wait if we can't acquire lock now
 	 * @throws IllegalStateException if session is already write locked and
-	 * no wait was specified
+	 * no wait was specified or if thread was interrupted while waiting.
+	 * Interrupt status is kept set.
 	 * @since 1.0rc8
 	 */
 	public void lockWriter(Object lock, boolean wait) {
-		synchronized(lockwait) {
+		writerlock.lock();
+		try {
 			if ( writer == null || writer == lock )
 				writer = lock;
 			else
-				if ( wait )
-					while ( true ) {
+				if ( wait ) {
+					while ( writer != null ) {
 						try {
-							lockwait.wait();
-						} catch (InterruptedException e) {}
-						if ( writer == null ) {
-							writer = lock;
-							return;
+							writerfree.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IllegalStateException("Interrupted while waiting for writer lock");
 						}
 					}
+					writer = lock;
+				}
 				else
 					throw new IllegalStateException("Writer is locked");
 		}
+		finally {
+			writerlock.unlock();
+		}
 	}
 
 	/**
@@ -385,11 +1059,15 @@ public class FSPsession implements AutoCloseable {
 	 * @since 1.0rc8
 	 */
 	public void unlockWriter(Object lock) {
-		synchronized(lockwait) {
+		writerlock.lock();
+		try {
 			if ( writer == null || writer != lock )
 					throw new IllegalStateException("Not write lock owner");
 			writer = null;
-			lockwait.notify();
+			writerfree.signal();
+		}
+		finally {
+			writerlock.unlock();
 		}
 	}
 }
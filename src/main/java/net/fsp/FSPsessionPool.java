@@ -0,0 +1,644 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of reusable FSP sessions.
+ * <p>
+ * Sessions are pooled per host:port. Number of sessions per host is
+ * bounded, callers wait for free session if limit is reached. Sessions
+ * idle for longer than idle timeout are closed. Session which was idle
+ * for a while is checked by CC_STAT command before it is handed out
+ * again.
+ * <p>
+ * Sessions obtained from pool by acquire() must be returned by release()
+ * or invalidate() if they are broken. Session handed over to stream
+ * returned to application is tracked by lease, which returns it to pool
+ * if stream is garbage collected without being closed.
+ *
+ * @author Radim Kolar
+ * @see FSPsession
+ * @since 1.1
+ */
+public class FSPsessionPool implements AutoCloseable
+{
+	/** default maximum number of sessions per host */
+	public final static int DEFAULT_MAX_SESSIONS=8;
+	/** default time after idle session is closed (msec) */
+	public final static int DEFAULT_IDLE_TIMEOUT=60000;
+	/** default idle time after session is checked before reuse (msec) */
+	public final static int DEFAULT_VALIDATE_AFTER=15000;
+	/** default time to wait for free session (msec) */
+	public final static int DEFAULT_MAX_WAIT=FSPsession.DEFAULT_TIMEOUT;
+
+	/* timeout used for CC_BYE and health check */
+	private final static int QUICK_TIMEOUT=3000;
+
+	/* sessions for one host:port */
+	private static final class Host
+	{
+		String host;
+		int port;
+		int total;
+		/* threads in acquire() waiting for this host */
+		int waiters;
+		ArrayDeque<Idle> idle=new ArrayDeque<Idle>();
+	}
+
+	private static final class Idle
+	{
+		FSPsession ses;
+		long since;
+	}
+
+	/**
+	 * Session owned by object which can be lost by application. Session
+	 * is invalidated if owner becomes unreachable before lease is ended.
+	 */
+	static final class Lease implements Runnable
+	{
+		private final FSPsessionPool pool;
+		private final FSPsession ses;
+		private final AtomicBoolean ended=new AtomicBoolean();
+		private Cleaner.Cleanable cleanable;
+
+		private Lease(FSPsessionPool pool, FSPsession ses)
+		{
+			this.pool=pool;
+			this.ses=ses;
+		}
+
+		/* owner was garbage collected, state of session is unknown */
+		public void run()
+		{
+			if(ended.compareAndSet(false,true))
+				pool.invalidate(ses);
+		}
+
+		/** Returns session to pool. Later calls are ignored. */
+		void release()
+		{
+			if(ended.compareAndSet(false,true))
+				pool.release(ses);
+			cleanable.clean();
+		}
+
+		/** Removes broken session from pool. Later calls are ignored. */
+		void invalidate()
+		{
+			if(ended.compareAndSet(false,true))
+				pool.invalidate(ses);
+			cleanable.clean();
+		}
+	}
+
+	private static FSPsessionPool pool;
+	private static Cleaner cleaner;
+
+	private HashMap<String, Host> hosts;
+	private IdentityHashMap<FSPsession, Host> owners;
+	private int maxsessions;
+	private int idletimeout;
+	private int validateafter;
+	private int maxwait;
+	private boolean closed;
+	private Timer evictor;
+	/* not a monitor, virtual threads waiting for session are not pinned */
+	private final ReentrantLock lock=new ReentrantLock();
+	private final Condition released=lock.newCondition();
+
+	/**
+	 * Creates new empty pool with default settings.
+	 *
+	 * @since 1.1
+	 */
+	public FSPsessionPool()
+	{
+		hosts=new HashMap<String, Host>();
+		owners=new IdentityHashMap<FSPsession, Host>();
+		maxsessions=DEFAULT_MAX_SESSIONS;
+		idletimeout=DEFAULT_IDLE_TIMEOUT;
+		validateafter=DEFAULT_VALIDATE_AFTER;
+		maxwait=DEFAULT_MAX_WAIT;
+	}
+
+	/**
+	 * Returns pool shared by FSP URL handler.
+	 *
+	 * @return default session pool
+	 * @since 1.1
+	 */
+	public static synchronized FSPsessionPool getDefault()
+	{
+		if(pool==null)
+			pool=new FSPsessionPool();
+		return pool;
+	}
+
+	/**
+	 * Gets session to FSP server. Idle session is reused if possible,
+	 * otherwise new session is created. If there are already maximum
+	 * number of sessions to server, waits until one is released.
+	 *
+	 * @param host hostname of fsp server
+	 * @param port port number on fsp server, &lt;= 0 for default port
+	 * @return FSPsession owned by caller until released
+	 * @throws IOException if session can't be created or no session
+	 *         was released in time
+	 * @since 1.1
+	 */
+	public FSPsession acquire(String host, int port) throws IOException
+	{
+		if(port<=0) port=21;
+		String key=host+":"+port;
+		long started=System.nanoTime();
+
+		while(true)
+		{
+			Idle candidate=null;
+			Host h;
+			List<FSPsession> expired;
+			lock.lock();
+			try
+			{
+				if(closed)
+					throw new IllegalStateException("Pool is closed");
+				expired=collectIdle();
+				h=hosts.get(key);
+				if(h==null)
+				{
+					h=new Host();
+					h.host=host;
+					h.port=port;
+					hosts.put(key,h);
+				}
+				while(true)
+				{
+					/* host is not removed from map while we wait */
+					if(!h.idle.isEmpty())
+					{
+						/* most recently used session is most likely alive */
+						candidate=h.idle.pollLast();
+						break;
+					}
+					if(h.total<maxsessions)
+					{
+						h.total++;
+						break;
+					}
+					long left=maxwait*1000000L-(System.nanoTime()-started);
+					if(left<=0)
+						throw new IOException("No free FSP session to "+key);
+					h.waiters++;
+					try
+					{
+						released.awaitNanos(left);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new java.io.InterruptedIOException("Interrupted while waiting for FSP session");
+					}
+					finally
+					{
+						h.waiters--;
+					}
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			closeQuietly(expired);
+
+			if(candidate==null)
+			{
+				/* create new session */
+				FSPsession ses;
+				try
+				{
+					ses=new FSPsession(host,port);
+				}
+				catch (IOException e)
+				{
+					lock.lock();
+					try
+					{
+						h.total--;
+						released.signalAll();
+					}
+					finally
+					{
+						lock.unlock();
+					}
+					throw e;
+				}
+				lock.lock();
+				try
+				{
+					owners.put(ses,h);
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				return ses;
+			}
+
+			if(System.currentTimeMillis()-candidate.since<validateafter || validate(candidate.ses))
+				return candidate.ses;
+			invalidate(candidate.ses);
+		}
+	}
+
+	/* health check of idle session */
+	private boolean validate(FSPsession ses)
+	{
+		int tm=ses.getTimeout();
+		ses.setTimeout(QUICK_TIMEOUT);
+		try
+		{
+			FSPutil.statSupported(ses);
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		finally
+		{
+			ses.setTimeout(tm);
+		}
+	}
+
+	/**
+	 * Takes over session obtained by acquire() for owner object. Session
+	 * is invalidated when owner is garbage collected before the lease
+	 * is released or invalidated.
+	 *
+	 * @param owner object using session
+	 * @param ses session obtained by acquire()
+	 * @return lease of session
+	 */
+	Lease lease(Object owner, FSPsession ses)
+	{
+		Lease l=new Lease(this,ses);
+		synchronized(FSPsessionPool.class)
+		{
+			if(cleaner==null)
+				cleaner=Cleaner.create();
+			l.cleanable=cleaner.register(owner,l);
+		}
+		return l;
+	}
+
+	/**
+	 * Returns session to pool. Timeout, resent delays, window and payload
+	 * of session are reset to default values, socket options set by
+	 * FSPsession.setOption() are kept.
+	 *
+	 * @param ses session obtained by acquire()
+	 * @throws IllegalArgumentException if session is not from this pool
+	 * @throws IllegalStateException if session was already released
+	 * @since 1.1
+	 */
+	public void release(FSPsession ses)
+	{
+		lock.lock();
+		try
+		{
+			Host h=owned(ses);
+			if(!closed)
+			{
+				ses.reset();
+				Idle i=new Idle();
+				i.ses=ses;
+				i.since=System.currentTimeMillis();
+				h.idle.addLast(i);
+				released.signalAll();
+				startEvictor();
+				return;
+			}
+			owners.remove(ses);
+			h.total--;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		closeQuietly(ses);
+	}
+
+	/**
+	 * Removes broken session from pool and closes it.
+	 *
+	 * @param ses session obtained by acquire()
+	 * @throws IllegalArgumentException if session is not from this pool
+	 * @throws IllegalStateException if session was already released
+	 * @since 1.1
+	 */
+	public void invalidate(FSPsession ses)
+	{
+		lock.lock();
+		try
+		{
+			Host h=owned(ses);
+			owners.remove(ses);
+			h.total--;
+			released.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		closeQuietly(ses);
+	}
+
+	/* host of session in use, must hold lock */
+	private Host owned(FSPsession ses)
+	{
+		Host h=owners.get(ses);
+		if(h==null)
+			throw new IllegalArgumentException("Session is not owned by pool");
+		for(Idle i:h.idle)
+			if(i.ses==ses)
+				throw new IllegalStateException("Session is already released");
+		return h;
+	}
+
+	/**
+	 * Closes sessions which were idle for longer than idle timeout.
+	 *
+	 * @since 1.1
+	 */
+	public void evictIdle()
+	{
+		List<FSPsession> expired;
+		lock.lock();
+		try
+		{
+			expired=collectIdle();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		closeQuietly(expired);
+	}
+
+	/* removes expired idle sessions from pool, must hold lock */
+	private List<FSPsession> collectIdle()
+	{
+		List<FSPsession> expired=new ArrayList<FSPsession>();
+		long now=System.currentTimeMillis();
+		Iterator<Host> hi=hosts.values().iterator();
+		while(hi.hasNext())
+		{
+			Host h=hi.next();
+			Iterator<Idle> it=h.idle.iterator();
+			while(it.hasNext())
+			{
+				Idle i=it.next();
+				if(closed || now-i.since>=idletimeout)
+				{
+					it.remove();
+					owners.remove(i.ses);
+					h.total--;
+					expired.add(i.ses);
+				}
+			}
+			if(h.total==0 && h.waiters==0)
+				hi.remove();
+		}
+		if(!expired.isEmpty())
+			released.signalAll();
+		return expired;
+	}
+
+	/* start background eviction of idle sessions, must hold lock */
+	private void startEvictor()
+	{
+		if(evictor!=null)
+			return;
+		evictor=new Timer("FSP session pool evictor",true);
+		long period=Math.max(1000,idletimeout/2);
+		evictor.schedule(new TimerTask() {
+			public void run() {
+				evictIdle();
+			}
+		},period,period);
+	}
+
+	private static void closeQuietly(List<FSPsession> sessions)
+	{
+		for(FSPsession ses:sessions)
+			closeQuietly(ses);
+	}
+
+	/* close session, do not wait long for CC_BYE reply */
+	private static void closeQuietly(FSPsession ses)
+	{
+		ses.setTimeout(QUICK_TIMEOUT);
+		try
+		{
+			ses.close();
+		}
+		catch (Exception e) {}
+	}
+
+	/**
+	 * Closes all idle sessions. Sessions in use are closed when
+	 * released.
+	 *
+	 * @since 1.1
+	 */
+	public void close()
+	{
+		List<FSPsession> expired;
+		lock.lock();
+		try
+		{
+			closed=true;
+			expired=collectIdle();
+			if(evictor!=null)
+			{
+				evictor.cancel();
+				evictor=null;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		closeQuietly(expired);
+	}
+
+	/** Gets maximum number of sessions per host.
+	 *
+	 * @return maximum number of sessions
+	 * @since 1.1
+	 */
+	public int getMaxSessions()
+	{
+		lock.lock();
+		try
+		{
+			return maxsessions;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** Sets maximum number of sessions per host.
+	 *
+	 * @param max maximum number of sessions, at least 1
+	 * @since 1.1
+	 */
+	public void setMaxSessions(int max)
+	{
+		lock.lock();
+		try
+		{
+			maxsessions=Math.max(1,max);
+			released.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** Gets time after idle session is closed.
+	 *
+	 * @return idle timeout in milliseconds
+	 * @since 1.1
+	 */
+	public int getIdleTimeout()
+	{
+		lock.lock();
+		try
+		{
+			return idletimeout;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** Sets time after idle session is closed.
+	 *
+	 * @param timeout idle timeout in milliseconds
+	 * @since 1.1
+	 */
+	public void setIdleTimeout(int timeout)
+	{
+		lock.lock();
+		try
+		{
+			idletimeout=timeout;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** Gets idle time after session is checked before reuse.
+	 *
+	 * @return time in milliseconds
+	 * @since 1.1
+	 */
+	public int getValidateAfter()
+	{
+		lock.lock();
+		try
+		{
+			return validateafter;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** Sets idle time after session is checked by CC_STAT command
+	 * before reuse. Zero means always check.
+	 *
+	 * @param time time in milliseconds
+	 * @since 1.1
+	 */
+	public void setValidateAfter(int time)
+	{
+		lock.lock();
+		try
+		{
+			validateafter=time;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** Gets time to wait for free session.
+	 *
+	 * @return time in milliseconds
+	 * @since 1.1
+	 */
+	public int getMaxWait()
+	{
+		lock.lock();
+		try
+		{
+			return maxwait;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/** Sets time acquire() waits for free session.
+	 *
+	 * @param time time in milliseconds
+	 * @since 1.1
+	 */
+	public void setMaxWait(int time)
+	{
+		lock.lock();
+		try
+		{
+			maxwait=time;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
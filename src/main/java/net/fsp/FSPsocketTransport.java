@@ -0,0 +1,83 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+
+/**
+ * FSP transport based on blocking java.net.DatagramSocket.
+ *
+ * @author Radim Kolar
+ * @see FSPtransport
+ * @since 1.1
+ */
+class FSPsocketTransport implements FSPtransport
+{
+	private DatagramSocket socket;
+	private DatagramPacket udp;
+
+	/**
+	 * Creates transport sending packets to given server.
+	 *
+	 * @param host address of FSP server
+	 * @param port port number of FSP server
+	 */
+	FSPsocketTransport(InetAddress host, int port) throws java.net.SocketException
+	{
+		socket=new DatagramSocket();
+		udp=new DatagramPacket(new byte[FSPpacket.SPACE+FSPpacket.HSIZE],FSPpacket.SPACE+FSPpacket.HSIZE,host,port);
+	}
+
+	public void send(FSPpacket pkt) throws IOException
+	{
+		pkt.assemble(udp);
+		socket.send(udp);
+	}
+
+	public boolean receive(FSPpacket pkt, int wait, boolean copy) throws IOException
+	{
+		try
+		{
+			socket.setSoTimeout(wait);
+		}
+		catch (java.net.SocketException ex) {}
+		udp.setLength(udp.getData().length);
+		socket.receive(udp);
+		/* payload is always copied, packet buffer is heap array anyway */
+		return pkt.disassemble(udp);
+	}
+
+	public ByteBuffer payload(FSPpacket pkt)
+	{
+		return ByteBuffer.wrap(pkt.buf,0,pkt.bb_len);
+	}
+
+	public void setPayload(int space)
+	{
+		udp.setData(new byte[space+FSPpacket.HSIZE]);
+	}
+
+	public <T> void setOption(SocketOption<T> name, T value) throws IOException
+	{
+		socket.setOption(name,value);
+	}
+
+	public void close()
+	{
+		socket.close();
+	}
+}
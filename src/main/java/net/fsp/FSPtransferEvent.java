@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of FSP file transfer or directory listing.
+ * <p>
+ * Event is emitted by FSPutil download, upload and statlist methods.
+ * Duration of event is duration of whole operation.
+ *
+ * @author Radim Kolar
+ * @see FSPutil
+ * @since 1.1
+ */
+@Name("net.fsp.Transfer")
+@Label("FSP Transfer")
+@Category({"FSP"})
+@Description("FSP download, upload or directory listing")
+class FSPtransferEvent extends Event
+{
+	@Label("Operation")
+	String operation;
+
+	@Label("Host")
+	String host;
+
+	@Label("Path")
+	String path;
+
+	@Label("Bytes")
+	@Description("Bytes of file or directory data transferred")
+	@DataAmount
+	long bytes;
+
+	@Label("Succeeded")
+	boolean succeeded;
+
+	/** Fills fields and commits event if it is enabled. */
+	void end(String operation, FSPsession session, String path, long bytes, boolean succeeded)
+	{
+		if(!shouldCommit())
+			return;
+		this.operation=operation;
+		this.host=session.hostAddress();
+		this.path=path;
+		this.bytes=bytes;
+		this.succeeded=succeeded;
+		commit();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram transport used by FSPsession for talking to FSP server.
+ * <p>
+ * Transport owns buffers for sending and receiving datagrams. It is not
+ * thread safe, FSPsession serializes access to it.
+ *
+ * @author Radim Kolar
+ * @see FSPsession
+ * @since 1.1
+ */
+interface FSPtransport
+{
+	/**
+	 * Assembles packet and sends it to server.
+	 *
+	 * @param pkt packet to be sent
+	 * @throws IOException if packet can't be sent
+	 */
+	void send(FSPpacket pkt) throws IOException;
+
+	/**
+	 * Waits for datagram from server and disassembles it into packet.
+	 *
+	 * @param pkt storage for received packet
+	 * @param wait maximum time to wait in milliseconds
+	 * @param copy copy payload into packet buffer. If false, payload
+	 *        is available from payload() until next receive.
+	 * @return false if invalid packet was received
+	 * @throws java.net.SocketTimeoutException if nothing was received in time
+	 * @throws IOException on network error
+	 */
+	boolean receive(FSPpacket pkt, int wait, boolean copy) throws IOException;
+
+	/**
+	 * Returns payload of last packet received by receive().
+	 *
+	 * @param pkt packet passed to last receive() call
+	 * @return buffer with payload between position and limit. Buffer
+	 *         can be read-only and reused by next call.
+	 */
+	ByteBuffer payload(FSPpacket pkt);
+
+	/**
+	 * Resizes transport buffers for new maximum payload.
+	 *
+	 * @param space maximum payload size
+	 */
+	void setPayload(int space);
+
+	/**
+	 * Sets socket option.
+	 *
+	 * @param name socket option
+	 * @param value new value
+	 * @throws IOException if option can't be set
+	 */
+	<T> void setOption(SocketOption<T> name, T value) throws IOException;
+
+	/** Closes transport, releasing socket. */
+	void close();
+}
@@ -0,0 +1,119 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Windowed file upload engine.
+ * <p>
+ * FSPuploader keeps multiple CC_UP_LOAD requests for consecutive
+ * blocks in flight. Every request carries its file position, so lost
+ * blocks are resent alone and server can receive blocks in any order.
+ * Caller must wait for all acknowledgements by drain() before sending
+ * CC_INSTALL.
+ *
+ * @author Radim Kolar
+ * @see FSPpipeline
+ * @see FSPdownloader
+ * @since 1.1
+ */
+class FSPuploader
+{
+	private FSPpipeline pipe;
+	/* position of next block */
+	private long pos;
+
+	/**
+	 * Creates new uploader.
+	 *
+	 * @param session FSPsession to use, its window limits number of
+	 *        blocks in flight
+	 * @param start_from position of first block
+	 */
+	FSPuploader(FSPsession session,long start_from)
+	{
+		pipe=new FSPpipeline(session,session.transferWindow());
+		pos=start_from;
+	}
+
+	/**
+	 * Sends block at next position. Waits for acknowledgements if
+	 * window is full. Data are copied, buffer can be reused.
+	 *
+	 * @param buf data to be sent
+	 * @param off offset of data
+	 * @param len length of data, not larger than session payload
+	 * @throws IOException if server rejected block or can't be reached
+	 */
+	void write(byte buf[],int off,int len) throws IOException
+	{
+		while(!pipe.canSubmit())
+			acknowledge();
+		pipe.submit(FSPpacket.CC_UP_LOAD,pos,buf,off,len,null,0,0);
+		pos+=len;
+	}
+
+	/**
+	 * Sends remaining bytes of buffer as block at next position. Data
+	 * are not copied, buffer content must not change until drain().
+	 * Buffer position is not changed.
+	 *
+	 * @param data block data, not larger than session payload
+	 * @throws IOException if server rejected block or can't be reached
+	 */
+	void write(ByteBuffer data) throws IOException
+	{
+		while(!pipe.canSubmit())
+			acknowledge();
+		pipe.submit(FSPpacket.CC_UP_LOAD,pos,data);
+		pos+=data.remaining();
+	}
+
+	/**
+	 * Waits until all blocks are acknowledged by server.
+	 *
+	 * @throws IOException if server rejected block or can't be reached
+	 */
+	void drain() throws IOException
+	{
+		while(pipe.pending()>0)
+			acknowledge();
+	}
+
+	/** Returns position of next block. */
+	long position()
+	{
+		return pos;
+	}
+
+	/* wait for one acknowledgement */
+	private void acknowledge() throws IOException
+	{
+		FSPpacket pkt=pipe.take();
+		try
+		{
+			pkt.expect(FSPpacket.CC_UP_LOAD);
+		}
+		catch (IOException e)
+		{
+			/* do not wait for other blocks of failed upload */
+			pipe.clear();
+			throw e;
+		}
+		finally
+		{
+			pipe.recycle(pkt);
+		}
+	}
+}
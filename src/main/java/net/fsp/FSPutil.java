@@ -10,10 +10,40 @@ use of this software.
 		    Let me know of any bugs and suggestions.
  */
 package net.fsp;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.util.Vector;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /** Utilities for easier working with FSP.
  * <p>
@@ -29,6 +59,8 @@ public class FSPutil
 	 * <p>
 	 * This procedure download a file from FSP server, file is written to
 	 * OutputStream.  OutputStream is not closed at end of transfer.
+	 * If session window is larger than 1 and server is lenient, multiple
+	 * blocks are requested at once.
 	 *
 	 * @since 1.0
 	 * @param session active FSP session
@@ -37,14 +69,45 @@ public class FSPutil
 	 * @param start_from offset where to start download
 	 * @param byteswanted how many bytes to download, &lt; 0 for all
 	 * @throws IOException if i/o or net error ocured during file transfer
+	 * @see FSPsession#setWindow(int)
 	 */
 	public static void download(FSPsession session,String filename,OutputStream os,long start_from,long byteswanted) throws IOException
+	{
+		FSPtransferEvent event=new FSPtransferEvent();
+		event.begin();
+		long bytes[]=new long[1];
+		boolean ok=false;
+		try
+		{
+			downloadStream(session,filename,os,start_from,byteswanted,bytes);
+			ok=true;
+		}
+		finally
+		{
+			event.end("download",session,filename,bytes[0],ok);
+		}
+	}
+
+	/* download to stream, bytes[0] counts transferred bytes */
+	private static void downloadStream(FSPsession session,String filename,OutputStream os,long start_from,long byteswanted,long bytes[]) throws IOException
 	{
 		FSPpacket pkt;
+		if(session.transferWindow()>1)
+		{
+			/* pipelined transfer */
+			FSPdownloader dl=new FSPdownloader(session,filename,start_from,byteswanted);
+			while( (pkt=dl.next()) != null )
+			{
+				os.write(pkt.buf,0,pkt.bb_len);
+				bytes[0]+=pkt.bb_len;
+			}
+			return;
+		}
 		byte fname[]=stringToASCIIZ(filename);
+		byte getsize[]=session.blockSizeRequest();
 		while(true)
 		{
-			pkt=session.interact(FSPpacket.CC_GET_FILE,start_from,fname,0,fname.length,null,0,0);
+			pkt=session.interact(FSPpacket.CC_GET_FILE,start_from,fname,0,fname.length,getsize,0,getsize==null ? 0 : getsize.length);
 			pkt.expect(FSPpacket.CC_GET_FILE);
 			if(pkt.bb_len==0) return;
 			if(
@@ -55,15 +118,234 @@ public class FSPutil
 				pkt.bb_len = (short) byteswanted;
 			}
 			os.write(pkt.buf,0,pkt.bb_len);
+			bytes[0]+=pkt.bb_len;
 			start_from+=pkt.bb_len;
 			byteswanted-=pkt.bb_len;
 			if(byteswanted == 0 ) return;
 		}
 	}
 
+	/** Downloads a file from FSP server into channel.
+	 * <p>
+	 * File is written to channel at its current position. Channel is not
+	 * closed at end of transfer. If session uses NIO transport, data are
+	 * written to channel straight from receive buffer.
+	 *
+	 * @since 1.1
+	 * @param session active FSP session
+	 * @param filename filename on FSP server
+	 * @param ch write file to this channel, usually FileChannel
+	 * @param start_from offset where to start download
+	 * @param byteswanted how many bytes to download, &lt; 0 for all
+	 * @throws IOException if i/o or net error ocured during file transfer
+	 * @see FSPsession#FSPsession(String, int, boolean)
+	 */
+	public static void download(FSPsession session,String filename,WritableByteChannel ch,long start_from,long byteswanted) throws IOException
+	{
+		FSPtransferEvent event=new FSPtransferEvent();
+		event.begin();
+		long bytes[]=new long[1];
+		boolean ok=false;
+		try
+		{
+			downloadChannel(session,filename,ch,start_from,byteswanted,bytes);
+			ok=true;
+		}
+		finally
+		{
+			event.end("download",session,filename,bytes[0],ok);
+		}
+	}
+
+	/* download to channel, bytes[0] counts transferred bytes */
+	private static void downloadChannel(FSPsession session,String filename,WritableByteChannel ch,long start_from,long byteswanted,long bytes[]) throws IOException
+	{
+		FSPpacket pkt;
+		ByteBuffer data;
+		if(session.transferWindow()>1)
+		{
+			/* pipelined transfer */
+			FSPdownloader dl=new FSPdownloader(session,filename,start_from,byteswanted);
+			while( (pkt=dl.next()) != null )
+			{
+				data=ByteBuffer.wrap(pkt.buf,0,pkt.bb_len);
+				while(data.hasRemaining())
+					ch.write(data);
+				bytes[0]+=pkt.bb_len;
+			}
+			return;
+		}
+		byte fname[]=stringToASCIIZ(filename);
+		byte getsize[]=session.blockSizeRequest();
+		while(true)
+		{
+			pkt=session.interact(FSPpacket.CC_GET_FILE,start_from,fname,0,fname.length,getsize,0,getsize==null ? 0 : getsize.length,false);
+			pkt.expect(FSPpacket.CC_GET_FILE);
+			if(pkt.bb_len==0) return;
+			if(
+					(pkt.bb_len > byteswanted) &&
+					( byteswanted >= 0 )
+			)
+			{
+				pkt.bb_len = (short) byteswanted;
+			}
+			data=session.payload();
+			while(data.hasRemaining())
+				ch.write(data);
+			bytes[0]+=pkt.bb_len;
+			start_from+=pkt.bb_len;
+			byteswanted-=pkt.bb_len;
+			if(byteswanted == 0 ) return;
+		}
+	}
+
+	/** Downloads a file from FSP server into local file, resuming
+	 * previous interrupted download.
+	 * <p>
+	 * Completed ranges are recorded in journal file stored next to local
+	 * file together with modification time and length of remote file.
+	 * If download fails, it can be called again and only missing ranges
+	 * are downloaded. If remote file was changed, download starts from
+	 * beginning. Journal is deleted after successful download.
+	 *
+	 * @since 1.1
+	 * @param session active FSP session
+	 * @param filename filename on FSP server
+	 * @param target local file
+	 * @return number of bytes downloaded by this call
+	 * @throws FileNotFoundException if remote file does not exist
+	 * @throws IOException if i/o or net error ocured during file transfer,
+	 *         journal is saved before exception is thrown
+	 */
+	public static long downloadResumable(FSPsession session,String filename,File target) throws IOException
+	{
+		FSPstat stat=stat(session,filename);
+		if(stat==null || stat.type!=FSPstat.RDTYPE_FILE)
+			throw new FileNotFoundException(filename);
+		FSPjournal journal=FSPjournal.open(target,stat);
+		long done=0;
+		RandomAccessFile raf=new RandomAccessFile(target,"rw");
+		try
+		{
+			FileChannel fc=raf.getChannel();
+			if(journal.isEmpty())
+				fc.truncate(0);
+			raf.setLength(stat.length);
+			try
+			{
+				for(long r[]:journal.missing())
+				{
+					FSPdownloader dl=new FSPdownloader(session,filename,r[0],r[1]-r[0]);
+					FSPpacket pkt;
+					long reached=r[0];
+					while( (pkt=dl.next()) != null )
+					{
+						long pos=pkt.bb_pos & 0xffffffffL;
+						ByteBuffer data=ByteBuffer.wrap(pkt.buf,0,pkt.bb_len);
+						while(data.hasRemaining())
+							fc.write(data,pos+data.position());
+						journal.add(pos,pkt.bb_len);
+						done+=pkt.bb_len;
+						journal.checkpoint(fc);
+						reached=pos+pkt.bb_len;
+					}
+					if(reached<r[1])
+						/* remote file was truncated during transfer */
+						throw new IOException("Unexpected end of file "+filename);
+				}
+			}
+			catch (IOException e)
+			{
+				try
+				{
+					journal.save(fc);
+				}
+				catch (IOException e2)
+				{
+					e.addSuppressed(e2);
+				}
+				throw e;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+		journal.delete();
+		return done;
+	}
+
+	/** Downloads a file from FSP server into memory mapped local file.
+	 * <p>
+	 * Local file is created or overwritten and sized to length of remote
+	 * file, then it is mapped into memory. Every received block is copied
+	 * once from packet buffer into mapping at its file position, so blocks
+	 * are accepted in any order when session window is larger than 1.
+	 * Mapping is written to storage device before method returns.
+	 *
+	 * @since 1.1
+	 * @param session active FSP session
+	 * @param filename filename on FSP server
+	 * @param target local file
+	 * @return length of downloaded file
+	 * @throws FileNotFoundException if remote file does not exist
+	 * @throws IOException if i/o or net error ocured during file transfer
+	 * @see FSPsession#setWindow(int)
+	 */
+	public static long downloadMapped(FSPsession session,String filename,File target) throws IOException
+	{
+		FSPstat stat=stat(session,filename);
+		if(stat==null || stat.type!=FSPstat.RDTYPE_FILE)
+			throw new FileNotFoundException(filename);
+		RandomAccessFile raf=new RandomAccessFile(target,"rw");
+		try
+		{
+			raf.setLength(stat.length);
+			if(stat.length==0)
+				return 0;
+			FileChannel fc=raf.getChannel();
+			/* map file in chunks, single mapping is limited to 2GB */
+			MappedByteBuffer maps[]=new MappedByteBuffer[(int)((stat.length-1)/MAP_CHUNK)+1];
+			for(int i=0;i<maps.length;i++)
+				maps[i]=fc.map(FileChannel.MapMode.READ_WRITE,i*MAP_CHUNK,Math.min(MAP_CHUNK,stat.length-i*MAP_CHUNK));
+			FSPdownloader dl=new FSPdownloader(session,filename,0,stat.length,false);
+			FSPpacket pkt;
+			while( (pkt=dl.next()) != null )
+			{
+				long pos=pkt.bb_pos & 0xffffffffL;
+				int off=0;
+				while(off<pkt.bb_len)
+				{
+					MappedByteBuffer map=maps[(int)(pos/MAP_CHUNK)];
+					int mpos=(int)(pos%MAP_CHUNK);
+					int len=Math.min(pkt.bb_len-off,map.capacity()-mpos);
+					map.position(mpos);
+					map.put(pkt.buf,off,len);
+					off+=len;
+					pos+=len;
+				}
+			}
+			for(int i=0;i<maps.length;i++)
+				maps[i].force();
+		}
+		finally
+		{
+			raf.close();
+		}
+		return stat.length;
+	}
+
+	/* size of one mapping used by downloadMapped */
+	private final static long MAP_CHUNK=1L<<30;
+
 	/**
 	 * Uploads file to FSP server
 	 * <p>
+	 * If session window is larger than 1, multiple blocks are sent at
+	 * once and only lost blocks are resent. File is installed after
+	 * server acknowledged all blocks. Server must write blocks at their
+	 * position, because they can arrive in any order.
+	 *
 	 * @param session opened FSPsession to target server
 	 * @param filename filename on remote server
 	 * @param is InputStream to be sent to server. Stream is not closed at
@@ -74,19 +356,136 @@ public class FSPutil
 	 * @since 1.0rc7
 	 */
 	public static void upload(FSPsession session, String filename, InputStream is, long timestamp) throws IOException {
-		byte[] buf = new byte [FSPpacket.SPACE];
+		FSPtransferEvent event=new FSPtransferEvent();
+		event.begin();
+		long bytes[]=new long[1];
+		boolean ok=false;
+		try {
+			uploadStream(session,filename,is,timestamp,bytes);
+			ok=true;
+		}
+		finally {
+			event.end("upload",session,filename,bytes[0],ok);
+		}
+	}
+
+	/* upload from stream, bytes[0] counts transferred bytes */
+	private static void uploadStream(FSPsession session, String filename, InputStream is, long timestamp, long bytes[]) throws IOException {
+		byte[] buf = new byte [session.getPayload()];
 		FSPpacket pkt;
 		int br;
-		byte[] fname = stringToASCIIZ(filename);
 		long pos=0;
 		boolean first=true;
 
+		if (session.transferWindow() > 1) {
+			/* pipelined transfer, install after all blocks are acknowledged */
+			FSPuploader ul = new FSPuploader(session, 0);
+			while( (br = is.read(buf)) > 0 || first ) {
+				first = false;
+				ul.write(buf, 0, Math.max(br, 0));
+				bytes[0] = ul.position();
+			}
+			ul.drain();
+		}
+		else
 		while( (br = is.read(buf)) > 0 || first ) {
 			first = false;
 			pkt = session.interact(FSPpacket.CC_UP_LOAD, pos, buf, 0, br, null, 0, 0);
 			pkt.expect(FSPpacket.CC_UP_LOAD);
 			pos += br;
+			bytes[0] = pos;
+		}
+		install(session, filename, timestamp);
+	}
+
+	/**
+	 * Uploads file from FileChannel to FSP server without intermediate
+	 * copies.
+	 * <p>
+	 * Channel is read from its current position to end of file. File is
+	 * mapped into memory and packets are assembled straight from mapped
+	 * blocks, so no read call and no copy into user buffer is made for
+	 * block. Blocks are pipelined if session window is larger than 1.
+	 * Channel position is moved to end of file.
+	 *
+	 * @param session opened FSPsession to target server
+	 * @param filename filename on remote server
+	 * @param ch file to be sent, it is not closed at end of operation.
+	 *        File must not be truncated during upload.
+	 * @param timestamp timestamp for uploaded file, 0 if not used. Timestamp
+	 *                  in in standard Java format (milliseconds)
+	 * @throws IOException if i/o or net error ocured during file transfer
+	 * @see #upload(FSPsession, String, InputStream, long)
+	 * @since 1.1
+	 */
+	public static void upload(FSPsession session, String filename, FileChannel ch, long timestamp) throws IOException {
+		FSPtransferEvent event=new FSPtransferEvent();
+		event.begin();
+		long bytes[]=new long[1];
+		boolean ok=false;
+		try {
+			uploadChannel(session,filename,ch,timestamp,bytes);
+			ok=true;
+		}
+		finally {
+			event.end("upload",session,filename,bytes[0],ok);
 		}
+	}
+
+	/**
+	 * Uploads local file to FSP server without intermediate copies.
+	 *
+	 * @param session opened FSPsession to target server
+	 * @param filename filename on remote server
+	 * @param source local file
+	 * @param timestamp timestamp for uploaded file, 0 if not used
+	 * @throws IOException if i/o or net error ocured during file transfer
+	 * @see #upload(FSPsession, String, FileChannel, long)
+	 * @since 1.1
+	 */
+	public static void upload(FSPsession session, String filename, Path source, long timestamp) throws IOException {
+		FileChannel ch=FileChannel.open(source, StandardOpenOption.READ);
+		try {
+			upload(session, filename, ch, timestamp);
+		}
+		finally {
+			ch.close();
+		}
+	}
+
+	/* upload mapped file, bytes[0] counts transferred bytes */
+	private static void uploadChannel(FSPsession session, String filename, FileChannel ch, long timestamp, long bytes[]) throws IOException {
+		int payload = session.getPayload();
+		long start = ch.position();
+		long length = Math.max(0, ch.size() - start);
+		/* blocks must not cross mappings */
+		long chunk = MAP_CHUNK / payload * payload;
+		FSPuploader ul = new FSPuploader(session, 0);
+
+		if (length == 0)
+			ul.write(new byte[0], 0, 0);
+		for (long off = 0; off < length; off += chunk) {
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, start + off, Math.min(chunk, length - off));
+			while (map.hasRemaining()) {
+				ByteBuffer block = map.slice();
+				block.limit(Math.min(payload, block.remaining()));
+				ul.write(block);
+				map.position(map.position() + block.remaining());
+				bytes[0] = ul.position();
+			}
+		}
+		/* mappings must stay valid until all blocks are acknowledged */
+		ul.drain();
+		ch.position(start + length);
+		install(session, filename, timestamp);
+	}
+
+	/* install uploaded file */
+	private static void install(FSPsession session, String filename, long timestamp) throws IOException {
+		byte[] buf;
+		byte[] fname = stringToASCIIZ(filename);
+		FSPpacket pkt;
+
 		if (timestamp != 0 ) {
 			buf = new byte[4];
 			timestamp /= 1000L;
@@ -99,14 +498,62 @@ public class FSPutil
 			buf = new byte[0];
 
 		pkt = session.interact(FSPpacket.CC_INSTALL, buf.length, fname, 0, fname.length, buf, 0, buf.length);
+		invalidate(session, filename);
 		pkt.expect(FSPpacket.CC_INSTALL);
 	}
 
+	/** Deletes file on FSP server.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param filename file to be deleted
+	 * @throws IOException if file can not be deleted or network error ocurs
+	 */
+	public static void delete(FSPsession session, String filename) throws IOException
+	{
+		byte fname[]=stringToASCIIZ(filename);
+		FSPpacket pkt;
+
+		pkt=session.interact(FSPpacket.CC_DEL_FILE,0,fname,0,fname.length,null,0,0);
+		invalidate(session,filename);
+		pkt.expect(FSPpacket.CC_DEL_FILE);
+	}
+
+	/** Renames file or directory on FSP server.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param from old name
+	 * @param to new name
+	 * @throws IOException if file can not be renamed or network error ocurs
+	 */
+	public static void rename(FSPsession session, String from, String to) throws IOException
+	{
+		byte src[]=stringToASCIIZ(from);
+		byte dst[]=stringToASCIIZ(to);
+		FSPpacket pkt;
+
+		pkt=session.interact(FSPpacket.CC_RENAME,dst.length,src,0,src.length,dst,0,dst.length);
+		invalidate(session,from);
+		invalidate(session,to);
+		pkt.expect(FSPpacket.CC_RENAME);
+	}
+
+	/* drop cached information about changed path */
+	static void invalidate(FSPsession session, String path)
+	{
+		FSPcache cache=session.getCache();
+		if(cache!=null)
+			cache.invalidate(path);
+	}
+
 	/** Gets information about file or directory.
 	 * <p>
 	 * This function requests information about specific path from FSP server.
 	 * Server must support CC_STAT command, which is supported from FSP 2.8.1
 	 * Beta 11.
+	 * <p>
+	 * If session has metadata cache, cached result is returned.
 	 *
 	 * @since 1.0
 	 * @param session FSPsession
@@ -121,8 +568,24 @@ public class FSPutil
 	{
 		byte fname[]=stringToASCIIZ(path);
 		FSPpacket pkt;
+		FSPcache cache=session.getCache();
 
+		if(cache!=null)
+		{
+			FSPcache.Entry e=cache.getStat(path);
+			if(e!=null)
+				return e.stat==null ? null : FSPcache.copy(e.stat,path);
+		}
 		pkt=session.interact(FSPpacket.CC_STAT,0,fname,0,fname.length,null,0,0);
+		FSPstat stat=parseStat(pkt,path);
+		if(cache!=null)
+			cache.putStat(path,stat);
+		return stat;
+	}
+
+	/* parse reply to CC_STAT command */
+	static FSPstat parseStat(FSPpacket pkt,String path) throws IOException
+	{
 		pkt.expect(FSPpacket.CC_STAT);
 		if(pkt.buf[8]==0) return null; /* does not exists */
 		FSPstat stat=new FSPstat();
@@ -138,6 +601,163 @@ public class FSPutil
 		return stat;
 	}
 
+	/**
+	 * Minimal number of paths in one directory for which stat(FSPsession,
+	 * Collection) lists directory instead of sending CC_STAT per path.
+	 *
+	 * @since 1.1
+	 */
+	public final static int STAT_LIST_THRESHOLD=8;
+
+	/**
+	 * Gets information about multiple files or directories.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param paths paths to be checked
+	 * @return map of requested paths to their stat, null value if path does not exist
+	 * @throws IOException if network error ocurs
+	 * @see #stat(FSPsession, Collection, int)
+	 */
+	public static Map<String,FSPstat> stat(FSPsession session,Collection<String> paths) throws IOException
+	{
+		return stat(session,paths,STAT_LIST_THRESHOLD);
+	}
+
+	/**
+	 * Gets information about multiple files or directories.
+	 * <p>
+	 * Paths are grouped by parent directory. If there are at least
+	 * threshold paths in one directory, directory is listed and paths
+	 * are looked up in listing. Listing takes one round trip per
+	 * directory block, so it is cheaper than CC_STAT per path unless
+	 * directory is large and only few of its entries are needed. Other
+	 * paths are checked by CC_STAT, up to session window requests are
+	 * sent at once. If directory can't be listed, its paths are checked
+	 * by CC_STAT.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param paths paths to be checked
+	 * @param threshold minimal number of paths in directory for listing
+	 *        it, 0 to always list directories
+	 * @return map of requested paths to their stat in order of paths,
+	 *         null value if path does not exist
+	 * @throws IOException if network error ocurs
+	 * @see FSPsession#setWindow(int)
+	 */
+	public static Map<String,FSPstat> stat(FSPsession session,Collection<String> paths,int threshold) throws IOException
+	{
+		Map<String,FSPstat> result=new LinkedHashMap<String,FSPstat>(paths.size()*4/3+1);
+		Map<String,List<String>> groups=new LinkedHashMap<String,List<String>>();
+		List<String> single=new ArrayList<String>();
+
+		for(String path:paths)
+		{
+			result.put(path,null);
+			String np=FSPcache.normalize(path);
+			if(np.equals("/"))
+			{
+				single.add(path);
+				continue;
+			}
+			String dir=FSPcache.parent(np);
+			List<String> group=groups.get(dir);
+			if(group==null)
+			{
+				group=new ArrayList<String>();
+				groups.put(dir,group);
+			}
+			group.add(path);
+		}
+
+		for(Map.Entry<String,List<String>> group:groups.entrySet())
+		{
+			List<String> members=group.getValue();
+			FSPstat list[]=null;
+			if(members.size()>=threshold)
+			{
+				try
+				{
+					list=statlist(session,group.getKey());
+				}
+				catch (InterruptedIOException e)
+				{
+					throw e;
+				}
+				catch (IOException e)
+				{
+					/* listing is denied or directory is missing */
+				}
+			}
+			if(list==null)
+			{
+				single.addAll(members);
+				continue;
+			}
+			Map<String,FSPstat> entries=new HashMap<String,FSPstat>(list.length*4/3+1);
+			for(FSPstat e:list)
+				entries.put(e.name,e);
+			for(String path:members)
+			{
+				String np=FSPcache.normalize(path);
+				FSPstat e=entries.get(np.substring(np.lastIndexOf('/')+1));
+				result.put(path,e==null ? null : FSPcache.copy(e,path));
+			}
+		}
+
+		statEach(session,single,result);
+		return result;
+	}
+
+	/* pipelined CC_STAT of paths */
+	private static void statEach(FSPsession session,List<String> paths,Map<String,FSPstat> result) throws IOException
+	{
+		FSPcache cache=session.getCache();
+		FSPpipeline pipe=new FSPpipeline(session,session.transferWindow());
+		Iterator<String> it=paths.iterator();
+
+		while(it.hasNext() || pipe.pending()>0)
+		{
+			while(it.hasNext() && pipe.canSubmit())
+			{
+				String path=it.next();
+				if(cache!=null)
+				{
+					FSPcache.Entry e=cache.getStat(path);
+					if(e!=null)
+					{
+						result.put(path,e.stat==null ? null : FSPcache.copy(e.stat,path));
+						continue;
+					}
+				}
+				byte fname[]=stringToASCIIZ(path);
+				pipe.submit(FSPpacket.CC_STAT,0,fname,0,fname.length,null,0,0);
+				pipe.attach(path);
+			}
+			if(pipe.pending()==0)
+				continue;
+			FSPpacket pkt=pipe.take();
+			String path=(String)pipe.attachment();
+			try
+			{
+				FSPstat stat=parseStat(pkt,path);
+				if(cache!=null)
+					cache.putStat(path,stat);
+				result.put(path,stat);
+			}
+			catch (IOException e)
+			{
+				pipe.clear();
+				throw e;
+			}
+			finally
+			{
+				pipe.recycle(pkt);
+			}
+		}
+	}
+
 	/** Check if FSP server supports CC_STAT command. This command is implemented
 	 * in fspd from FSP suite version 2.8.1 Beta 11 or later.
 	 * <p>
@@ -185,47 +805,12 @@ public class FSPutil
 	 */
 	public static String[] list(FSPsession session,String directory) throws IOException
 	{
-		byte fname[]=stringToASCIIZ(directory);
-		Vector<String> dirlist=new Vector<String>(20);
-		FSPpacket pkt;
-		int pos=0;
-		int i,j;
-
-		dirlister:while(true)
+		FSPstat stats[]=statlist(session,directory);
+		/* convert FSPstat array to names */
+		String list[]=new String[stats.length];
+		for(int i=0;i<stats.length;i++)
 		{
-            pkt=session.interact(FSPpacket.CC_GET_DIR,pos,fname,0,fname.length,null,0,0);
-            pkt.expect(FSPpacket.CC_GET_DIR);
-			if(pkt.bb_len==0) break;
-			pos+=pkt.bb_len;
-			i=0;
-			nextentry:while(i<pkt.bb_len-9)
-			{
-				/* check entry type */
-				switch(pkt.buf[i+8])
-				{
-				case 0x2A:
-					/* RDTYPE_SKIP */
-					break nextentry;
-				case 0x00:
-					break dirlister;
-				}
-				i+=9;
-				/* read ASCIIZ fname */
-				j=i;
-				while(pkt.buf[j]!=0)
-					j++;
-				dirlist.addElement(new String(pkt.buf,i,j-i));
-				i=j+1;
-				/* move to next 4byte boundary */
-				while((i & 0x3)>0)
-					i++;
-			}
-		}
-		/* convert Vector to array */
-		String list[]=new String[dirlist.size()];
-		for(i=0;i<dirlist.size();i++)
-		{
-			list[i]=(String)dirlist.elementAt(i);
+			list[i]=stats[i].name;
 		}
 		return list;
 
@@ -243,69 +828,178 @@ public class FSPutil
 	public static FSPstat[] statlist(FSPsession session,String directory) throws IOException
 	{
 		byte fname[]=stringToASCIIZ(directory);
-		Vector<FSPstat> dirlist=new Vector<FSPstat>(20);
+		List<FSPstat> dirlist=new ArrayList<FSPstat>(20);
 		FSPpacket pkt;
-		FSPstat stat;
 		int pos=0;
-		int i,j;
+		FSPcache cache=session.getCache();
 
-		dirlister:while(true)
+		if(cache!=null)
+		{
+			FSPstat cached[]=cache.getList(directory);
+			if(cached!=null)
+				return cached;
+		}
+		FSPtransferEvent event=new FSPtransferEvent();
+		event.begin();
+		boolean ok=false;
+		try
 		{
-			pkt=session.interact(FSPpacket.CC_GET_DIR,pos,fname,0,fname.length,null,0,0);
-			pkt.expect(FSPpacket.CC_GET_DIR);
-			if(pkt.bb_len==0) break;
-			pos+=pkt.bb_len;
-			i=0;
-			nextentry:while(i<pkt.bb_len-9)
+			while(true)
 			{
-				/* check entry type */
-				switch(pkt.buf[i+8])
-				{
-				case 0x2A:
-					/* RDTYPE_SKIP */
-					break nextentry;
-				case 0x00:
-					/* END OF LIST */
-					break dirlister;
-				}
-				/* create a new stat object */
-				stat=new FSPstat();
-				/* extract date */
-				stat.lastmod =((pkt.buf[i] << 8) | (pkt.buf[i+1] & 0xFF)) << 16;
-				i+=2;
-				stat.lastmod|=((pkt.buf[i] & 0xFF)<< 8) | (pkt.buf[i+1] & 0xFF);
-				i+=2;
-				stat.lastmod &=0xffffffffL;
-				stat.lastmod*=1000L;
-				/* extract size */
-				stat.length  =((pkt.buf[i] << 8) | (pkt.buf[i+1] & 0xFF)) << 16;
-				i+=2;
-				stat.length |=((pkt.buf[i] & 0xFF)<< 8) | (pkt.buf[i+1] & 0xFF);
-				i+=2;
-				/* extract type */
-				stat.type=pkt.buf[i++];
-				/* read ASCIIZ fname */
-				j=i;
-				while(pkt.buf[j]!=0)
-					j++;
-				stat.name=new String(pkt.buf,i,j-i);
-				dirlist.addElement(stat);
-				i=j+1;
-				/* move to next 4byte boundary */
-				while((i & 0x3)>0)
-					i++;
+				pkt=session.interact(FSPpacket.CC_GET_DIR,pos,fname,0,fname.length,null,0,0);
+				pkt.expect(FSPpacket.CC_GET_DIR);
+				if(pkt.bb_len==0) break;
+				pos+=pkt.bb_len;
+				if(!parseDirBlock(pkt,dirlist)) break;
 			}
+			ok=true;
 		}
-
-		/* convert Vector to array */
-		FSPstat list[]=new FSPstat[dirlist.size()];
-		for(i=0;i<dirlist.size();i++)
+		finally
 		{
-			list[i]=(FSPstat)dirlist.elementAt(i);
+			event.end("statlist",session,directory,pos,ok);
 		}
+
+		FSPstat list[]=dirlist.toArray(new FSPstat[dirlist.size()]);
+		if(cache!=null)
+			cache.putList(directory,list);
 		return list;
 	}
 
+	/** get a lazy FSPstat directory iterator.
+	 * <p>
+	 * Directory blocks are requested from server while iterating, so
+	 * memory use is bounded by one directory block and iteration can be
+	 * stopped early. Network errors are thrown as UncheckedIOException.
+	 * Session should not be used by other threads during iteration.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param directory directory to be listed
+	 * @return iterator over directory entries
+	 * @see #statlist(FSPsession, String)
+	 */
+	public static Iterator<FSPstat> iterate(FSPsession session,String directory)
+	{
+		FSPcache cache=session.getCache();
+		if(cache!=null)
+		{
+			FSPstat cached[]=cache.getList(directory);
+			if(cached!=null)
+				return Arrays.asList(cached).iterator();
+		}
+		return new FSPdirIterator(session,directory);
+	}
+
+	/** get a lazy FSPstat directory stream.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param directory directory to be listed
+	 * @return sequential stream of directory entries
+	 * @see #iterate(FSPsession, String)
+	 */
+	public static Stream<FSPstat> stream(FSPsession session,String directory)
+	{
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterate(session,directory),Spliterator.ORDERED|Spliterator.NONNULL),false);
+	}
+
+	/** get a recursive FSPstat stream of directory tree.
+	 * <p>
+	 * Names of returned entries are full paths. Entries of root directory
+	 * are at depth 1, root itself is not returned. Directory listings are
+	 * requested lazily. Parallel stream splits walk on subdirectories and
+	 * lists sibling directories at once using sessions borrowed from
+	 * default FSPsessionPool. Network errors are thrown as
+	 * UncheckedIOException.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param root directory to be walked
+	 * @param maxDepth maximum depth of returned entries, use
+	 *        Integer.MAX_VALUE for whole tree
+	 * @return sequential stream of entries in directory tree
+	 * @see #walk(FSPsession, FSPsessionPool, String, int)
+	 */
+	public static Stream<FSPstat> walk(FSPsession session,String root,int maxDepth)
+	{
+		return walk(session,FSPsessionPool.getDefault(),root,maxDepth);
+	}
+
+	/** get a recursive FSPstat stream of directory tree.
+	 * <p>
+	 * Session is used by first part of walk only, parts split off by
+	 * parallel stream borrow session from pool for every listing. Number
+	 * of directories listed at once is bounded by pool.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param pool pool for sessions to the same server
+	 * @param root directory to be walked
+	 * @param maxDepth maximum depth of returned entries
+	 * @return sequential stream of entries in directory tree
+	 * @see #walk(FSPsession, String, int)
+	 */
+	public static Stream<FSPstat> walk(FSPsession session,FSPsessionPool pool,String root,int maxDepth)
+	{
+		return StreamSupport.stream(new FSPwalker(session,pool,root,maxDepth),false);
+	}
+
+	/**
+	 * Parses one block of CC_GET_DIR reply.
+	 *
+	 * @param pkt reply to CC_GET_DIR
+	 * @param dirlist add parsed entries to this list
+	 * @return false if end of directory was reached
+	 */
+	static boolean parseDirBlock(FSPpacket pkt,List<FSPstat> dirlist)
+	{
+		FSPstat stat;
+		int i,j;
+
+		i=0;
+		while(i<pkt.bb_len-9)
+		{
+			/* check entry type */
+			switch(pkt.buf[i+8])
+			{
+			case 0x2A:
+				/* RDTYPE_SKIP */
+				return true;
+			case 0x00:
+				/* END OF LIST */
+				return false;
+			}
+			/* create a new stat object */
+			stat=new FSPstat();
+			/* extract date */
+			stat.lastmod =((pkt.buf[i] << 8) | (pkt.buf[i+1] & 0xFF)) << 16;
+			i+=2;
+			stat.lastmod|=((pkt.buf[i] & 0xFF)<< 8) | (pkt.buf[i+1] & 0xFF);
+			i+=2;
+			stat.lastmod &=0xffffffffL;
+			stat.lastmod*=1000L;
+			/* extract size */
+			stat.length  =((pkt.buf[i] << 8) | (pkt.buf[i+1] & 0xFF)) << 16;
+			i+=2;
+			stat.length |=((pkt.buf[i] & 0xFF)<< 8) | (pkt.buf[i+1] & 0xFF);
+			i+=2;
+			stat.length &=0xffffffffL;
+			/* extract type */
+			stat.type=pkt.buf[i++];
+			/* read ASCIIZ fname */
+			j=i;
+			while(pkt.buf[j]!=0)
+				j++;
+			stat.name=new String(pkt.buf,i,j-i);
+			dirlist.add(stat);
+			i=j+1;
+			/* move to next 4byte boundary */
+			while((i & 0x3)>0)
+				i++;
+		}
+		return true;
+	}
+
 	/**
 	 * Sends CC_VERSION command to server and parses reply.
 	 *
@@ -373,4 +1067,176 @@ public class FSPutil
 		}
 		return true;
 	}
+
+	/** Downloads a file from FSP server asynchronously.
+	 * <p>
+	 * Blocks are written to OutputStream by common ForkJoinPool, next
+	 * block is requested after write returns. OutputStream is not closed
+	 * at end of transfer.
+	 *
+	 * @since 1.1
+	 * @param session active FSP session
+	 * @param filename filename on FSP server
+	 * @param os write file to this stream
+	 * @param start_from offset where to start download
+	 * @param byteswanted how many bytes to download, &lt; 0 for all
+	 * @return future completed with number of downloaded bytes
+	 * @see #download(FSPsession, String, OutputStream, long, long)
+	 */
+	public static CompletableFuture<Long> downloadAsync(FSPsession session,String filename,OutputStream os,long start_from,long byteswanted)
+	{
+		return FSPasyncTransfer.download(session,filename,os,start_from,byteswanted);
+	}
+
+	/**
+	 * Uploads file to FSP server asynchronously.
+	 * <p>
+	 * InputStream is read by common ForkJoinPool, reactor thread is not
+	 * blocked by reading.
+	 *
+	 * @param session opened FSPsession to target server
+	 * @param filename filename on remote server
+	 * @param is InputStream to be sent to server. Stream is not closed at
+	 *        end of operation
+	 * @param timestamp timestamp for uploaded file, 0 if not used
+	 * @return future completed when file is installed on server
+	 * @since 1.1
+	 * @see #upload(FSPsession, String, InputStream, long)
+	 */
+	public static CompletableFuture<Void> uploadAsync(FSPsession session, String filename, InputStream is, long timestamp)
+	{
+		return uploadAsync(session,filename,is,timestamp,ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Uploads file to FSP server asynchronously, reading InputStream by
+	 * given executor.
+	 * <p>
+	 * Every block is read by task submitted to executor after previous
+	 * block was acknowledged, so stream can block without stopping
+	 * other asynchronous requests.
+	 *
+	 * @param session opened FSPsession to target server
+	 * @param filename filename on remote server
+	 * @param is InputStream to be sent to server. Stream is not closed at
+	 *        end of operation
+	 * @param timestamp timestamp for uploaded file, 0 if not used
+	 * @param executor executor reading the stream
+	 * @return future completed when file is installed on server
+	 * @since 1.1
+	 * @see #upload(FSPsession, String, InputStream, long)
+	 */
+	public static CompletableFuture<Void> uploadAsync(FSPsession session, String filename, InputStream is, long timestamp, Executor executor)
+	{
+		return FSPasyncTransfer.upload(session,filename,is,timestamp,executor);
+	}
+
+	/** Gets information about file or directory asynchronously.
+	 *
+	 * @since 1.1
+	 * @param session FSPsession
+	 * @param path path for getting information
+	 * @return future completed with FSPstat object or null if path is
+	 *         not found
+	 * @see #stat(FSPsession, String)
+	 */
+	public static CompletableFuture<FSPstat> statAsync(FSPsession session,String path)
+	{
+		byte fname[]=stringToASCIIZ(path);
+		FSPcache cache=session.getCache();
+		if(cache!=null)
+		{
+			FSPcache.Entry e=cache.getStat(path);
+			if(e!=null)
+				return CompletableFuture.completedFuture(e.stat==null ? null : FSPcache.copy(e.stat,path));
+		}
+		return session.interactAsync(FSPpacket.CC_STAT,0,fname,0,fname.length,null,0,0).thenApply(pkt -> {
+			try {
+				FSPstat stat=parseStat(pkt,path);
+				if(cache!=null)
+					cache.putStat(path,stat);
+				return stat;
+			}
+			catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/** get a filename directory list from server asynchronously.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param directory directory to be listed
+	 * @return future completed with file list
+	 * @see #list(FSPsession, String)
+	 */
+	public static CompletableFuture<String[]> listAsync(FSPsession session,String directory)
+	{
+		return statlistAsync(session,directory).thenApply(stats -> {
+			String list[]=new String[stats.length];
+			for(int i=0;i<stats.length;i++)
+				list[i]=stats[i].name;
+			return list;
+		});
+	}
+
+	/** get a FSPstat directory list from server asynchronously.
+	 *
+	 * @since 1.1
+	 * @param session live FSPsession
+	 * @param directory directory to be listed
+	 * @return future completed with FSPstat list
+	 * @see #statlist(FSPsession, String)
+	 */
+	public static CompletableFuture<FSPstat[]> statlistAsync(FSPsession session,String directory)
+	{
+		FSPcache cache=session.getCache();
+		if(cache!=null)
+		{
+			FSPstat cached[]=cache.getList(directory);
+			if(cached!=null)
+				return CompletableFuture.completedFuture(cached);
+		}
+		return FSPasyncTransfer.list(session,directory).thenApply(dirlist -> {
+			FSPstat list[]=dirlist.toArray(new FSPstat[dirlist.size()]);
+			if(cache!=null)
+				cache.putList(directory,list);
+			return list;
+		});
+	}
+
+	/** Creates executor running every transfer in its own thread.
+	 * <p>
+	 * On Java 21 and newer every task gets new virtual thread, so
+	 * thousands of blocking transfers can run at once. On older Java
+	 * tasks run on cached pool of daemon threads. Executor can be used
+	 * by FSPmirror and FSPsegmentedDownload and it should be shut down
+	 * by caller.
+	 *
+	 * @since 1.1
+	 * @return executor with thread per task
+	 * @see FSPmirror#setExecutor(java.util.concurrent.Executor)
+	 * @see FSPsegmentedDownload#setExecutor(java.util.concurrent.Executor)
+	 */
+	public static ExecutorService newTransferExecutor()
+	{
+		try {
+			/* library is compiled for older Java */
+			Method m=Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			/* no virtual threads */
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger n=new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t=new Thread(r,"FSP transfer "+n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
 }
@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Recursive directory walk.
+ * <p>
+ * Walker keeps stack of directories waiting for listing. Subdirectories
+ * are put on stack when their parent is listed. Split off walker takes
+ * half of waiting directories, or half of entries of current directory
+ * if no directory is waiting. Waiting directory is listed by trySplit()
+ * if there is nothing else to split, so parallel stream lists sibling
+ * directories at once. First walker lists through session given by
+ * caller, split off walkers borrow session from FSPsessionPool for
+ * every listing. Network errors are thrown as UncheckedIOException.
+ *
+ * @author Radim Kolar
+ * @see FSPutil#walk(FSPsession, String, int)
+ * @since 1.1
+ */
+class FSPwalker implements Spliterator<FSPstat>
+{
+	/* directory waiting for listing */
+	private static final class Dir
+	{
+		String path;
+		int depth;
+
+		Dir(String path,int depth)
+		{
+			this.path=path;
+			this.depth=depth;
+		}
+	}
+
+	/* session owned by caller, null in split off walkers */
+	private FSPsession ses;
+	private FSPsessionPool pool;
+	private String host;
+	private int port;
+	private int maxdepth;
+
+	private ArrayDeque<Dir> pending;
+	/* entries of current directory from index to end */
+	private FSPstat list[];
+	private int index;
+	private int end;
+	private String directory;
+
+	/**
+	 * Creates walker.
+	 *
+	 * @param session live FSPsession
+	 * @param pool sessions for split off walkers
+	 * @param root directory to be walked
+	 * @param maxdepth maximum number of directory levels to list
+	 */
+	FSPwalker(FSPsession session,FSPsessionPool pool,String root,int maxdepth)
+	{
+		ses=session;
+		this.pool=pool;
+		host=session.getHost().getHostAddress();
+		port=session.getPort();
+		this.maxdepth=maxdepth;
+		pending=new ArrayDeque<Dir>();
+		if(maxdepth>0)
+			pending.add(new Dir(root,1));
+	}
+
+	/* split off walker */
+	private FSPwalker(FSPwalker parent)
+	{
+		pool=parent.pool;
+		host=parent.host;
+		port=parent.port;
+		maxdepth=parent.maxdepth;
+		pending=new ArrayDeque<Dir>();
+	}
+
+	public boolean tryAdvance(Consumer<? super FSPstat> action)
+	{
+		while(true)
+		{
+			while(index<end)
+			{
+				FSPstat st=list[index++];
+				if(skip(st))
+					continue;
+				action.accept(FSPcache.copy(st,FSPcache.child(directory,st.name)));
+				return true;
+			}
+			Dir d=pending.pollLast();
+			if(d==null)
+				return false;
+			load(d);
+		}
+	}
+
+	public Spliterator<FSPstat> trySplit()
+	{
+		/* list directory now to have something to split */
+		while(index>=end && pending.size()==1)
+			load(pending.pollLast());
+		FSPwalker rc=new FSPwalker(this);
+		if(pending.size()>1 || (pending.size()==1 && index<end))
+		{
+			/* oldest directories have largest subtrees */
+			int n=(pending.size()+1)/2;
+			for(int i=0;i<n;i++)
+				rc.pending.addLast(pending.pollFirst());
+			return rc;
+		}
+		if(pending.isEmpty() && end-index>=2)
+		{
+			int mid=index+(end-index)/2;
+			rc.list=list;
+			rc.index=index;
+			rc.end=mid;
+			rc.directory=directory;
+			index=mid;
+			return rc;
+		}
+		return null;
+	}
+
+	/* size is unknown until all directories are listed */
+	public long estimateSize()
+	{
+		return pending.isEmpty() ? end-index : Long.MAX_VALUE;
+	}
+
+	public int characteristics()
+	{
+		return DISTINCT | NONNULL;
+	}
+
+	/* list directory */
+	private void load(Dir d)
+	{
+		try
+		{
+			list=list(d.path);
+		}
+		catch (IOException e)
+		{
+			list=null;
+			index=end=0;
+			throw new UncheckedIOException(e);
+		}
+		index=0;
+		end=list.length;
+		directory=d.path;
+		if(d.depth<maxdepth)
+			for(int i=0;i<end;i++)
+				if(list[i].type==FSPstat.RDTYPE_DIR && !skip(list[i]))
+					pending.addLast(new Dir(FSPcache.child(directory,list[i].name),d.depth+1));
+	}
+
+	/* entries leaving walked tree */
+	private static boolean skip(FSPstat st)
+	{
+		return st.name.equals(".") || st.name.equals("..") || st.name.indexOf('/')>=0;
+	}
+
+	private FSPstat[] list(String path) throws IOException
+	{
+		if(ses!=null)
+			return FSPutil.statlist(ses,path);
+		FSPsession s=pool.acquire(host,port);
+		try
+		{
+			return FSPutil.statlist(s,path);
+		}
+		catch (IOException e)
+		{
+			pool.invalidate(s);
+			s=null;
+			throw e;
+		}
+		finally
+		{
+			if(s!=null)
+				pool.release(s);
+		}
+	}
+}
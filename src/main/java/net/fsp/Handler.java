@@ -85,15 +85,20 @@ public class Handler extends URLStreamHandler implements URLStreamHandlerFactory
 
 	/**
 	 * opens a FSP connection.
+	 * <p>
+	 * Sessions are taken from shared per host session pool, so opening
+	 * many connections to same server does not create new socket
+	 * for every connection.
 	 *
 	 * @since 1.0rc8
 	 * @param u URL to be opened
 	 * @return FSPURLConnection
 	 * @see FSPURLConnection
+	 * @see FSPsessionPool#getDefault()
 	 */
 	protected URLConnection openConnection(URL u)
 	{
-		return new FSPURLConnection(u);
+		return new FSPURLConnection(u,FSPsessionPool.getDefault());
 	}
 
 	/**
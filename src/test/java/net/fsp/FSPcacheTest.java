@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of FSPcache eviction and invalidation.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+public class FSPcacheTest extends TestCase
+{
+	private static FSPstat file(String name, long length)
+	{
+		FSPstat st=new FSPstat();
+		st.name=name;
+		st.length=length;
+		st.type=FSPstat.RDTYPE_FILE;
+		return st;
+	}
+
+	private static FSPstat dir(String name)
+	{
+		FSPstat st=new FSPstat();
+		st.name=name;
+		st.type=FSPstat.RDTYPE_DIR;
+		return st;
+	}
+
+	public void testNormalize()
+	{
+		assertEquals("/",FSPcache.normalize(""));
+		assertEquals("/",FSPcache.normalize("/"));
+		assertEquals("/pub/a",FSPcache.normalize("pub//a/"));
+		assertEquals("/pub",FSPcache.parent("/pub/a"));
+		assertEquals("/",FSPcache.parent("/pub"));
+	}
+
+	public void testStatAndNegative()
+	{
+		FSPcache cache=new FSPcache();
+		cache.putStat("/a",file("/a",10));
+		cache.putStat("/missing",null);
+		assertEquals(10,cache.getStat("a").stat.length);
+		FSPcache.Entry e=cache.getStat("/missing");
+		assertNotNull(e);
+		assertNull(e.stat);
+		assertNull(cache.getStat("/other"));
+	}
+
+	public void testListFillsEntries()
+	{
+		FSPcache cache=new FSPcache();
+		cache.putList("/pub",new FSPstat[] {dir("."),file("a",1),dir("sub")});
+		assertEquals(3,cache.getList("/pub").length);
+		assertEquals(1,cache.getStat("/pub/a").stat.length);
+		assertEquals(FSPstat.RDTYPE_DIR,cache.getStat("/pub/sub").stat.type);
+		assertNull(cache.getStat("/pub/."));
+	}
+
+	public void testEvictsLeastRecentlyUsed()
+	{
+		FSPcache cache=new FSPcache(10000,3);
+		cache.putStat("/a",file("/a",1));
+		cache.putStat("/b",file("/b",2));
+		cache.putStat("/c",file("/c",3));
+		/* touch a, so b is eldest */
+		assertNotNull(cache.getStat("/a"));
+		cache.putStat("/d",file("/d",4));
+		assertNull(cache.getStat("/b"));
+		assertNotNull(cache.getStat("/a"));
+		assertNotNull(cache.getStat("/c"));
+		assertNotNull(cache.getStat("/d"));
+	}
+
+	public void testLargeListingIsNotCached()
+	{
+		FSPcache cache=new FSPcache(10000,3);
+		cache.putStat("/x",file("/x",1));
+		cache.putList("/pub",new FSPstat[] {file("a",1),file("b",2),file("c",3)});
+		assertNull(cache.getList("/pub"));
+		/* other entries were not evicted by listing */
+		assertNotNull(cache.getStat("/x"));
+		cache.putList("/small",new FSPstat[] {file("a",1)});
+		assertNotNull(cache.getList("/small"));
+	}
+
+	public void testInvalidateSubtree()
+	{
+		FSPcache cache=new FSPcache();
+		cache.putList("/",new FSPstat[] {dir("pub"),file("readme",1)});
+		cache.putList("/pub",new FSPstat[] {dir("sub"),file("a",1)});
+		cache.putStat("/pub/sub/deep/file",file("/pub/sub/deep/file",5));
+		cache.putStat("/public",file("/public",7));
+
+		cache.invalidate("/pub");
+		assertNull(cache.getList("/"));
+		assertNull(cache.getStat("/pub"));
+		assertNull(cache.getList("/pub"));
+		assertNull(cache.getStat("/pub/a"));
+		assertNull(cache.getStat("/pub/sub"));
+		/* entry without cached parents is found by index too */
+		assertNull(cache.getStat("/pub/sub/deep/file"));
+		/* same prefix, but not in subtree */
+		assertNotNull(cache.getStat("/public"));
+		assertNotNull(cache.getStat("/readme"));
+	}
+
+	public void testInvalidateAfterEviction()
+	{
+		FSPcache cache=new FSPcache(10000,2);
+		cache.putStat("/d/a",file("/d/a",1));
+		cache.putStat("/d/b",file("/d/b",2));
+		cache.putStat("/e/c",file("/e/c",3));
+		assertNull(cache.getStat("/d/a"));
+		cache.invalidate("/d");
+		assertNull(cache.getStat("/d/b"));
+		assertNotNull(cache.getStat("/e/c"));
+		cache.putStat("/d/b",file("/d/b",2));
+		assertNotNull(cache.getStat("/d/b"));
+	}
+
+	public void testClear()
+	{
+		FSPcache cache=new FSPcache();
+		cache.putStat("/a/b",file("/a/b",1));
+		cache.clear();
+		assertNull(cache.getStat("/a/b"));
+		cache.invalidate("/a");
+	}
+}
@@ -0,0 +1,146 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of FSPjournal range bookkeeping and persistence.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+public class FSPjournalTest extends TestCase
+{
+	private File target;
+
+	protected void setUp() throws IOException
+	{
+		target=File.createTempFile("fspjournal",".bin");
+	}
+
+	protected void tearDown()
+	{
+		new File(target.getPath()+FSPjournal.SUFFIX).delete();
+		target.delete();
+	}
+
+	private static FSPstat stat(long length, long lastmod)
+	{
+		FSPstat st=new FSPstat();
+		st.name="file";
+		st.length=length;
+		st.lastmod=lastmod;
+		st.type=FSPstat.RDTYPE_FILE;
+		return st;
+	}
+
+	private static void assertRanges(long expected[][], List<long[]> ranges)
+	{
+		assertEquals(expected.length,ranges.size());
+		for(int i=0;i<expected.length;i++)
+		{
+			assertEquals(expected[i][0],ranges.get(i)[0]);
+			assertEquals(expected[i][1],ranges.get(i)[1]);
+		}
+	}
+
+	public void testEmptyJournalMissesWholeFile()
+	{
+		FSPjournal j=FSPjournal.open(target,stat(100,1));
+		assertTrue(j.isEmpty());
+		assertEquals(0,j.completed());
+		assertRanges(new long[][] {{0,100}},j.missing());
+	}
+
+	public void testAddMergesRanges()
+	{
+		FSPjournal j=FSPjournal.open(target,stat(100,1));
+		j.add(10,10);
+		j.add(50,10);
+		assertRanges(new long[][] {{0,10},{20,50},{60,100}},j.missing());
+		/* adjacent */
+		j.add(20,5);
+		/* overlapping both */
+		j.add(24,30);
+		assertRanges(new long[][] {{0,10},{60,100}},j.missing());
+		assertEquals(50,j.completed());
+		/* contained in existing range */
+		j.add(30,5);
+		assertEquals(50,j.completed());
+		/* empty range is ignored */
+		j.add(5,0);
+		j.add(0,10);
+		j.add(60,40);
+		assertTrue(j.missing().isEmpty());
+		assertEquals(100,j.completed());
+	}
+
+	public void testSaveAndOpen() throws IOException
+	{
+		FSPjournal j=FSPjournal.open(target,stat(100,1));
+		j.add(0,30);
+		j.add(70,10);
+		RandomAccessFile raf=new RandomAccessFile(target,"rw");
+		try
+		{
+			j.save(raf.getChannel());
+		}
+		finally
+		{
+			raf.close();
+		}
+		assertFalse(new File(target.getPath()+FSPjournal.SUFFIX+".tmp").exists());
+		FSPjournal k=FSPjournal.open(target,stat(100,1));
+		assertEquals(40,k.completed());
+		assertRanges(new long[][] {{30,70},{80,100}},k.missing());
+
+		/* changed remote file starts from scratch */
+		assertTrue(FSPjournal.open(target,stat(100,2)).isEmpty());
+		assertTrue(FSPjournal.open(target,stat(101,1)).isEmpty());
+
+		j.delete();
+		assertTrue(FSPjournal.open(target,stat(100,1)).isEmpty());
+	}
+
+	public void testDamagedJournalIsEmpty() throws IOException
+	{
+		write("lastmod=1\nlength=100\nranges=0-10,garbage\n");
+		assertTrue(FSPjournal.open(target,stat(100,1)).isEmpty());
+		write("lastmod=1\nlength=100\nranges=0-200\n");
+		assertTrue(FSPjournal.open(target,stat(100,1)).isEmpty());
+		write("length=100\n");
+		assertTrue(FSPjournal.open(target,stat(100,1)).isEmpty());
+		write("lastmod=1\nlength=100\nranges=0-10,20-30\n");
+		assertEquals(20,FSPjournal.open(target,stat(100,1)).completed());
+	}
+
+	private void write(String journal) throws IOException
+	{
+		OutputStream os=new FileOutputStream(target.getPath()+FSPjournal.SUFFIX);
+		try
+		{
+			os.write(journal.getBytes("ISO-8859-1"));
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+}
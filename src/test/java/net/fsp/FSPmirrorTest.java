@@ -0,0 +1,189 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of FSPmirror against FSPserver.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+public class FSPmirrorTest extends TestCase
+{
+	private File remote;
+	private File local;
+	private FSPserver server;
+	private FSPsessionPool pool;
+	private FSPmirror mirror;
+
+	protected void setUp() throws IOException
+	{
+		remote=Files.createTempDirectory("fspmirror").toFile();
+		local=Files.createTempDirectory("fspmirror").toFile();
+		mkfile(remote,"a",100);
+		mkfile(remote,"sub/b",5000);
+		mkfile(remote,"sub/deep/c",20000);
+		server=new FSPserver(remote);
+		server.start(0);
+		pool=new FSPsessionPool();
+		mirror=new FSPmirror(pool,"127.0.0.1",server.getPort());
+	}
+
+	protected void tearDown() throws IOException
+	{
+		FSPsession ses=pool.acquire("127.0.0.1",server.getPort());
+		ses.setLenientServer(false);
+		pool.release(ses);
+		pool.close();
+		server.close();
+		delete(remote);
+		delete(local);
+	}
+
+	private static void mkfile(File dir, String name, int length) throws IOException
+	{
+		File f=new File(dir,name);
+		f.getParentFile().mkdirs();
+		byte data[]=new byte[length];
+		for(int i=0;i<length;i++)
+			data[i]=(byte)(i*31+name.length());
+		Files.write(f.toPath(),data);
+	}
+
+	private static void delete(File f)
+	{
+		File list[]=f.listFiles();
+		if(list!=null)
+			for(int i=0;i<list.length;i++)
+				delete(list[i]);
+		f.delete();
+	}
+
+	private static void assertSameFile(File expected, File actual) throws IOException
+	{
+		assertTrue(actual.toString(),actual.isFile());
+		assertTrue(actual.toString(),Arrays.equals(Files.readAllBytes(expected.toPath()),Files.readAllBytes(actual.toPath())));
+	}
+
+	private List<String> changes(int type)
+	{
+		List<String> rc=new ArrayList<String>();
+		for(FSPmirror.Change c:mirror.getChanges())
+			if(c.type==type)
+				rc.add(c.path);
+		Collections.sort(rc);
+		return rc;
+	}
+
+	public void testMirror() throws IOException
+	{
+		mirror.setWindow(4);
+		server.setLenient(true);
+		FSPsession ses=pool.acquire("127.0.0.1",server.getPort());
+		ses.setLenientServer(true);
+		pool.release(ses);
+		mirror.mirror("/",local);
+		assertSameFile(new File(remote,"a"),new File(local,"a"));
+		assertSameFile(new File(remote,"sub/b"),new File(local,"sub/b"));
+		assertSameFile(new File(remote,"sub/deep/c"),new File(local,"sub/deep/c"));
+		assertEquals(Arrays.asList("/a","/sub/b","/sub/deep/c"),changes(FSPmirror.Change.NEW));
+		assertEquals(3,mirror.getFilesFound());
+		assertEquals(25100,mirror.getBytesFound());
+		assertEquals(25100,mirror.getBytesDone());
+		assertEquals(3,mirror.getDirectoriesDone());
+		assertEquals(0,mirror.getFilesSkipped());
+	}
+
+	public void testSkipsUnchangedFiles() throws IOException
+	{
+		mirror.mirror("/",local);
+		mirror.mirror("/",local);
+		assertTrue(mirror.getChanges().isEmpty());
+		/* counters are not summed over runs */
+		assertEquals(3,mirror.getFilesFound());
+		assertEquals(3,mirror.getFilesSkipped());
+		assertEquals(3,mirror.getFilesDone());
+
+		mkfile(remote,"sub/b",6000);
+		mirror.mirror("/",local);
+		assertEquals(Arrays.asList("/sub/b"),changes(FSPmirror.Change.UPDATE));
+		assertEquals(2,mirror.getFilesSkipped());
+		assertSameFile(new File(remote,"sub/b"),new File(local,"sub/b"));
+	}
+
+	public void testManifest() throws IOException
+	{
+		File manifest=new File(local,".manifest");
+		mirror.setManifest(manifest);
+		mirror.mirror("/",local);
+		assertTrue(manifest.isFile());
+		/* manifest is used when local times are not kept */
+		new File(local,"a").setLastModified(1000);
+		mirror.mirror("/",local);
+		assertTrue(mirror.getChanges().isEmpty());
+		assertTrue(manifest.isFile());
+	}
+
+	public void testDeleteOrphans() throws IOException
+	{
+		mkfile(local,"orphan",10);
+		mkfile(local,"sub/gone/x",10);
+		mirror.mirror("/",local);
+		assertTrue(new File(local,"orphan").exists());
+		assertTrue(new File(local,"sub/gone/x").exists());
+
+		mirror.setDeleteOrphans(true);
+		mirror.mirror("/",local);
+		assertEquals(Arrays.asList("/orphan","/sub/gone"),changes(FSPmirror.Change.DELETE));
+		assertFalse(new File(local,"orphan").exists());
+		assertFalse(new File(local,"sub/gone").exists());
+		assertTrue(new File(local,"sub/b").exists());
+	}
+
+	public void testDryRun() throws IOException
+	{
+		mkfile(local,"orphan",10);
+		mirror.setDryRun(true);
+		mirror.setDeleteOrphans(true);
+		mirror.mirror("/",local);
+		assertEquals(Arrays.asList("/a","/sub/b","/sub/deep/c"),changes(FSPmirror.Change.NEW));
+		assertEquals(Arrays.asList("/orphan"),changes(FSPmirror.Change.DELETE));
+		assertTrue(new File(local,"orphan").exists());
+		assertFalse(new File(local,"a").exists());
+		assertFalse(new File(local,"sub").exists());
+	}
+
+	public void testListingOfLargeFile()
+	{
+		FSPpacket pkt=new FSPpacket();
+		byte entry[]={0x5F,0,0,0, (byte)0xC0,0,0,1, FSPstat.RDTYPE_FILE, 'b','i','g',0, 0,0,0,
+		              0,0,0,0, 0,0,0,0, 0,0,0,0};
+		System.arraycopy(entry,0,pkt.buf,0,entry.length);
+		pkt.bb_len=(short)entry.length;
+		List<FSPstat> list=new ArrayList<FSPstat>();
+		assertFalse(FSPutil.parseDirBlock(pkt,list));
+		assertEquals(1,list.size());
+		assertEquals("big",list.get(0).name);
+		assertEquals(0xC0000001L,list.get(0).length);
+		assertEquals(0x5F000000L*1000L,list.get(0).lastmod);
+	}
+}
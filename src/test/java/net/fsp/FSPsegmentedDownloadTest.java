@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of FSPsegmentedDownload against FSPserver.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+public class FSPsegmentedDownloadTest extends TestCase
+{
+	/* pool counting borrowed sessions */
+	private static final class CountingPool extends FSPsessionPool
+	{
+		AtomicInteger acquired=new AtomicInteger();
+
+		public FSPsession acquire(String host, int port) throws IOException
+		{
+			acquired.incrementAndGet();
+			return super.acquire(host,port);
+		}
+	}
+
+	private File root;
+	private File target;
+	private FSPserver server;
+	private CountingPool pool;
+	private FSPsegmentedDownload dl;
+	private byte data[];
+
+	protected void setUp() throws IOException
+	{
+		root=Files.createTempDirectory("fspsegment").toFile();
+		target=new File(root,"target.bin");
+		data=new byte[64*1024+77];
+		new Random(5).nextBytes(data);
+		Files.write(new File(root,"file.bin").toPath(),data);
+		server=new FSPserver(root);
+		server.setSeed(5);
+		server.start(0);
+		pool=new CountingPool();
+		dl=new FSPsegmentedDownload(pool,"127.0.0.1",server.getPort());
+	}
+
+	protected void tearDown()
+	{
+		pool.close();
+		server.close();
+		File list[]=root.listFiles();
+		for(int i=0;i<list.length;i++)
+			list[i].delete();
+		root.delete();
+	}
+
+	private void assertDownloaded() throws IOException
+	{
+		assertTrue(Arrays.equals(data,Files.readAllBytes(target.toPath())));
+	}
+
+	public void testDownload() throws IOException
+	{
+		assertEquals(data.length,dl.download("/file.bin",target));
+		assertDownloaded();
+		assertEquals(data.length,dl.getBytesDone());
+		/* stat and at least one session per segment */
+		assertTrue(pool.acquired.get()>=1+FSPsegmentedDownload.DEFAULT_SEGMENTS);
+	}
+
+	public void testMissingFile() throws IOException
+	{
+		try
+		{
+			dl.download("/missing",target);
+			fail("missing file downloaded");
+		}
+		catch (FileNotFoundException e) {}
+	}
+
+	public void testLossyNetwork() throws IOException
+	{
+		server.setLoss(0.1);
+		server.setDuplicate(0.1);
+		server.setReorder(0.1);
+		dl.setSegments(3);
+		dl.setTimeout(60000);
+		dl.download("/file.bin",target);
+		assertDownloaded();
+		assertTrue(server.getDropped()>0);
+	}
+
+	public void testWorkStealing() throws IOException
+	{
+		/* second worker starts late, first one steals from it */
+		server.setBandwidth(64*1024);
+		dl.setSegments(2);
+		dl.setExecutor(new Executor() {
+			int started;
+			public synchronized void execute(final Runnable r) {
+				final long delay=started++==0 ? 0 : 300;
+				new Thread() {
+					public void run() {
+						try
+						{
+							Thread.sleep(delay);
+						}
+						catch (InterruptedException e) {}
+						r.run();
+					}
+				}.start();
+			}
+		});
+		dl.download("/file.bin",target);
+		assertDownloaded();
+		assertTrue(pool.acquired.get()>3);
+	}
+
+	public void testRejectedWorkerGetsThread() throws IOException
+	{
+		dl.setExecutor(new Executor() {
+			public void execute(Runnable r) {
+				throw new RejectedExecutionException();
+			}
+		});
+		dl.download("/file.bin",target);
+		assertDownloaded();
+	}
+
+	public void testResumeFromJournal() throws Exception
+	{
+		int half=data.length/2;
+		FSPstat stat=null;
+		FSPsession ses=new FSPsession("127.0.0.1",server.getPort());
+		try
+		{
+			stat=FSPutil.stat(ses,"/file.bin");
+		}
+		finally
+		{
+			ses.close();
+		}
+		/* previous download wrote first half */
+		RandomAccessFile raf=new RandomAccessFile(target,"rw");
+		try
+		{
+			raf.setLength(data.length);
+			raf.write(data,0,half);
+			FSPjournal j=FSPjournal.open(target,stat);
+			j.add(0,half);
+			j.save(raf.getChannel());
+		}
+		finally
+		{
+			raf.close();
+		}
+		dl.setResumable(true);
+		dl.download("/file.bin",target);
+		assertDownloaded();
+		assertEquals(data.length-half,dl.getBytesDone());
+		assertFalse(new File(target.getPath()+FSPjournal.SUFFIX).exists());
+	}
+}
@@ -0,0 +1,390 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * End to end tests of client against FSPserver with strict key checking.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+public class FSPserverTest extends TestCase
+{
+	private File root;
+	private FSPserver server;
+	private FSPsession session;
+	private byte data[];
+
+	protected void setUp() throws IOException
+	{
+		root=Files.createTempDirectory("fspserver").toFile();
+		data=new byte[50000];
+		new Random(1).nextBytes(data);
+		Files.write(new File(root,"file.bin").toPath(),data);
+		new File(root,"sub").mkdir();
+		server=new FSPserver(root);
+		server.setSeed(1);
+		server.start(0);
+		session=new FSPsession("127.0.0.1",server.getPort());
+		session.setDelay(200);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		session.setLenientServer(false);
+		session.close();
+		server.close();
+		File list[]=new File(root,"sub").listFiles();
+		for(int i=0;i<list.length;i++)
+			list[i].delete();
+		list=root.listFiles();
+		for(int i=0;i<list.length;i++)
+			list[i].delete();
+		root.delete();
+	}
+
+	private byte[] download(String filename) throws IOException
+	{
+		ByteArrayOutputStream bo=new ByteArrayOutputStream();
+		FSPutil.download(session,filename,bo,0,-1);
+		return bo.toByteArray();
+	}
+
+	public void testDownload() throws IOException
+	{
+		assertFalse(server.isLenient());
+		assertTrue(Arrays.equals(data,download("/file.bin")));
+		session.negotiatePayload(8192);
+		assertTrue(Arrays.equals(data,download("/file.bin")));
+		ByteArrayOutputStream bo=new ByteArrayOutputStream();
+		FSPutil.download(session,"/file.bin",bo,1000,3000);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data,1000,4000),bo.toByteArray()));
+		try
+		{
+			download("/missing");
+			fail("missing file downloaded");
+		}
+		catch (IOException e) {}
+	}
+
+	public void testStatAndList() throws IOException
+	{
+		FSPstat st=FSPutil.stat(session,"/file.bin");
+		assertEquals(FSPstat.RDTYPE_FILE,st.type);
+		assertEquals(data.length,st.length);
+		assertEquals(FSPstat.RDTYPE_DIR,FSPutil.stat(session,"/sub").type);
+		assertNull(FSPutil.stat(session,"/missing"));
+		String names[]=FSPutil.list(session,"/");
+		Arrays.sort(names);
+		assertTrue(Arrays.binarySearch(names,"file.bin")>=0);
+		assertTrue(Arrays.binarySearch(names,"sub")>=0);
+	}
+
+	public void testUploadReplacesFile() throws IOException
+	{
+		FSPutil.upload(session,"/sub/up.bin",new ByteArrayInputStream(data),0);
+		assertTrue(Arrays.equals(data,download("/sub/up.bin")));
+		/* shorter upload truncates old content */
+		FSPutil.upload(session,"/sub/up.bin",new ByteArrayInputStream(data,0,1500),0);
+		assertTrue(Arrays.equals(Arrays.copyOf(data,1500),download("/sub/up.bin")));
+		assertEquals(1500,new File(root,"sub/up.bin").length());
+	}
+
+	public void testLossyNetwork() throws IOException
+	{
+		server.setLoss(0.15);
+		server.setDuplicate(0.1);
+		server.setReorder(0.1);
+		session.setTimeout(60000);
+		/* lost replies are answered from cache, upload is not repeated */
+		FSPutil.upload(session,"/lossy.bin",new ByteArrayInputStream(data,0,20000),0);
+		assertTrue(Arrays.equals(Arrays.copyOf(data,20000),download("/lossy.bin")));
+		assertTrue(Arrays.equals(Arrays.copyOf(data,20000),Files.readAllBytes(new File(root,"lossy.bin").toPath())));
+		assertTrue(server.getDropped()>0);
+	}
+
+	public void testAsync() throws Exception
+	{
+		ByteArrayOutputStream bo=new ByteArrayOutputStream();
+		assertEquals(data.length,FSPutil.downloadAsync(session,"/file.bin",bo,0,-1).get().longValue());
+		assertTrue(Arrays.equals(data,bo.toByteArray()));
+		FSPutil.uploadAsync(session,"/async.bin",new ByteArrayInputStream(data),0).get();
+		assertTrue(Arrays.equals(data,download("/async.bin")));
+		assertEquals(3,FSPutil.statlistAsync(session,"/").get().length);
+	}
+
+	public void testBlockingCallback() throws Exception
+	{
+		/* callback does not run on reactor thread, it can wait for reply */
+		FSPstat st=FSPutil.statAsync(session,"/file.bin").thenApply(s -> FSPutil.statAsync(session,"/sub").join()).get(10,TimeUnit.SECONDS);
+		assertEquals(FSPstat.RDTYPE_DIR,st.type);
+	}
+
+	public void testAsyncTimeoutWhileWaitingForServer() throws Exception
+	{
+		/* blocking request of other session holds server lock */
+		server.setLoss(1.0);
+		final FSPsession other=new FSPsession("127.0.0.1",server.getPort());
+		try
+		{
+			other.setTimeout(4000);
+			FutureTask<FSPstat> blocked=new FutureTask<FSPstat>(new Callable<FSPstat>() {
+				public FSPstat call() throws IOException {
+					return FSPutil.stat(other,"/file.bin");
+				}
+			});
+			new Thread(blocked).start();
+			Thread.sleep(200);
+			session.setTimeout(500);
+			long started=System.currentTimeMillis();
+			try
+			{
+				FSPutil.statAsync(session,"/file.bin").get();
+				fail("request without reply finished");
+			}
+			catch (ExecutionException e)
+			{
+				assertTrue(e.getCause() instanceof SocketTimeoutException);
+				assertTrue(System.currentTimeMillis()-started<3000);
+			}
+			try
+			{
+				blocked.get();
+			}
+			catch (ExecutionException e) {}
+		}
+		finally
+		{
+			server.setLoss(0);
+			other.close();
+		}
+	}
+
+	public void testMissingFileIsReported() throws IOException
+	{
+		try
+		{
+			FSPutil.downloadMapped(session,"/missing",new File(root,"target"));
+			fail("missing file downloaded");
+		}
+		catch (FileNotFoundException e) {}
+	}
+
+	public void testWindowedTransfers() throws IOException
+	{
+		/* requests in flight carry older keys */
+		server.setLenient(true);
+		session.setLenientServer(true);
+		server.setLoss(0.1);
+		server.setDuplicate(0.1);
+		server.setReorder(0.2);
+		session.setTimeout(60000);
+		session.setWindow(8);
+		session.negotiatePayload(4096);
+		assertTrue(Arrays.equals(data,download("/file.bin")));
+		ByteArrayOutputStream bo=new ByteArrayOutputStream();
+		FSPutil.download(session,"/file.bin",bo,777,30000);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data,777,30777),bo.toByteArray()));
+		/* unordered download */
+		File mapped=new File(root,"mapped.bin");
+		assertEquals(data.length,FSPutil.downloadMapped(session,"/file.bin",mapped));
+		assertTrue(Arrays.equals(data,Files.readAllBytes(mapped.toPath())));
+
+		FSPutil.upload(session,"/up.bin",new ByteArrayInputStream(data),0);
+		assertTrue(Arrays.equals(data,Files.readAllBytes(new File(root,"up.bin").toPath())));
+		FSPOutputStream os=new FSPOutputStream(session,"/stream.bin");
+		os.write(data,0,20000);
+		os.write(data,20000,data.length-20000);
+		os.close();
+		assertTrue(Arrays.equals(data,Files.readAllBytes(new File(root,"stream.bin").toPath())));
+		assertTrue(server.getDropped()>0);
+	}
+
+	public void testWindowedShortBlocks() throws IOException
+	{
+		server.setLenient(true);
+		session.setLenientServer(true);
+		server.setReorder(0.2);
+		session.setWindow(8);
+		session.negotiatePayload(8192);
+		/* server sends less than negotiated block size */
+		server.setMaxPayload(3000);
+		assertTrue(Arrays.equals(data,download("/file.bin")));
+		ByteArrayOutputStream bo=new ByteArrayOutputStream();
+		FSPutil.download(session,"/file.bin",bo,5000,20000);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data,5000,25000),bo.toByteArray()));
+		File mapped=new File(root,"mapped.bin");
+		FSPutil.downloadMapped(session,"/file.bin",mapped);
+		assertTrue(Arrays.equals(data,Files.readAllBytes(mapped.toPath())));
+	}
+
+	public void testWindowedTimeout() throws IOException
+	{
+		server.setLenient(true);
+		session.setLenientServer(true);
+		session.setWindow(4);
+		session.setTimeout(1000);
+		server.setLoss(1.0);
+		long started=System.currentTimeMillis();
+		try
+		{
+			download("/file.bin");
+			fail("download without replies finished");
+		}
+		catch (SocketTimeoutException e)
+		{
+			assertTrue(System.currentTimeMillis()-started<10000);
+		}
+		server.setLoss(0);
+	}
+
+	/* downloads file by other session in its own thread */
+	private FutureTask<byte[]> downloadBy(final FSPsession other, final int times)
+	{
+		FutureTask<byte[]> task=new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream bo=new ByteArrayOutputStream();
+				for(int i=0;i<times;i++)
+				{
+					bo.reset();
+					FSPutil.download(other,"/file.bin",bo,0,-1);
+				}
+				return bo.toByteArray();
+			}
+		});
+		new Thread(task).start();
+		return task;
+	}
+
+	public void testMixedWindowsOnStrictServer() throws Exception
+	{
+		/* window is not used, sessions take turns and no key is dropped */
+		session.setWindow(8);
+		session.setAdaptiveDelay(false);
+		session.setDelay(1000);
+		FSPsession other=new FSPsession("127.0.0.1",server.getPort());
+		try
+		{
+			other.setAdaptiveDelay(false);
+			other.setDelay(1000);
+			long retransmits=session.getHostMetrics().getRetransmits();
+			FutureTask<byte[]> task=downloadBy(other,3);
+			for(int i=0;i<3;i++)
+				assertTrue(Arrays.equals(data,download("/file.bin")));
+			assertTrue(Arrays.equals(data,task.get()));
+			assertEquals(retransmits,session.getHostMetrics().getRetransmits());
+		}
+		finally
+		{
+			other.close();
+		}
+	}
+
+	public void testConcurrentSessionsOnLenientServer() throws Exception
+	{
+		server.setLenient(true);
+		session.setLenientServer(true);
+		session.setWindow(8);
+		FSPsession other=new FSPsession("127.0.0.1",server.getPort());
+		try
+		{
+			/* setting is shared by sessions to the same server */
+			assertTrue(other.isLenientServer());
+			FutureTask<byte[]> task=downloadBy(other,3);
+			for(int i=0;i<3;i++)
+				assertTrue(Arrays.equals(data,download("/file.bin")));
+			assertTrue(Arrays.equals(data,task.get()));
+		}
+		finally
+		{
+			other.close();
+		}
+	}
+
+	/* raw request with given key and sequence number */
+	private static FSPpacket request(DatagramSocket s, short key, short seq) throws IOException
+	{
+		FSPpacket pkt=new FSPpacket();
+		pkt.cmd=FSPpacket.CC_VERSION;
+		pkt.bb_key=key;
+		pkt.bb_seq=seq;
+		pkt.setData(null,0,0,null,0,0);
+		s.send(pkt.assemble(new DatagramPacket(new byte[FSPpacket.HSIZE],0)));
+		DatagramPacket udp=new DatagramPacket(new byte[FSPpacket.MAXSIZE],FSPpacket.MAXSIZE);
+		try
+		{
+			s.receive(udp);
+		}
+		catch (SocketTimeoutException e)
+		{
+			return null;
+		}
+		FSPpacket reply=new FSPpacket();
+		assertTrue(reply.disassemble(udp));
+		assertEquals(FSPpacket.CC_VERSION,reply.cmd);
+		assertEquals(seq,reply.bb_seq);
+		return reply;
+	}
+
+	public void testKeyChecking() throws IOException
+	{
+		DatagramSocket s=new DatagramSocket();
+		try
+		{
+			s.connect(InetAddress.getByName("127.0.0.1"),server.getPort());
+			s.setSoTimeout(500);
+			/* first request from host sets its key */
+			FSPpacket first=request(s,(short)0,(short)8);
+			assertNotNull(first);
+			short key=first.bb_key;
+			/* unknown key is dropped */
+			assertNull(request(s,(short)(key+1),(short)16));
+			/* retransmission with previous key gets the same reply */
+			FSPpacket again=request(s,(short)0,(short)8);
+			assertNotNull(again);
+			assertEquals(key,again.bb_key);
+			/* new request with current key rotates key */
+			FSPpacket next=request(s,key,(short)24);
+			assertNotNull(next);
+			assertTrue(next.bb_key!=key);
+			/* key older than previous one is dropped in strict mode */
+			assertNull(request(s,(short)0,(short)8));
+			assertNull(request(s,key,(short)32));
+			assertNotNull(request(s,key,(short)24));
+			server.setLenient(true);
+			assertNotNull(request(s,(short)0,(short)8));
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of FSPsessionPool bounds, reuse and eviction.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+public class FSPsessionPoolTest extends TestCase
+{
+	private File root;
+	private FSPserver server;
+	private FSPsessionPool pool;
+	private String host;
+	private int port;
+
+	protected void setUp() throws IOException
+	{
+		root=Files.createTempDirectory("fsppool").toFile();
+		server=new FSPserver(root);
+		server.start(0);
+		host="127.0.0.1";
+		port=server.getPort();
+		pool=new FSPsessionPool();
+		pool.setMaxSessions(2);
+		pool.setMaxWait(200);
+	}
+
+	protected void tearDown()
+	{
+		pool.close();
+		server.close();
+		root.delete();
+	}
+
+	public void testReusesReleasedSession() throws IOException
+	{
+		FSPsession a=pool.acquire(host,port);
+		pool.release(a);
+		assertSame(a,pool.acquire(host,port));
+		pool.release(a);
+	}
+
+	public void testReleaseRestoresSettings() throws IOException
+	{
+		FSPsession a=pool.acquire(host,port);
+		a.setTimeout(1000);
+		a.setDelay(3000);
+		a.setMaxDelay(5000);
+		a.setWindow(8);
+		a.setAdaptiveDelay(false);
+		a.negotiatePayload(4096);
+		assertEquals(4096,a.getPayload());
+		pool.release(a);
+		assertSame(a,pool.acquire(host,port));
+		assertEquals(FSPsession.DEFAULT_TIMEOUT,a.getTimeout());
+		assertEquals(FSPsession.DEFAULT_DELAY,a.getDelay());
+		assertEquals(FSPsession.MAX_DELAY,a.getMaxDelay());
+		assertEquals(FSPsession.DEFAULT_WINDOW,a.getWindow());
+		assertTrue(a.isAdaptiveDelay());
+		assertEquals(FSPpacket.SPACE,a.getPayload());
+		/* session still works */
+		assertNotNull(FSPutil.stat(a,"/"));
+		pool.release(a);
+	}
+
+	public void testBoundedPerHost() throws IOException
+	{
+		FSPsession a=pool.acquire(host,port);
+		FSPsession b=pool.acquire(host,port);
+		assertNotSame(a,b);
+		long started=System.currentTimeMillis();
+		try
+		{
+			pool.acquire(host,port);
+			fail("third session acquired");
+		}
+		catch (IOException e)
+		{
+			assertTrue(System.currentTimeMillis()-started>=150);
+		}
+		/* invalidated session frees its slot */
+		pool.invalidate(b);
+		FSPsession c=pool.acquire(host,port);
+		assertNotSame(b,c);
+		pool.release(a);
+		pool.release(c);
+	}
+
+	public void testWaiterGetsReleasedSession() throws Exception
+	{
+		pool.setMaxWait(10000);
+		final FSPsession a=pool.acquire(host,port);
+		FSPsession b=pool.acquire(host,port);
+		Thread t=new Thread() {
+			public void run() {
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {}
+				pool.release(a);
+			}
+		};
+		t.start();
+		assertSame(a,pool.acquire(host,port));
+		t.join();
+		pool.release(a);
+		pool.release(b);
+	}
+
+	public void testDoubleReleaseIsRejected() throws IOException
+	{
+		FSPsession a=pool.acquire(host,port);
+		pool.release(a);
+		try
+		{
+			pool.release(a);
+			fail("session released twice");
+		}
+		catch (IllegalStateException e) {}
+		try
+		{
+			pool.invalidate(a);
+			fail("released session invalidated");
+		}
+		catch (IllegalStateException e) {}
+		/* pool still hands out single idle session once */
+		FSPsession b=pool.acquire(host,port);
+		FSPsession c=pool.acquire(host,port);
+		assertSame(a,b);
+		assertNotSame(b,c);
+		pool.release(b);
+		pool.release(c);
+	}
+
+	public void testForeignSessionIsRejected() throws Exception
+	{
+		FSPsession s=new FSPsession(host,port);
+		try
+		{
+			pool.release(s);
+			fail("foreign session released");
+		}
+		catch (IllegalArgumentException e) {}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	public void testEvictIdle() throws IOException
+	{
+		FSPsession a=pool.acquire(host,port);
+		pool.release(a);
+		pool.evictIdle();
+		/* not expired yet */
+		assertSame(a,pool.acquire(host,port));
+		pool.setIdleTimeout(0);
+		pool.release(a);
+		pool.evictIdle();
+		FSPsession b=pool.acquire(host,port);
+		assertNotSame(a,b);
+		/* both slots are free again */
+		FSPsession c=pool.acquire(host,port);
+		pool.invalidate(b);
+		pool.invalidate(c);
+	}
+
+	public void testClosedPool() throws IOException
+	{
+		FSPsession a=pool.acquire(host,port);
+		pool.close();
+		/* session in use is closed when returned */
+		pool.release(a);
+		try
+		{
+			pool.acquire(host,port);
+			fail("acquired from closed pool");
+		}
+		catch (IllegalStateException e) {}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2003-2009 by Radim 'HSN' Kolar (hsn@sendmail.cz)
+
+You may copy or modify this file in any manner you wish, provided
+that this notice is always included, and that you hold the author
+harmless for any loss or damage resulting from the installation or
+use of this software.
+
+		     This is a free software.  Be creative.
+		    Let me know of any bugs and suggestions.
+ */
+package net.fsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of FSPwalker traversal and splitting.
+ *
+ * @author Radim Kolar
+ * @since 1.1
+ */
+public class FSPwalkerTest extends TestCase
+{
+	private File root;
+	private FSPserver server;
+	private FSPsessionPool pool;
+	private FSPsession session;
+
+	protected void setUp() throws IOException
+	{
+		root=Files.createTempDirectory("fspwalk").toFile();
+		mkfile("r");
+		mkfile("a/1");
+		mkfile("a/2");
+		mkfile("a/x/3");
+		mkfile("b/4");
+		mkfile("c/5");
+		mkfile("c/6");
+		mkfile("flat/7");
+		mkfile("flat/8");
+		mkfile("flat/9");
+		server=new FSPserver(root);
+		server.start(0);
+		session=new FSPsession("127.0.0.1",server.getPort());
+		pool=new FSPsessionPool();
+	}
+
+	protected void tearDown() throws Exception
+	{
+		session.close();
+		pool.close();
+		server.close();
+		delete(root);
+	}
+
+	private void mkfile(String name) throws IOException
+	{
+		File f=new File(root,name);
+		f.getParentFile().mkdirs();
+		Files.write(f.toPath(),name.getBytes("ISO-8859-1"));
+	}
+
+	private static void delete(File f)
+	{
+		File list[]=f.listFiles();
+		if(list!=null)
+			for(int i=0;i<list.length;i++)
+				delete(list[i]);
+		f.delete();
+	}
+
+	private static List<String> drain(Spliterator<FSPstat> s)
+	{
+		final List<String> rc=new ArrayList<String>();
+		while(s.tryAdvance(st -> rc.add(st.name)));
+		return rc;
+	}
+
+	private static List<String> sorted(List<String> l)
+	{
+		Collections.sort(l);
+		return l;
+	}
+
+	public void testWalk()
+	{
+		List<String> all=FSPutil.walk(session,pool,"/",Integer.MAX_VALUE).map(st -> st.name).collect(Collectors.toList());
+		assertEquals(Arrays.asList("/a","/a/1","/a/2","/a/x","/a/x/3","/b","/b/4","/c","/c/5","/c/6",
+		                           "/flat","/flat/7","/flat/8","/flat/9","/r"),sorted(all));
+		List<String> top=FSPutil.walk(session,pool,"/",1).map(st -> st.name).collect(Collectors.toList());
+		assertEquals(Arrays.asList("/a","/b","/c","/flat","/r"),sorted(top));
+		assertEquals(0,FSPutil.walk(session,pool,"/",0).count());
+	}
+
+	public void testSplitWaitingDirectories()
+	{
+		FSPwalker w=new FSPwalker(session,pool,"/",Integer.MAX_VALUE);
+		/* root is listed, oldest half of its subdirectories is split off */
+		Spliterator<FSPstat> s=w.trySplit();
+		assertNotNull(s);
+		List<String> split=drain(s);
+		List<String> rest=drain(w);
+		assertFalse(split.isEmpty());
+		assertFalse(rest.isEmpty());
+		for(String name:split)
+			assertTrue(name,name.startsWith("/a/") || name.startsWith("/b/"));
+		List<String> all=new ArrayList<String>(split);
+		all.addAll(rest);
+		assertEquals(FSPutil.walk(session,pool,"/",Integer.MAX_VALUE).count(),all.size());
+		assertEquals(all.size(),all.stream().distinct().count());
+	}
+
+	public void testSplitEntriesOfSingleDirectory()
+	{
+		FSPwalker w=new FSPwalker(session,pool,"/flat",Integer.MAX_VALUE);
+		Spliterator<FSPstat> s=w.trySplit();
+		assertNotNull(s);
+		List<String> all=drain(s);
+		all.addAll(drain(w));
+		assertEquals(Arrays.asList("/flat/7","/flat/8","/flat/9"),sorted(all));
+	}
+
+	public void testNothingToSplit()
+	{
+		FSPwalker w=new FSPwalker(session,pool,"/b",Integer.MAX_VALUE);
+		assertNull(w.trySplit());
+		assertEquals(Arrays.asList("/b/4"),drain(w));
+		assertNull(w.trySplit());
+		assertEquals(0,w.estimateSize());
+	}
+
+	public void testParallelWalk()
+	{
+		List<String> seq=FSPutil.walk(session,pool,"/",Integer.MAX_VALUE).map(st -> st.name).collect(Collectors.toList());
+		List<String> par=FSPutil.walk(session,pool,"/",Integer.MAX_VALUE).parallel().map(st -> st.name).collect(Collectors.toList());
+		assertEquals(sorted(seq),sorted(par));
+	}
+}